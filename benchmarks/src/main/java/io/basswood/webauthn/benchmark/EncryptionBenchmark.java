@@ -0,0 +1,132 @@
+package io.basswood.webauthn.benchmark;
+
+import io.basswood.webauthn.secret.EncryptionService;
+import io.basswood.webauthn.secret.GCMEncryptor;
+import io.basswood.webauthn.secret.GCMNonceGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AES-GCM round trips through {@link GCMEncryptor} on raw bytes and through {@link EncryptionService} on strings (the
+ * path {@code AttributeEncryptionConverter} takes for every encrypted column), for small and large values.
+ * <p>
+ * Decryption alone, the path of every entity load: {@code decryptNewCipher} with a {@code Cipher.getInstance} per
+ * call as {@link GCMEncryptor} did before it pooled its ciphers, {@code decryptPooledCipher} as it does now, and
+ * {@code encryptionServiceDecrypt} and {@code encryptionServiceDecryptCached} without and with the decrypted value
+ * cache.
+ * <p>
+ * {@code nonceSecureRandom} and {@code nonceGenerator} draw a GCM IV from 4 threads sharing one source, a DRBG
+ * {@link SecureRandom} (the naive fix for a fixed IV) and a {@link GCMNonceGenerator}.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncryptionBenchmark {
+    @Param({"64", "1024", "16384"})
+    public int size;
+
+    private GCMEncryptor gcmEncryptor;
+    private EncryptionService encryptionService;
+    private EncryptionService cachingEncryptionService;
+    private SecretKey key;
+    private byte[] plain;
+    private String plainText;
+    private byte[] cipherData;
+    private String cipherBase64;
+    private SecureRandom drbg;
+    private GCMNonceGenerator nonceGenerator;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        key = keyGenerator.generateKey();
+        gcmEncryptor = new GCMEncryptor(key, null);
+        encryptionService = new EncryptionService(key);
+        cachingEncryptionService = new EncryptionService(key, 1000, null);
+        plain = new byte[size];
+        Arrays.fill(plain, (byte) 'a');
+        plainText = new String(plain, StandardCharsets.UTF_8);
+        cipherData = gcmEncryptor.encrypt(plain);
+        cipherBase64 = encryptionService.encrypt(plainText);
+        drbg = SecureRandom.getInstance("DRBG");
+        nonceGenerator = new GCMNonceGenerator(drbg);
+    }
+
+    @Benchmark
+    public byte[] gcmRoundTrip() {
+        return gcmEncryptor.decrypt(gcmEncryptor.encrypt(plain));
+    }
+
+    @Benchmark
+    public String encryptionServiceRoundTrip() {
+        return encryptionService.decrypt(encryptionService.encrypt(plainText));
+    }
+
+    @Benchmark
+    public byte[] decryptNewCipher() throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCMEncryptor.DEFAULT_TAG_LENGTH, cipherData, 0,
+                GCMEncryptor.GCM_IV_LENGTH));
+        return cipher.doFinal(cipherData, GCMEncryptor.GCM_IV_LENGTH, cipherData.length - GCMEncryptor.GCM_IV_LENGTH);
+    }
+
+    @Benchmark
+    public byte[] decryptPooledCipher() {
+        return gcmEncryptor.decrypt(cipherData);
+    }
+
+    @Benchmark
+    public String encryptionServiceDecrypt() {
+        return encryptionService.decrypt(cipherBase64);
+    }
+
+    @Benchmark
+    public String encryptionServiceDecryptCached() {
+        // a new String, as every load reads the column into one
+        return cachingEncryptionService.decrypt(new String(cipherBase64));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] nonceSecureRandom() {
+        byte[] nonce = new byte[GCMEncryptor.GCM_IV_LENGTH];
+        drbg.nextBytes(nonce);
+        return nonce;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public byte[] nonceGenerator() {
+        byte[] nonce = new byte[GCMEncryptor.GCM_IV_LENGTH];
+        nonceGenerator.next(nonce, 0);
+        return nonce;
+    }
+}
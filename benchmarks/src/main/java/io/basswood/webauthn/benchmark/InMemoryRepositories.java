@@ -0,0 +1,102 @@
+package io.basswood.webauthn.benchmark;
+
+import io.basswood.webauthn.model.credential.CredentialDescriptorRow;
+import io.basswood.webauthn.model.credential.RegisteredCredentialEntity;
+import io.basswood.webauthn.model.user.User;
+import io.basswood.webauthn.model.user.Username;
+import io.basswood.webauthn.repository.RegisteredCredentialEntityRepository;
+import io.basswood.webauthn.repository.UserRepository;
+import io.basswood.webauthn.repository.UsernameRepository;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Map backed stand-ins for the Spring Data repositories {@code WebAuthnService} uses, so that the ceremony benchmarks
+ * measure the service and the Yubico library rather than a database. Only the methods the ceremonies call are
+ * implemented, anything else throws {@link UnsupportedOperationException}.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public class InMemoryRepositories {
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private final Map<String, Username> usernames = new ConcurrentHashMap<>();
+    private final Map<String, RegisteredCredentialEntity> credentials = new ConcurrentHashMap<>();
+
+    public UserRepository userRepository() {
+        return proxy(UserRepository.class, (name, args) -> switch (name) {
+            case "findById", "findDistinctByUserHandle" -> Optional.ofNullable(users.get((String) args[0]));
+            case "save" -> saveUser((User) args[0]);
+            default -> unsupported(UserRepository.class, name);
+        });
+    }
+
+    public UsernameRepository usernameRepository() {
+        return proxy(UsernameRepository.class, (name, args) -> switch (name) {
+            case "findDistinctByUsername" -> Optional.ofNullable(usernames.get((String) args[0]));
+            case "findByUsernameIn" -> ((List<?>) args[0]).stream()
+                    .map(usernames::get)
+                    .filter(Objects::nonNull)
+                    .collect(Collectors.toList());
+            default -> unsupported(UsernameRepository.class, name);
+        });
+    }
+
+    public RegisteredCredentialEntityRepository credentialRepository() {
+        return proxy(RegisteredCredentialEntityRepository.class, (name, args) -> switch (name) {
+            case "findById" -> Optional.ofNullable(credentials.get((String) args[0]));
+            case "findDescriptorRowsByUsername" -> credentials.values().stream()
+                    .filter(credential -> credential.getUser().getUsernames().stream()
+                            .anyMatch(username -> username.getUsername().equals(args[0])))
+                    .flatMap(InMemoryRepositories::descriptorRows)
+                    .collect(Collectors.toList());
+            case "save" -> {
+                RegisteredCredentialEntity credential = (RegisteredCredentialEntity) args[0];
+                credentials.put(credential.getCredentialId(), credential);
+                yield credential;
+            }
+            default -> unsupported(RegisteredCredentialEntityRepository.class, name);
+        });
+    }
+
+    private static Stream<CredentialDescriptorRow> descriptorRows(RegisteredCredentialEntity credential) {
+        if (credential.getTransports() == null || credential.getTransports().isEmpty()) {
+            return Stream.of(new CredentialDescriptorRow(credential.getCredentialId(), null));
+        }
+        return credential.getTransports().stream()
+                .map(transport -> new CredentialDescriptorRow(credential.getCredentialId(), transport.getTransport()));
+    }
+
+    private User saveUser(User user) {
+        users.put(user.getUserHandle(), user);
+        user.getUsernames().forEach(username -> usernames.put(username.getUsername(), username));
+        return user;
+    }
+
+    private static Object unsupported(Class<?> repository, String method) {
+        throw new UnsupportedOperationException(repository.getSimpleName() + "." + method);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> repository, RepositoryMethod handler) {
+        return (T) Proxy.newProxyInstance(repository.getClassLoader(), new Class<?>[]{repository},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "toString" -> "InMemory" + repository.getSimpleName();
+                    default -> handler.invoke(method.getName(), args);
+                });
+    }
+
+    @FunctionalInterface
+    private interface RepositoryMethod {
+        Object invoke(String name, Object[] args);
+    }
+}
@@ -0,0 +1,149 @@
+package io.basswood.webauthn.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jwt.SignedJWT;
+import io.basswood.webauthn.model.jwk.JWKEntityConverter;
+import io.basswood.webauthn.model.token.AuthenticatedPrincipal;
+import io.basswood.webauthn.model.token.Role;
+import io.basswood.webauthn.repository.JWKRepository;
+import io.basswood.webauthn.security.JWTFilter;
+import io.basswood.webauthn.security.RoleMapping;
+import io.basswood.webauthn.security.VerifiedTokenCache;
+import io.basswood.webauthn.service.JWKService;
+import io.basswood.webauthn.service.NimbusJOSEHelper;
+import io.basswood.webauthn.service.TokenGenerator;
+import io.basswood.webauthn.service.VerificationKey;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of authorizing a protected call with an EC P-256 token. {@code parseValidateHasClaim} is the sequence the
+ * {@code JWTFilter} ran before it built an {@link AuthenticatedPrincipal} (the claim set is read by the expiry check
+ * and again by the role check), {@code authenticate} is the single parse path it runs now. {@code filter} and
+ * {@code filterWithVerifiedTokenCache} run the whole filter against a stand-in request, {@code requiredRoles} only the
+ * route lookup (run with {@code -prof gc} to see that it does not allocate).
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JWTFilterBenchmark {
+    private static final String PATH = "/jwk/c0bdf4fb-3f39-47c6-9eb2-86c148cfca1e";
+
+    private TokenGenerator tokenGenerator;
+    private JWKService jwkService;
+    private String serializedJWT;
+    private RoleMapping roleMapping;
+    private JWTFilter filter;
+    private JWTFilter filterWithVerifiedTokenCache;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private FilterChain filterChain;
+
+    @Setup
+    public void setup() {
+        JWK jwk = new NimbusJOSEHelper().createECKey(KeyUse.SIGNATURE, Curve.P_256, Duration.ofDays(1));
+        JWKRepository jwkRepository = (JWKRepository) Proxy.newProxyInstance(JWKRepository.class.getClassLoader(),
+                new Class<?>[]{JWKRepository.class},
+                (proxy, method, args) -> Optional.of(new JWKEntityConverter().toEntity(jwk)));
+        jwkService = new JWKService(jwkRepository);
+        tokenGenerator = new TokenGenerator();
+        serializedJWT = tokenGenerator.createSignedJWT(jwk, tokenGenerator.createToken("webauthn_admin",
+                "webauthn.basswood.io", "webauthn.basswood.io", Duration.ofHours(1),
+                List.of(Role.jwk_manager.name(), Role.user_manager.name()))).serialize();
+        roleMapping = new RoleMapping();
+        filter = new JWTFilter(jwkService, new ObjectMapper(), false, roleMapping, null, null);
+        filterWithVerifiedTokenCache = new JWTFilter(jwkService, new ObjectMapper(), false, roleMapping,
+                new VerifiedTokenCache(jwkService, 1000, Duration.ofMinutes(5), null), null);
+        request = request("Bearer " + serializedJWT);
+        response = (HttpServletResponse) Proxy.newProxyInstance(HttpServletResponse.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                    throw new IllegalStateException("Rejected: " + method.getName());
+                });
+        filterChain = (servletRequest, servletResponse) -> {
+        };
+    }
+
+    @Benchmark
+    public boolean parseValidateHasClaim() {
+        SignedJWT signedJWT = tokenGenerator.parseSignedJWT(serializedJWT);
+        VerificationKey verificationKey = jwkService.verificationKey(signedJWT.getHeader().getKeyID()).get();
+        return tokenGenerator.validateSignedJWT(verificationKey, signedJWT)
+                && tokenGenerator.hasClaim(signedJWT, TokenGenerator.CLAIM_NAME_ROLES, Role.jwk_manager.name());
+    }
+
+    @Benchmark
+    public boolean authenticate() {
+        SignedJWT signedJWT = tokenGenerator.parseSignedJWT(serializedJWT);
+        VerificationKey verificationKey = jwkService.verificationKey(signedJWT.getHeader().getKeyID()).get();
+        return tokenGenerator.authenticate(verificationKey, signedJWT).hasRole(Role.jwk_manager);
+    }
+
+    @Benchmark
+    public Set<Role> requiredRoles() {
+        return roleMapping.requiredRoles("GET", PATH);
+    }
+
+    @Benchmark
+    public Object filter() throws ServletException, IOException {
+        filter.doFilter(request, response, filterChain);
+        return request.getAttribute(AuthenticatedPrincipal.REQUEST_ATTRIBUTE);
+    }
+
+    @Benchmark
+    public Object filterWithVerifiedTokenCache() throws ServletException, IOException {
+        filterWithVerifiedTokenCache.doFilter(request, response, filterChain);
+        return request.getAttribute(AuthenticatedPrincipal.REQUEST_ATTRIBUTE);
+    }
+
+    /**
+     * Just enough of a request for the filter: the path, the Authorization header and the attributes.
+     */
+    private static HttpServletRequest request(String authorization) {
+        Map<String, Object> attributes = new HashMap<>();
+        return (HttpServletRequest) Proxy.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "getRequestURI" -> PATH;
+                    case "getRequestURL" -> new StringBuffer("http://localhost:9080" + PATH);
+                    case "getMethod" -> "GET";
+                    case "getHeader" -> JWTFilter.HEADER_AUTHORIZATION.equalsIgnoreCase((String) args[0]) ? authorization : null;
+                    case "getDispatcherType" -> DispatcherType.REQUEST;
+                    case "getAttribute" -> attributes.get((String) args[0]);
+                    case "setAttribute" -> attributes.put((String) args[0], args[1]);
+                    case "removeAttribute" -> attributes.remove((String) args[0]);
+                    case "isAsyncStarted", "isAsyncSupported" -> false;
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
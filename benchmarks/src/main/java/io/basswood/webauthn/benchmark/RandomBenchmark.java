@@ -0,0 +1,78 @@
+package io.basswood.webauthn.benchmark;
+
+import io.basswood.webauthn.secret.StripedDrbgRandomProvider;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A 16 byte user handle drawn by 8 threads: {@code sharedDrbg} from the one DRBG {@link SecureRandom} the
+ * {@code UserService} used to share, {@code nativePrng} from a default {@code new SecureRandom()} as the Yubico
+ * {@code RelyingParty} draws its challenges, and {@code stripedDrbg} from a {@link StripedDrbgRandomProvider}.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class RandomBenchmark {
+    private static final int LENGTH = 16;
+
+    private SecureRandom sharedDrbg;
+    private SecureRandom nativePrng;
+    private StripedDrbgRandomProvider stripedDrbg;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        sharedDrbg = SecureRandom.getInstance("DRBG",
+                DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+        nativePrng = new SecureRandom();
+        stripedDrbg = new StripedDrbgRandomProvider(8, Duration.ofMinutes(1), new SimpleMeterRegistry());
+        stripedDrbg.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        stripedDrbg.stop();
+    }
+
+    @Benchmark
+    public byte[] sharedDrbg() {
+        byte[] bytes = new byte[LENGTH];
+        sharedDrbg.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] nativePrng() {
+        byte[] bytes = new byte[LENGTH];
+        nativePrng.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] stripedDrbg() {
+        return stripedDrbg.nextBytes(LENGTH);
+    }
+}
@@ -0,0 +1,75 @@
+package io.basswood.webauthn.benchmark;
+
+import io.basswood.webauthn.model.credential.CredentialRepositoryImpl;
+import io.basswood.webauthn.model.rp.RelyingPartyEntity;
+import io.basswood.webauthn.model.rp.RelyingPartyOrigin;
+import io.basswood.webauthn.service.CompiledRelyingParty;
+import io.basswood.webauthn.service.RelyingPartyCache;
+import io.basswood.webauthn.service.RelyingPartyService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per ceremony cost of resolving the relying party for an origin. {@code compile} is what every ceremony paid before
+ * the {@link RelyingPartyCache} (on top of the two origin/relying party queries, which are not part of this
+ * measurement) and {@code cachedLookup} is what a cache hit costs now.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelyingPartyCacheBenchmark {
+    private static final String ORIGIN = "example.com";
+    private RelyingPartyEntity relyingPartyEntity;
+    private RelyingPartyCache relyingPartyCache;
+
+    @Setup
+    public void setup() {
+        relyingPartyEntity = RelyingPartyEntity.builder()
+                .id(ORIGIN)
+                .name("Example")
+                .allowOriginPort(true)
+                .allowOriginSubdomain(true)
+                .timeout(300L)
+                .origins(Set.of(
+                        RelyingPartyOrigin.builder().origin(ORIGIN).build(),
+                        RelyingPartyOrigin.builder().origin("a.example.com").build(),
+                        RelyingPartyOrigin.builder().origin("b.example.com").build()))
+                .build();
+        RelyingPartyService relyingPartyService = new RelyingPartyService(null, null) {
+            @Override
+            public Optional<RelyingPartyEntity> findByOrigin(String origin) {
+                return Optional.of(relyingPartyEntity);
+            }
+        };
+        relyingPartyCache = new RelyingPartyCache(relyingPartyService, new CredentialRepositoryImpl(null, null), null);
+        relyingPartyCache.findByOrigin(ORIGIN);
+    }
+
+    @Benchmark
+    public CompiledRelyingParty compile() {
+        return relyingPartyCache.compile(relyingPartyEntity);
+    }
+
+    @Benchmark
+    public CompiledRelyingParty cachedLookup() {
+        return relyingPartyCache.findByOrigin(ORIGIN).get();
+    }
+}
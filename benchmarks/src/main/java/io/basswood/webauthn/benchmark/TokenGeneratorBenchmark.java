@@ -0,0 +1,140 @@
+package io.basswood.webauthn.benchmark;
+
+import com.nimbusds.jose.JWEObject;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jwt.SignedJWT;
+import io.basswood.webauthn.model.jwk.JWKEntityConverter;
+import io.basswood.webauthn.model.token.Token;
+import io.basswood.webauthn.repository.JWKRepository;
+import io.basswood.webauthn.service.EncryptionKey;
+import io.basswood.webauthn.service.JWKService;
+import io.basswood.webauthn.service.NimbusJOSEHelper;
+import io.basswood.webauthn.service.SigningKey;
+import io.basswood.webauthn.service.TokenGenerator;
+import io.basswood.webauthn.service.VerificationKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minting, validating, encrypting and decrypting admin tokens with {@link TokenGenerator}, for an EC P-256 and an
+ * RSA 2048 key. {@code validateSignedJWT} starts from the compact serialization and builds the verifier from the JWK,
+ * {@code validateWithVerificationKey} is what the {@code JWTFilter} does with the cached {@link VerificationKey}.
+ * {@code decryptJWT} parses the JWE first because a {@link JWEObject} can only be decrypted once.
+ * {@code sign} is the batch minting path with a {@link SigningKey}; the {@code *Throughput} variants report tokens per
+ * second on one thread, i.e. per core.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenGeneratorBenchmark {
+    @Param({"EC", "RSA"})
+    public String keyType;
+
+    private TokenGenerator tokenGenerator;
+    private JWK jwk;
+    private Token token;
+    private SignedJWT signedJWT;
+    private String serializedJWT;
+    private String serializedJWE;
+    private JWKService jwkService;
+    private SigningKey signingKey;
+    private EncryptionKey encryptionKey;
+
+    @Setup
+    public void setup() {
+        NimbusJOSEHelper helper = new NimbusJOSEHelper();
+        jwk = switch (keyType) {
+            case "EC" -> helper.createECKey(KeyUse.SIGNATURE, Curve.P_256, Duration.ofDays(1));
+            case "RSA" -> helper.createRSAKey(KeyUse.SIGNATURE, 2048, Duration.ofDays(1));
+            default -> throw new IllegalArgumentException(keyType);
+        };
+        tokenGenerator = new TokenGenerator();
+        token = tokenGenerator.createToken("webauthn_admin", "webauthn.basswood.io", "webauthn.basswood.io",
+                Duration.ofHours(1), List.of("webauthn_admin"));
+        signedJWT = tokenGenerator.createSignedJWT(jwk, token);
+        serializedJWT = signedJWT.serialize();
+        serializedJWE = tokenGenerator.encryptJWT(jwk, signedJWT).serialize();
+        JWKRepository jwkRepository = (JWKRepository) Proxy.newProxyInstance(JWKRepository.class.getClassLoader(),
+                new Class<?>[]{JWKRepository.class},
+                (proxy, method, args) -> Optional.of(new JWKEntityConverter().toEntity(jwk)));
+        jwkService = new JWKService(jwkRepository);
+        signingKey = tokenGenerator.signingKey(jwk);
+        encryptionKey = tokenGenerator.encryptionKey(jwk.toPublicJWK());
+    }
+
+    @Benchmark
+    public SignedJWT createSignedJWT() {
+        return tokenGenerator.createSignedJWT(jwk, token);
+    }
+
+    @Benchmark
+    public String sign() {
+        return tokenGenerator.sign(signingKey, token);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String createSignedJWTThroughput() {
+        return tokenGenerator.createSignedJWT(jwk, token).serialize();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String signThroughput() {
+        return tokenGenerator.sign(signingKey, token);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public String signAndEncryptThroughput() {
+        return tokenGenerator.encrypt(encryptionKey, tokenGenerator.sign(signingKey, token));
+    }
+
+    @Benchmark
+    public boolean validateSignedJWT() {
+        return tokenGenerator.validateSignedJWT(jwk, serializedJWT);
+    }
+
+    @Benchmark
+    public boolean validateWithVerificationKey() {
+        SignedJWT parsed = tokenGenerator.parseSignedJWT(serializedJWT);
+        return tokenGenerator.validateSignedJWT(jwkService.verificationKey(parsed.getHeader().getKeyID()).get(), parsed);
+    }
+
+    @Benchmark
+    public JWEObject encryptJWT() {
+        return tokenGenerator.encryptJWT(jwk, signedJWT);
+    }
+
+    @Benchmark
+    public SignedJWT decryptJWT() throws ParseException {
+        return tokenGenerator.decryptJWT(jwk, JWEObject.parse(serializedJWE));
+    }
+}
@@ -0,0 +1,126 @@
+package io.basswood.webauthn.benchmark;
+
+import io.basswood.webauthn.repository.BulkheadDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A queueing model of a login storm, not a measurement of the server: it compares the Tomcat sized platform pool with
+ * one virtual thread per request behind the {@link BulkheadDataSource}, but runs neither {@code WebAuthnService} nor
+ * Tomcat nor a real connection pool. Every JMH thread is a client with one request in flight; a request holds a
+ * connection from a semaphore standing in for the pool for {@code dbMillis} and then sleeps for another
+ * {@code ioMillis} without one (other queries, writing the response). Throughput is requests per millisecond, the
+ * sample time run reports the per request p99. Its numbers only show how the two thread models queue for the given
+ * service times; {@link WebAuthnServiceBenchmark} measures what the ceremonies themselves cost.
+ * <p>
+ * With the defaults the 200 platform threads are the bottleneck (200 / 10ms) well before the 50 connections are
+ * (50 / 2ms), which is the situation the virtual thread mode is meant for.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Threads(400)
+@Fork(1)
+public class VirtualThreadBenchmark {
+    @Param({"platform", "virtual"})
+    public String threads;
+    @Param("200")
+    public int platformThreads;
+    @Param("50")
+    public int connections;
+    @Param("2")
+    public long dbMillis;
+    @Param("8")
+    public long ioMillis;
+
+    private ExecutorService executor;
+    private BulkheadDataSource dataSource;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        executor = switch (threads) {
+            case "platform" -> Executors.newFixedThreadPool(platformThreads);
+            case "virtual" -> Executors.newVirtualThreadPerTaskExecutor();
+            default -> throw new IllegalArgumentException(threads);
+        };
+        dataSource = new BulkheadDataSource(new SimulatedPool(connections), connections, 30_000, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public Object request() throws Exception {
+        return executor.submit(() -> {
+            try (Connection ignored = dataSource.getConnection()) {
+                Thread.sleep(dbMillis);
+            }
+            Thread.sleep(ioMillis);
+            return Boolean.TRUE;
+        }).get();
+    }
+
+    /**
+     * Stands in for the connection pool: hands out at most {@code size} connections and makes everyone else wait.
+     */
+    static class SimulatedPool extends AbstractDataSource {
+        private Semaphore available;
+
+        SimulatedPool(int size) {
+            this.available = new Semaphore(size, true);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            try {
+                if (!available.tryAcquire(30, TimeUnit.SECONDS)) {
+                    throw new SQLTransientConnectionException("Connection is not available");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLTransientConnectionException("Interrupted", e);
+            }
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                    (proxy, method, args) -> {
+                        if ("close".equals(method.getName())) {
+                            available.release();
+                        }
+                        return null;
+                    });
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return getConnection();
+        }
+    }
+}
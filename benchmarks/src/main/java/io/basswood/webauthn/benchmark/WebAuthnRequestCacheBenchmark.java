@@ -0,0 +1,174 @@
+package io.basswood.webauthn.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import io.basswood.webauthn.model.request.RequestType;
+import io.basswood.webauthn.model.request.WebAuthnRequestEntity;
+import io.basswood.webauthn.service.WebAuthnRequestCache;
+import io.basswood.webauthn.service.challenge.ChallengeRequestCodec;
+import io.basswood.webauthn.service.challenge.ChallengeStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization cost of the pending ceremony requests: {@link ChallengeRequestCodec} on its own, and a save/load round
+ * trip through {@link WebAuthnRequestCache} on a store that encodes on save and decodes on load the way
+ * {@code JdbcChallengeStore} does, minus the SQL.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebAuthnRequestCacheBenchmark {
+    private static final String REQUEST_ID = "benchmark";
+
+    @Param({"true", "false"})
+    public boolean compression;
+
+    private ChallengeRequestCodec codec;
+    private WebAuthnRequestCache webAuthnRequestCache;
+    private PublicKeyCredentialCreationOptions creationOptions;
+    private AssertionRequest assertionRequest;
+    private byte[] encodedCreationOptions;
+    private byte[] encodedAssertionRequest;
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        // A registration request with five excluded credentials, big enough to be deflated.
+        creationOptions = PublicKeyCredentialCreationOptions.fromJson("""
+                {
+                  "rp": {"name": "Example", "id": "example.com"},
+                  "user": {
+                    "name": "homer.simpson@gmail.com",
+                    "displayName": "Homer Simpson",
+                    "id": "a951d907-aa0b-461e-8cdf-96559b358a9b"
+                  },
+                  "challenge": "Tw5GFfndG3k2XPky9dx3iFytYJo0oSzA-Z-F2FEx5NQ",
+                  "pubKeyCredParams": [
+                    {"alg": -7, "type": "public-key"},
+                    {"alg": -8, "type": "public-key"},
+                    {"alg": -257, "type": "public-key"}
+                  ],
+                  "timeout": 300,
+                  "excludeCredentials": [
+                    {"type": "public-key", "id": "AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8", "transports": ["internal"]},
+                    {"type": "public-key", "id": "ICEiIyQlJicoKSorLC0uLzAxMjM0NTY3ODk6Ozw9Pj8", "transports": ["usb"]},
+                    {"type": "public-key", "id": "QEFCQ0RFRkdISUpLTE1OT1BRUlNUVVZXWFlaW1xdXl8", "transports": ["nfc"]},
+                    {"type": "public-key", "id": "YGFiY2RlZmdoaWprbG1ub3BxcnN0dXZ3eHl6e3x9fn8", "transports": ["hybrid"]},
+                    {"type": "public-key", "id": "gIGCg4SFhoeIiYqLjI2Oj5CRkpOUlZaXmJmam5ydnp8", "transports": ["ble"]}
+                  ],
+                  "authenticatorSelection": {"authenticatorAttachment": "cross-platform"},
+                  "attestation": "none",
+                  "extensions": {"credProps": true}
+                }
+                """);
+        assertionRequest = AssertionRequest.fromJson("""
+                {
+                  "publicKeyCredentialRequestOptions": {
+                    "challenge": "xzBTOExJL-JGQovaqpKn4e66bMYLhrJ1004-zM3qaxk",
+                    "timeout": 300,
+                    "rpId": "example.com",
+                    "allowCredentials": [
+                      {"type": "public-key", "id": "AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8", "transports": ["internal"]}
+                    ],
+                    "extensions": {}
+                  },
+                  "username": "homer.simpson@gmail.com"
+                }
+                """);
+        codec = new ChallengeRequestCodec(compression, 512);
+        encodedCreationOptions = codec.encode(creationOptions);
+        encodedAssertionRequest = codec.encode(assertionRequest);
+        webAuthnRequestCache = new WebAuthnRequestCache(new EncodingChallengeStore(codec));
+    }
+
+    @Benchmark
+    public byte[] encodeRegistration() {
+        return codec.encode(creationOptions);
+    }
+
+    @Benchmark
+    public Object decodeRegistration() {
+        return codec.decode(encodedCreationOptions, RequestType.REGISTRATION);
+    }
+
+    @Benchmark
+    public byte[] encodeAssertion() {
+        return codec.encode(assertionRequest);
+    }
+
+    @Benchmark
+    public Object decodeAssertion() {
+        return codec.decode(encodedAssertionRequest, RequestType.ASSERTION);
+    }
+
+    @Benchmark
+    public PublicKeyCredentialCreationOptions registrationRoundTrip() {
+        webAuthnRequestCache.saveRequest(REQUEST_ID, creationOptions);
+        return webAuthnRequestCache.loadRequest(REQUEST_ID, PublicKeyCredentialCreationOptions.class);
+    }
+
+    @Benchmark
+    public AssertionRequest assertionRoundTrip() {
+        webAuthnRequestCache.saveRequest(REQUEST_ID, assertionRequest);
+        return webAuthnRequestCache.loadRequest(REQUEST_ID, AssertionRequest.class);
+    }
+
+    /**
+     * Keeps only the encoded bytes, like a row of {@code webauthn_request_cache}.
+     */
+    static class EncodingChallengeStore implements ChallengeStore {
+        private final ChallengeRequestCodec codec;
+        private final Map<String, WebAuthnRequestEntity> rows = new ConcurrentHashMap<>();
+
+        EncodingChallengeStore(ChallengeRequestCodec codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        public boolean putIfAbsent(WebAuthnRequestEntity request) {
+            WebAuthnRequestEntity row = WebAuthnRequestEntity.builder()
+                    .requestId(request.getRequestId())
+                    .requestType(request.getRequestType())
+                    .expiryTime(request.getExpiryTime())
+                    .request(codec.encode(request.getPayload()))
+                    .build();
+            return rows.putIfAbsent(row.getRequestId(), row) == null;
+        }
+
+        @Override
+        public Optional<WebAuthnRequestEntity> consume(String requestId, RequestType requestType) {
+            WebAuthnRequestEntity stored = rows.get(requestId);
+            if (stored == null || stored.getRequestType() != requestType || !rows.remove(requestId, stored)) {
+                return Optional.empty();
+            }
+            stored.setPayload(codec.decode(stored.getRequest(), stored.getRequestType()));
+            return Optional.of(stored);
+        }
+
+        @Override
+        public boolean remove(String requestId) {
+            return rows.remove(requestId) != null;
+        }
+    }
+}
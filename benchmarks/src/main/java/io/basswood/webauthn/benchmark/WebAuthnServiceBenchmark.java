@@ -0,0 +1,190 @@
+package io.basswood.webauthn.benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.data.AuthenticatorAttachment;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
+import io.basswood.authenticator.model.VirtualAuthenticator;
+import io.basswood.webauthn.dto.RegistrationRequestDTO;
+import io.basswood.webauthn.model.credential.CredentialRepositoryImpl;
+import io.basswood.webauthn.model.rp.RelyingPartyEntity;
+import io.basswood.webauthn.model.rp.RelyingPartyOrigin;
+import io.basswood.webauthn.model.user.User;
+import io.basswood.webauthn.model.user.Username;
+import io.basswood.webauthn.service.NimbusJOSEHelper;
+import io.basswood.webauthn.service.RelyingPartyCache;
+import io.basswood.webauthn.service.RelyingPartyService;
+import io.basswood.webauthn.service.SignatureCounterUpdater;
+import io.basswood.webauthn.service.UserService;
+import io.basswood.webauthn.service.WebAuthnRequestCache;
+import io.basswood.webauthn.service.WebAuthnService;
+import io.basswood.webauthn.service.challenge.InMemoryChallengeStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The four ceremony calls of {@link WebAuthnService} against {@link InMemoryRepositories}, an in memory challenge store
+ * and real {@link VirtualAuthenticator} responses. The finish benchmarks prepare a fresh start request and authenticator
+ * response before every invocation, outside of the measured time; registrations use a new username every time as the
+ * authenticator holds one credential per user. The start benchmarks remove the request they saved, so the store does
+ * not fill up.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebAuthnServiceBenchmark {
+    private static final String ORIGIN = "example.com";
+    private static final String USERNAME = "homer.simpson@gmail.com";
+
+    private ObjectMapper objectMapper;
+    private InMemoryRepositories repositories;
+    private InMemoryChallengeStore challengeStore;
+    private WebAuthnService webAuthnService;
+    private VirtualAuthenticator authenticator;
+    private RegistrationRequestDTO registrationRequest;
+
+    // Prepared per invocation for the finish benchmarks.
+    private String requestId;
+    private String credentialJson;
+
+    @Setup(Level.Trial)
+    public void setup() throws JsonProcessingException {
+        objectMapper = new ObjectMapper().registerModule(new Jdk8Module());
+        repositories = new InMemoryRepositories();
+        challengeStore = new InMemoryChallengeStore();
+        RelyingPartyEntity relyingParty = RelyingPartyEntity.builder()
+                .id(ORIGIN)
+                .name("Example")
+                .allowOriginPort(true)
+                .allowOriginSubdomain(true)
+                .timeout(300_000L) // milliseconds, the first authenticator response is slow while the JIT warms up
+                .origins(Set.of(RelyingPartyOrigin.builder().origin(ORIGIN).build()))
+                .build();
+        RelyingPartyService relyingPartyService = new RelyingPartyService(null, null) {
+            @Override
+            public Optional<RelyingPartyEntity> findByOrigin(String origin) {
+                return Optional.of(relyingParty);
+            }
+        };
+        UserService userService = new UserService(repositories.userRepository(), repositories.usernameRepository(), new SecureRandom());
+        CredentialRepositoryImpl credentialRepository = new CredentialRepositoryImpl(userService, repositories.credentialRepository());
+        JdbcTemplate counterTemplate = new JdbcTemplate() {
+            @Override
+            public int update(String sql, Object... args) {
+                return 1;
+            }
+        };
+        webAuthnService = new WebAuthnService(
+                new RelyingPartyCache(relyingPartyService, credentialRepository, null),
+                userService,
+                credentialRepository,
+                repositories.credentialRepository(),
+                new WebAuthnRequestCache(challengeStore),
+                new SignatureCounterUpdater(counterTemplate, new SimpleMeterRegistry(), SignatureCounterUpdater.Mode.sync, 0, 1),
+                null);
+        authenticator = VirtualAuthenticator.builder()
+                .aaguid(UUID.randomUUID())
+                .attachment(AuthenticatorAttachment.PLATFORM)
+                .authenticatorTransport(AuthenticatorTransport.INTERNAL)
+                .key(new NimbusJOSEHelper().createECKey(KeyUse.SIGNATURE, Curve.P_256, Duration.ofDays(1)))
+                .build();
+        User user = User.builder()
+                .userHandle(UUID.randomUUID().toString())
+                .displayName("Homer Simpson")
+                .usernames(Set.of(Username.builder().username(USERNAME).build()))
+                .build();
+        user.getUsernames().forEach(username -> username.setUser(user));
+        userService.createUser(user);
+        registrationRequest = RegistrationRequestDTO.builder().username(USERNAME).build();
+        // One registered credential for the assertion benchmarks.
+        prepareRegistration(registrationRequest);
+        webAuthnService.finishRegistration(ORIGIN, requestId, credentialJson);
+    }
+
+    @Benchmark
+    public PublicKeyCredentialCreationOptions startRegistration() {
+        String registrationId = UUID.randomUUID().toString();
+        PublicKeyCredentialCreationOptions options = webAuthnService.startRegistration(registrationId, ORIGIN, registrationRequest);
+        challengeStore.remove(registrationId);
+        return options;
+    }
+
+    @Benchmark
+    public PublicKeyCredentialRequestOptions startAssertion() {
+        String loginHandle = UUID.randomUUID().toString();
+        PublicKeyCredentialRequestOptions options = webAuthnService.startAssertion(ORIGIN, loginHandle, USERNAME);
+        challengeStore.remove(loginHandle);
+        return options;
+    }
+
+    @Benchmark
+    public void finishRegistration(RegistrationInvocation invocation) {
+        webAuthnService.finishRegistration(ORIGIN, requestId, credentialJson);
+    }
+
+    @Benchmark
+    public AssertionResult finishAssertion(AssertionInvocation invocation) {
+        return webAuthnService.finishAssertion(ORIGIN, requestId, credentialJson);
+    }
+
+    @State(Scope.Thread)
+    public static class RegistrationInvocation {
+        @Setup(Level.Invocation)
+        public void prepare(WebAuthnServiceBenchmark benchmark) throws JsonProcessingException {
+            benchmark.prepareRegistration(RegistrationRequestDTO.builder()
+                    .username(UUID.randomUUID() + "@example.com")
+                    .displayName("Benchmark User")
+                    .build());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AssertionInvocation {
+        @Setup(Level.Invocation)
+        public void prepare(WebAuthnServiceBenchmark benchmark) throws JsonProcessingException {
+            benchmark.prepareAssertion();
+        }
+    }
+
+    private void prepareRegistration(RegistrationRequestDTO request) throws JsonProcessingException {
+        requestId = UUID.randomUUID().toString();
+        PublicKeyCredentialCreationOptions options = webAuthnService.startRegistration(requestId, ORIGIN, request);
+        credentialJson = objectMapper.writeValueAsString(authenticator.create(options));
+    }
+
+    private void prepareAssertion() throws JsonProcessingException {
+        requestId = UUID.randomUUID().toString();
+        PublicKeyCredentialRequestOptions options = webAuthnService.startAssertion(ORIGIN, requestId, USERNAME);
+        credentialJson = objectMapper.writeValueAsString(authenticator.get(options));
+    }
+}
@@ -77,5 +77,20 @@ CREATE TABLE `webauthn_request_cache` (
   `requestType` varchar(16) NOT NULL,
   `createdTime` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
   `expiryTime` timestamp NOT NULL DEFAULT (CURRENT_TIMESTAMP + INTERVAL 30 DAY),
-  `request` JSON NOT NULL
+  `request` BLOB NOT NULL,
+  KEY `idx_expiry_time` (`expiryTime`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+
+CREATE TABLE `webauthn_lease` (
+  `name` varchar(64) NOT NULL PRIMARY KEY,
+  `owner` varchar(128) NOT NULL,
+  `expiryTime` timestamp(3) NOT NULL
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
+
+CREATE TABLE `webauthn_revoked_token` (
+  `jti` varchar(128) NOT NULL PRIMARY KEY,
+  `expiryTime` timestamp(3) NOT NULL,
+  `revokedTime` timestamp(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  KEY `idx_revoked_time` (`revokedTime`),
+  KEY `idx_expiry_time` (`expiryTime`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
@@ -0,0 +1,8 @@
+-- Upgrades a database set up before the request cache was stored as CBOR: the request column changes from JSON to
+-- BLOB, which sql-02-setup-schema.sql creates for a new database. Without it every ceremony start fails to insert.
+-- The rows are ceremonies in progress, kept for minutes, and a JSON row cannot be read as CBOR, so they are removed
+-- rather than converted. Run it with the application stopped, a ceremony started before has to be started again.
+USE webauthn_basswood;
+
+TRUNCATE TABLE `webauthn_request_cache`;
+ALTER TABLE `webauthn_request_cache` MODIFY `request` BLOB NOT NULL;
@@ -0,0 +1,7 @@
+-- Upgrades a database set up before webauthn_request_cache had an index on expiryTime, which sql-02-setup-schema.sql
+-- creates for a new database. Without it every run of the challenge store reaper scans the whole table to find the
+-- expired rows. It can run with the application up, MySQL builds the index online. It fails with a duplicate key name
+-- error when the index is already there, which is safe to ignore.
+USE webauthn_basswood;
+
+ALTER TABLE `webauthn_request_cache` ADD KEY `idx_expiry_time` (`expiryTime`);
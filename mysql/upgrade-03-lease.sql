@@ -0,0 +1,11 @@
+-- Upgrades a database set up before webauthn_lease existed, which sql-02-setup-schema.sql creates for a new database.
+-- The lease lets one node at a time rotate the JWKs, create a missing signing or encryption key and re-encrypt the
+-- webauthn_jwk rows. Without it those steps fail on every node. Run it before starting the upgraded application; it
+-- does nothing when the table is already there.
+USE webauthn_basswood;
+
+CREATE TABLE IF NOT EXISTS `webauthn_lease` (
+  `name` varchar(64) NOT NULL PRIMARY KEY,
+  `owner` varchar(128) NOT NULL,
+  `expiryTime` timestamp(3) NOT NULL
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
@@ -0,0 +1,13 @@
+-- Upgrades a database set up before webauthn_revoked_token existed, which sql-02-setup-schema.sql creates for a new
+-- database. Token revocation is on by default (basswood.security.jwt.revocation.enabled) and the application does not
+-- start without this table. Run it before starting the upgraded application; it does nothing when the table is
+-- already there.
+USE webauthn_basswood;
+
+CREATE TABLE IF NOT EXISTS `webauthn_revoked_token` (
+  `jti` varchar(128) NOT NULL PRIMARY KEY,
+  `expiryTime` timestamp(3) NOT NULL,
+  `revokedTime` timestamp(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+  KEY `idx_revoked_time` (`revokedTime`),
+  KEY `idx_expiry_time` (`expiryTime`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_0900_ai_ci;
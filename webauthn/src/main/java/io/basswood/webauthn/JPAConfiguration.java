@@ -1,6 +1,11 @@
 package io.basswood.webauthn;
 
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.basswood.webauthn.repository.BulkheadDataSource;
 import io.basswood.webauthn.secret.SecretManager;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
@@ -15,6 +20,7 @@ import javax.sql.DataSource;
  * @author shamualr
  * @since 1.0
  */
+@Slf4j
 @Configuration
 @EnableJpaRepositories(basePackages = {"io.basswood.webauthn"})
 @EntityScan(basePackages = {"io.basswood.webauthn.model.*"})
@@ -25,16 +31,46 @@ public class JPAConfiguration {
     private String username;
     @Value("${basswood.datasource.driver-class-name}")
     private String driverClassName;
+    @Value("${basswood.datasource.bulkhead.enabled:false}")
+    private Boolean bulkheadEnabled;
+    @Value("${basswood.datasource.bulkhead.max-concurrent:10}")
+    private Integer bulkheadMaxConcurrent;
+    @Value("${basswood.datasource.bulkhead.acquire-timeout-millis:1000}")
+    private Long bulkheadAcquireTimeoutMillis;
     @Autowired
     private SecretManager secretManager;
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
 
     @Bean
     public DataSource dataSource() {
-        return DataSourceBuilder.create()
+        DataSource dataSource = DataSourceBuilder.create()
                 .url(url)
                 .username(username)
                 .password(secretManager.getDatabasePassword())
                 .driverClassName(driverClassName)
                 .build();
+        if (dataSource instanceof HikariDataSource hikariDataSource) {
+            secretManager.addReloadListener(reloaded -> rotatePassword(hikariDataSource, reloaded.getDatabasePassword()));
+        }
+        if (!bulkheadEnabled) {
+            return dataSource;
+        }
+        return new BulkheadDataSource(dataSource, bulkheadMaxConcurrent, bulkheadAcquireTimeoutMillis, meterRegistry);
+    }
+
+    /**
+     * New connections log in with the new password, idle ones are closed now and busy ones when they are returned.
+     */
+    private static void rotatePassword(HikariDataSource dataSource, String password) {
+        if (password.equals(dataSource.getPassword())) {
+            return;
+        }
+        dataSource.getHikariConfigMXBean().setPassword(password);
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        if (pool != null) {
+            pool.softEvictConnections();
+        }
+        log.info("Database password rotated, connections are replaced");
     }
 }
@@ -6,33 +6,56 @@ import io.basswood.webauthn.exception.GlobalErrorHandler;
 import io.basswood.webauthn.exception.RootException;
 import io.basswood.webauthn.model.credential.CredentialRepositoryImpl;
 import io.basswood.webauthn.repository.JWKRepository;
+import io.basswood.webauthn.repository.JdbcLease;
 import io.basswood.webauthn.repository.RegisteredCredentialEntityRepository;
 import io.basswood.webauthn.repository.RelyingPartyOriginRepository;
 import io.basswood.webauthn.repository.RelyingPartyRepository;
 import io.basswood.webauthn.repository.UserRepository;
 import io.basswood.webauthn.repository.UsernameRepository;
-import io.basswood.webauthn.repository.WebAuthnRequestRepository;
 import io.basswood.webauthn.rest.JWKController;
 import io.basswood.webauthn.rest.JWTController;
 import io.basswood.webauthn.rest.RelyingPartyController;
 import io.basswood.webauthn.rest.UserController;
 import io.basswood.webauthn.rest.WebAuthnController;
+import io.basswood.webauthn.secret.EncryptionService;
+import io.basswood.webauthn.secret.RandomProvider;
+import io.basswood.webauthn.secret.StripedDrbgRandomProvider;
 import io.basswood.webauthn.security.JWTFilter;
+import io.basswood.webauthn.security.RoleMapping;
+import io.basswood.webauthn.security.VerifiedTokenCache;
+import io.basswood.webauthn.service.CryptoExecutor;
+import io.basswood.webauthn.service.JWKReEncryptionJob;
+import io.basswood.webauthn.service.JWKRotationScheduler;
 import io.basswood.webauthn.service.JWKService;
+import io.basswood.webauthn.service.RelyingPartyCache;
 import io.basswood.webauthn.service.RelyingPartyService;
+import io.basswood.webauthn.service.SignatureCounterUpdater;
+import io.basswood.webauthn.service.TokenRevocationService;
 import io.basswood.webauthn.service.UserService;
 import io.basswood.webauthn.service.WebAuthnRequestCache;
 import io.basswood.webauthn.service.WebAuthnService;
+import io.basswood.webauthn.service.challenge.ChallengeRequestCodec;
+import io.basswood.webauthn.service.challenge.ChallengeStore;
+import io.basswood.webauthn.service.challenge.ChallengeStoreReaper;
+import io.basswood.webauthn.service.challenge.ChallengeStoreType;
+import io.basswood.webauthn.service.challenge.InMemoryChallengeStore;
+import io.basswood.webauthn.service.challenge.JdbcChallengeStore;
+import io.basswood.webauthn.service.challenge.WriteThroughChallengeStore;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.RestController;
 
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.Executors;
 
 /**
  * @author shamualr
@@ -56,21 +79,36 @@ public class MainConfiguration {
     @Autowired
     private JWKRepository jwkRepository;
     @Autowired
-    private WebAuthnRequestRepository webAuthnRequestRepository;
-    @Autowired
     private SecurityConfigurationProperties securityConfigurationProperties;
+    @Autowired
+    private WebAuthnConfigurationProperties webAuthnConfigurationProperties;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
 
     @Autowired
     private Jackson2ObjectMapperBuilder jackson2ObjectMapperBuilder;
+    @Autowired
+    private MeterRegistry meterRegistry;
+    @Autowired
+    private EncryptionService encryptionService;
 
     // Services
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public RandomProvider randomProvider() {
+        // DRBG generates in memory. getInstanceStrong() resolves to NativePRNGBlocking on Linux, which reads
+        // /dev/random inside a synchronized block and so pins (and may block) the virtual thread's carrier.
+        return new StripedDrbgRandomProvider(securityConfigurationProperties.getRandomStripes(),
+                Duration.ofSeconds(securityConfigurationProperties.getRandomReseedSeconds()), meterRegistry);
+    }
+
     @Bean
-    public SecureRandom secureRandom() {
-        try {
-            return SecureRandom.getInstanceStrong();
-        } catch (NoSuchAlgorithmException e) {
-            throw new RootException("Failed to create SecureRandom instance");
-        }
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandlerCustomizer() {
+        return protocolHandler -> {
+            if (webAuthnConfigurationProperties.getVirtualThreadsEnabled()) {
+                protocolHandler.setExecutor(Executors.newThreadPerTaskExecutor(
+                        Thread.ofVirtual().name("webauthn-vt-", 0).factory()));
+            }
+        };
     }
 
     @Bean
@@ -84,7 +122,7 @@ public class MainConfiguration {
     }
     @Bean
     public UserService userService() {
-        return new UserService(userRepository, usernameRepository, secureRandom());
+        return new UserService(userRepository, usernameRepository, randomProvider());
     }
 
     @Bean
@@ -97,31 +135,142 @@ public class MainConfiguration {
         return new CredentialRepositoryImpl(userService(), registeredCredentialEntityRepository);
     }
 
+    @Bean
+    public RelyingPartyCache relyingPartyCache() {
+        return new RelyingPartyCache(relyingPartyService(), credentialRepository(), meterRegistry);
+    }
+
     @Bean
     public WebAuthnService webAuthnService() {
         return new WebAuthnService(
-                relyingPartyService(),
+                relyingPartyCache(),
                 userService(),
                 credentialRepository(),
                 registeredCredentialEntityRepository,
-                webAuthnRequestCache()
+                webAuthnRequestCache(),
+                signatureCounterUpdater(),
+                webAuthnConfigurationProperties.getCryptoExecutorEnabled() ? cryptoExecutor() : null,
+                randomProvider()
         );
     }
 
+    @Bean(destroyMethod = "shutdown")
+    @Lazy
+    public CryptoExecutor cryptoExecutor() {
+        return new CryptoExecutor(webAuthnConfigurationProperties.getCryptoExecutorThreads(),
+                webAuthnConfigurationProperties.getCryptoExecutorQueueCapacity(), meterRegistry);
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public SignatureCounterUpdater signatureCounterUpdater() {
+        return new SignatureCounterUpdater(jdbcTemplate, meterRegistry,
+                webAuthnConfigurationProperties.getSignatureCounterMode(),
+                webAuthnConfigurationProperties.getSignatureCounterMaxDelayMillis(),
+                webAuthnConfigurationProperties.getSignatureCounterMaxBatchSize());
+    }
+
     @Bean
     public JWKService jwkService(){
-        return new JWKService(jwkRepository);
+        // a new key is used once every node has it in the key set, and every verifier's cached copy has expired
+        Duration jwksRefresh = Duration.ofSeconds(securityConfigurationProperties.getJwksRefreshSeconds());
+        return new JWKService(jwkRepository, jwksRefresh,
+                jwksRefresh.plusSeconds(securityConfigurationProperties.getJwksMaxAgeSeconds()),
+                Duration.ofSeconds(securityConfigurationProperties.getJwkRotationSwitchAheadSeconds()),
+                jwkRotationLease());
+    }
+
+    @Bean
+    public ChallengeStore challengeStore() {
+        return switch (webAuthnConfigurationProperties.getChallengeStoreType()) {
+            case memory -> inMemoryChallengeStore();
+            case jdbc -> jdbcChallengeStore();
+            case write_through -> new WriteThroughChallengeStore(inMemoryChallengeStore(), jdbcChallengeStore());
+        };
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public JWKRotationScheduler jwkRotationScheduler() {
+        // a key must verify every token it signed, until the token expires
+        if (securityConfigurationProperties.getJwkRotationRetireAfterSeconds()
+                < securityConfigurationProperties.getTokenRevocationMaxTokenLifetimeSeconds()) {
+            throw new RootException("basswood.security.jwk.rotation.retire-after-seconds must be at least "
+                    + "basswood.security.jwt.revocation.max-token-lifetime-seconds");
+        }
+        return new JWKRotationScheduler(jwkService(), jwkRotationLease(), meterRegistry,
+                securityConfigurationProperties.getJwkRotationEnabled(),
+                securityConfigurationProperties.getJwkRotationRateSeconds(),
+                Duration.ofSeconds(securityConfigurationProperties.getJwkRotationAheadOfTimeSeconds()),
+                Duration.ofSeconds(securityConfigurationProperties.getJwkRotationRetireAfterSeconds()));
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public JWKReEncryptionJob jwkReEncryptionJob() {
+        JdbcLease lease = new JdbcLease(jdbcTemplate, "jwk-re-encryption", UUID.randomUUID().toString(),
+                Duration.ofSeconds(securityConfigurationProperties.getReEncryptionLeaseSeconds()));
+        return new JWKReEncryptionJob(jdbcTemplate, encryptionService, lease, meterRegistry,
+                securityConfigurationProperties.getReEncryptionEnabled(),
+                securityConfigurationProperties.getReEncryptionRateSeconds(),
+                securityConfigurationProperties.getReEncryptionChunkSize(),
+                Duration.ofMillis(securityConfigurationProperties.getReEncryptionThrottleMillis()));
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public TokenRevocationService tokenRevocationService() {
+        return new TokenRevocationService(jdbcTemplate, meterRegistry,
+                securityConfigurationProperties.getTokenRevocationEnabled(),
+                securityConfigurationProperties.getTokenRevocationRefreshSeconds(),
+                securityConfigurationProperties.getTokenRevocationExpectedInsertions(),
+                securityConfigurationProperties.getTokenRevocationFalsePositiveProbability());
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public ChallengeStoreReaper challengeStoreReaper() {
+        return new ChallengeStoreReaper(jdbcTemplate, meterRegistry,
+                webAuthnConfigurationProperties.getChallengeStoreReaperEnabled()
+                        && webAuthnConfigurationProperties.getChallengeStoreType() != ChallengeStoreType.memory,
+                webAuthnConfigurationProperties.getChallengeStoreReaperRateSeconds(),
+                webAuthnConfigurationProperties.getChallengeStoreReaperBatchSize(),
+                webAuthnConfigurationProperties.getChallengeStoreReaperMaxBatchesPerRun());
     }
 
     @Bean
     public WebAuthnRequestCache webAuthnRequestCache() {
-        return new WebAuthnRequestCache(webAuthnRequestRepository);
+        return new WebAuthnRequestCache(challengeStore());
+    }
+
+    /**
+     * A new owner on every call, so the scheduler and a request creating a missing key exclude each other too.
+     */
+    private JdbcLease jwkRotationLease() {
+        return new JdbcLease(jdbcTemplate, "jwk-rotation", UUID.randomUUID().toString(),
+                Duration.ofSeconds(securityConfigurationProperties.getJwkRotationLeaseSeconds()));
+    }
+
+    private JdbcChallengeStore jdbcChallengeStore() {
+        return new JdbcChallengeStore(jdbcTemplate, new ChallengeRequestCodec(
+                webAuthnConfigurationProperties.getChallengeStoreCompressionEnabled(),
+                webAuthnConfigurationProperties.getChallengeStoreCompressionMinSize()));
+    }
+
+    private InMemoryChallengeStore inMemoryChallengeStore() {
+        return new InMemoryChallengeStore(webAuthnConfigurationProperties.getChallengeStoreShards(),
+                webAuthnConfigurationProperties.getChallengeStoreMaxEntriesPerShard());
     }
 
     // Filter
     @Bean
     public JWTFilter jwtFilter(){
-        return new JWTFilter(jwkService(), objectMapper(), securityConfigurationProperties.getDisableJwtFilter());
+        return new JWTFilter(jwkService(), objectMapper(), securityConfigurationProperties.getDisableJwtFilter(),
+                new RoleMapping(securityConfigurationProperties.getAuthorizationRoutes()),
+                securityConfigurationProperties.getVerifiedTokenCacheEnabled() ? verifiedTokenCache() : null,
+                securityConfigurationProperties.getTokenRevocationEnabled() ? tokenRevocationService() : null);
+    }
+
+    @Bean
+    @Lazy
+    public VerifiedTokenCache verifiedTokenCache() {
+        return new VerifiedTokenCache(jwkService(), securityConfigurationProperties.getVerifiedTokenCacheMaxSize(),
+                Duration.ofSeconds(securityConfigurationProperties.getVerifiedTokenCacheMaxTtlSeconds()), meterRegistry);
     }
 
     //Controllers
@@ -142,16 +291,16 @@ public class MainConfiguration {
 
     @Bean
     public RelyingPartyController relyingPartyController() {
-        return new RelyingPartyController(relyingPartyService());
+        return new RelyingPartyController(relyingPartyService(), relyingPartyCache());
     }
 
     @Bean
     public JWKController jwkController(){
-        return new JWKController(jwkService());
+        return new JWKController(jwkService(), Duration.ofSeconds(securityConfigurationProperties.getJwksMaxAgeSeconds()));
     }
     @Bean
     public JWTController jwtController(){
-        return new JWTController(jwkService(), securityConfigurationProperties);
+        return new JWTController(jwkService(), securityConfigurationProperties, tokenRevocationService());
     }
 
     @Bean
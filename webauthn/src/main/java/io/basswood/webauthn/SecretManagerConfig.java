@@ -2,15 +2,19 @@ package io.basswood.webauthn;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.basswood.webauthn.exception.RootException;
+import io.basswood.webauthn.secret.AesKeyring;
 import io.basswood.webauthn.secret.EncryptionService;
 import io.basswood.webauthn.secret.KeystoreConfig;
+import io.basswood.webauthn.secret.KeystoreWatcher;
 import io.basswood.webauthn.secret.SecretManager;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
 
-import javax.crypto.SecretKey;
 import java.io.IOException;
+import java.time.Duration;
 
 /**
  * @author shamualr
@@ -20,6 +24,8 @@ import java.io.IOException;
 public class SecretManagerConfig {
     @Autowired
     private SecurityConfigurationProperties securityConfigurationProperties;
+    @Autowired
+    private MeterRegistry meterRegistry;
 //    @Autowired
 //    private Jackson2ObjectMapperBuilder jackson2ObjectMapperBuilder;
 
@@ -45,7 +51,29 @@ public class SecretManagerConfig {
     @Bean
     public EncryptionService encryptionService() {
         SecretManager secretManager = secretManager();
-        SecretKey aesKey = secretManager.getAesKey();
-        return EncryptionService.build(aesKey);
+        AesKeyring aesKeyring = secretManager.getAesKeyring();
+        EncryptionService encryptionService = EncryptionService.build(aesKeyring, securityConfigurationProperties.getDecryptedValueCacheEnabled()
+                ? securityConfigurationProperties.getDecryptedValueCacheMaxSize() : 0, meterRegistry);
+        secretManager.addReloadListener(reloaded -> encryptionService.setKeyring(reloaded.getAesKeyring()));
+        return encryptionService;
+    }
+
+    /**
+     * Watches the keystore files, if both are files; a classpath resource inside the application jar cannot change.
+     */
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public KeystoreWatcher keystoreWatcher() {
+        Resource keyStore = securityConfigurationProperties.getKeyStoreLocation();
+        Resource keyStoreConfig = securityConfigurationProperties.getKeyStoreConfig();
+        boolean files = keyStore.isFile() && keyStoreConfig.isFile();
+        try {
+            return new KeystoreWatcher(secretManager(),
+                    files ? keyStore.getFile().toPath() : null,
+                    files ? keyStoreConfig.getFile().toPath() : null,
+                    files && securityConfigurationProperties.getKeyStoreWatchEnabled(),
+                    Duration.ofMillis(securityConfigurationProperties.getKeyStoreWatchQuietPeriodMillis()));
+        } catch (IOException e) {
+            throw new RootException("Error creating KeystoreWatcher", e);
+        }
     }
 }
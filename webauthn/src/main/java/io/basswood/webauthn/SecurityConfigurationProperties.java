@@ -5,6 +5,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.io.Resource;
 
+import java.util.List;
+
 /**
  * @author shamualr
  * @since 1.0
@@ -14,6 +16,14 @@ import org.springframework.core.io.Resource;
 public class SecurityConfigurationProperties {
     @Value("${basswood.security.jwt.filter.disable}")
     private Boolean disableJwtFilter;
+    @Value("${basswood.security.jwt.filter.verified-token-cache.enabled:false}")
+    private Boolean verifiedTokenCacheEnabled;
+    @Value("${basswood.security.jwt.filter.verified-token-cache.max-size:10000}")
+    private Long verifiedTokenCacheMaxSize;
+    @Value("${basswood.security.jwt.filter.verified-token-cache.max-ttl-seconds:300}")
+    private Integer verifiedTokenCacheMaxTtlSeconds;
+    @Value("${basswood.security.authorization.routes}")
+    private List<String> authorizationRoutes;
     @Value("${basswood.security.jwt.default-subject}")
     private String defaultSubject;
     @Value("${basswood.security.jwt.default-issuer}")
@@ -24,10 +34,60 @@ public class SecurityConfigurationProperties {
     private Integer defaultLifetimeSeconds;
     @Value("${basswood.security.jwt.print-new-token-on-startup}")
     private Boolean printNewTokenOnStartup;
+    @Value("${basswood.security.jwt.batch.max-size:10000}")
+    private Integer jwtBatchMaxSize;
+    @Value("${basswood.security.jwt.revocation.enabled:true}")
+    private Boolean tokenRevocationEnabled;
+    @Value("${basswood.security.jwt.revocation.refresh-seconds:5}")
+    private Long tokenRevocationRefreshSeconds;
+    @Value("${basswood.security.jwt.revocation.expected-insertions:100000}")
+    private Long tokenRevocationExpectedInsertions;
+    @Value("${basswood.security.jwt.revocation.false-positive-probability:0.01}")
+    private Double tokenRevocationFalsePositiveProbability;
+    @Value("${basswood.security.jwt.revocation.max-token-lifetime-seconds:158112000}")
+    private Long tokenRevocationMaxTokenLifetimeSeconds;
+    @Value("${basswood.security.jwks.max-age-seconds:300}")
+    private Integer jwksMaxAgeSeconds;
+    @Value("${basswood.security.jwks.refresh-seconds:300}")
+    private Integer jwksRefreshSeconds;
+    @Value("${basswood.security.jwk.rotation.enabled:true}")
+    private Boolean jwkRotationEnabled;
+    @Value("${basswood.security.jwk.rotation.rate-seconds:300}")
+    private Long jwkRotationRateSeconds;
+    @Value("${basswood.security.jwk.rotation.ahead-of-time-seconds:604800}")
+    private Long jwkRotationAheadOfTimeSeconds;
+    @Value("${basswood.security.jwk.rotation.switch-ahead-seconds:86400}")
+    private Long jwkRotationSwitchAheadSeconds;
+    @Value("${basswood.security.jwk.rotation.retire-after-seconds:${basswood.security.jwt.revocation.max-token-lifetime-seconds:158112000}}")
+    private Long jwkRotationRetireAfterSeconds;
+    @Value("${basswood.security.jwk.rotation.lease-seconds:60}")
+    private Long jwkRotationLeaseSeconds;
+    @Value("${basswood.security.encryption.decrypted-value-cache.enabled:false}")
+    private Boolean decryptedValueCacheEnabled;
+    @Value("${basswood.security.encryption.decrypted-value-cache.max-size:1000}")
+    private Long decryptedValueCacheMaxSize;
+    @Value("${basswood.security.encryption.re-encryption.enabled:true}")
+    private Boolean reEncryptionEnabled;
+    @Value("${basswood.security.encryption.re-encryption.rate-seconds:300}")
+    private Long reEncryptionRateSeconds;
+    @Value("${basswood.security.encryption.re-encryption.chunk-size:100}")
+    private Integer reEncryptionChunkSize;
+    @Value("${basswood.security.encryption.re-encryption.throttle-millis:100}")
+    private Long reEncryptionThrottleMillis;
+    @Value("${basswood.security.encryption.re-encryption.lease-seconds:60}")
+    private Long reEncryptionLeaseSeconds;
+    @Value("${basswood.security.random.stripes:0}")
+    private Integer randomStripes;
+    @Value("${basswood.security.random.reseed-seconds:600}")
+    private Long randomReseedSeconds;
     @Value("${basswood.security.keystore.keystore-file}")
     private Resource keyStoreLocation;
     @Value("${basswood.security.keystore.keystore-config-file}")
     private Resource keyStoreConfig;
+    @Value("${basswood.security.keystore.watch.enabled:true}")
+    private Boolean keyStoreWatchEnabled;
+    @Value("${basswood.security.keystore.watch.quiet-period-millis:2000}")
+    private Long keyStoreWatchQuietPeriodMillis;
     @Value("${basswood.security.keystore.load-jwk-file-on-startup}")
     private Boolean loadJwkFileOnStartup;
     @Value("${basswood.security.keystore.test-jwk-file}")
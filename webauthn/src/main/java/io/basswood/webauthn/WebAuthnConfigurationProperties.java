@@ -0,0 +1,48 @@
+package io.basswood.webauthn;
+
+import io.basswood.webauthn.service.SignatureCounterUpdater;
+import io.basswood.webauthn.service.challenge.ChallengeStoreType;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * @author shamualr
+ * @since 1.0
+ */
+@Configuration
+@Data
+public class WebAuthnConfigurationProperties {
+    @Value("${basswood.webauthn.challenge-store.type:write_through}")
+    private ChallengeStoreType challengeStoreType;
+    @Value("${basswood.webauthn.challenge-store.memory.shards:16}")
+    private Integer challengeStoreShards;
+    @Value("${basswood.webauthn.challenge-store.memory.max-entries-per-shard:10000}")
+    private Integer challengeStoreMaxEntriesPerShard;
+    @Value("${basswood.webauthn.challenge-store.compression.enabled:true}")
+    private Boolean challengeStoreCompressionEnabled;
+    @Value("${basswood.webauthn.challenge-store.compression.min-size:512}")
+    private Integer challengeStoreCompressionMinSize;
+    @Value("${basswood.webauthn.challenge-store.reaper.enabled:true}")
+    private Boolean challengeStoreReaperEnabled;
+    @Value("${basswood.webauthn.challenge-store.reaper.rate-seconds:60}")
+    private Long challengeStoreReaperRateSeconds;
+    @Value("${basswood.webauthn.challenge-store.reaper.batch-size:500}")
+    private Integer challengeStoreReaperBatchSize;
+    @Value("${basswood.webauthn.challenge-store.reaper.max-batches-per-run:100}")
+    private Integer challengeStoreReaperMaxBatchesPerRun;
+    @Value("${basswood.webauthn.signature-counter.mode:sync}")
+    private SignatureCounterUpdater.Mode signatureCounterMode;
+    @Value("${basswood.webauthn.signature-counter.max-delay-millis:250}")
+    private Long signatureCounterMaxDelayMillis;
+    @Value("${basswood.webauthn.signature-counter.max-batch-size:500}")
+    private Integer signatureCounterMaxBatchSize;
+    @Value("${basswood.webauthn.virtual-threads.enabled:false}")
+    private Boolean virtualThreadsEnabled;
+    @Value("${basswood.webauthn.crypto-executor.enabled:false}")
+    private Boolean cryptoExecutorEnabled;
+    @Value("${basswood.webauthn.crypto-executor.threads:0}")
+    private Integer cryptoExecutorThreads;
+    @Value("${basswood.webauthn.crypto-executor.queue-capacity:64}")
+    private Integer cryptoExecutorQueueCapacity;
+}
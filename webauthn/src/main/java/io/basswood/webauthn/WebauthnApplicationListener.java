@@ -4,9 +4,10 @@ import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jose.jwk.KeyUse;
 import com.nimbusds.jwt.SignedJWT;
-import io.basswood.webauthn.dto.JWKCreateDTO;
+import io.basswood.webauthn.exception.EntityNotFound;
 import io.basswood.webauthn.exception.RootException;
 import io.basswood.webauthn.model.jwk.JWKEntity;
+import io.basswood.webauthn.model.jwk.JWKEntityConverter;
 import io.basswood.webauthn.model.token.Role;
 import io.basswood.webauthn.model.token.Token;
 import io.basswood.webauthn.service.JWKService;
@@ -35,36 +36,33 @@ public class WebauthnApplicationListener implements ApplicationListener<Applicat
     private SecurityConfigurationProperties securityConfigurationProperties;
 
     private TokenGenerator tokenGenerator;
+    private JWKEntityConverter converter;
 
     public WebauthnApplicationListener(JWKService jwkService, SecurityConfigurationProperties securityConfigurationProperties) {
         this.jwkService = jwkService;
         this.securityConfigurationProperties = securityConfigurationProperties;
         this.tokenGenerator = new TokenGenerator();
+        this.converter = new JWKEntityConverter();
     }
 
     @EventListener
     @Override
     public void onApplicationEvent(ApplicationStartedEvent event) {
         JWK jwk = null;
-        boolean needNewKey = false;
-        JWKSet jwks = jwkService.jwks();
-        if (jwks == null || jwks.isEmpty()) {
-            needNewKey = true;
-        } else {
-            Optional<JWK> any = jwks.getKeys().stream().filter(k -> k.getKeyUse() == KeyUse.SIGNATURE).findAny();
-            if (any.isEmpty()) {
-                needNewKey = true;
-            } else {
-                jwk = any.get();
-            }
-        }
-        if (needNewKey) {
+        // Also warms up the public key set snapshot. Only the key used to print a token is decrypted.
+        JWKSet jwks = jwkService.jwksSnapshot().jwkSet();
+        Optional<JWK> any = jwks.getKeys().stream().filter(k -> k.getKeyUse() == KeyUse.SIGNATURE).findAny();
+        if (any.isEmpty()) {
             jwk = (Boolean.TRUE.equals(securityConfigurationProperties.getLoadJwkFileOnStartup()))
                     ? loadAndSaveDefaultJWK()
-                    : jwkService.createKey(JWKCreateDTO.builder().build());
+                    : jwkService.latestSignatureKey(); // created under the rotation lease, not by every node
         }
 
         if (securityConfigurationProperties.getPrintNewTokenOnStartup()) {
+            if (jwk == null) {
+                jwk = converter.toJWK(jwkService.getJWKEntity(any.get().getKeyID())
+                        .orElseThrow(() -> new EntityNotFound(JWKEntity.class, any.get().getKeyID())));
+            }
             printNewToken(jwk);
         }
     }
@@ -0,0 +1,19 @@
+package io.basswood.webauthn.dto;
+
+import io.basswood.webauthn.exception.BadRequest;
+
+import java.util.Date;
+
+/**
+ * @param jti            id of the token to revoke
+ * @param expirationTime expiry of the token, the revocation is kept until then. Defaults to the longest token lifetime
+ * @author shamualr
+ * @since 1.0
+ */
+public record TokenRevocationDto(String jti, Date expirationTime) {
+    public TokenRevocationDto {
+        if (jti == null || jti.isBlank()) {
+            throw new BadRequest("jti cannot be null or empty");
+        }
+    }
+}
@@ -2,6 +2,7 @@ package io.basswood.webauthn.exception;
 
 public enum ErrorCode {
     server_error,
+    server_busy,
     bad_request,
     not_found,
     duplicate_entity,
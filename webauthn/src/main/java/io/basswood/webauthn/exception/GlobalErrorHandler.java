@@ -1,6 +1,7 @@
 package io.basswood.webauthn.exception;
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatusCode;
 import org.springframework.http.ResponseEntity;
@@ -21,6 +22,11 @@ public class GlobalErrorHandler extends ResponseEntityExceptionHandler {
 
     @ExceptionHandler({Exception.class, RuntimeException.class})
     public ResponseEntity<ErrorDto> handleUncaughtExceptions(Exception ex, WebRequest request) {
+        // e.g. a ServerBusy from the connection bulkhead arrives wrapped in a CannotCreateTransactionException.
+        RootException cause = ExceptionUtils.throwableOfType(ex, RootException.class);
+        if (cause != null) {
+            return handleRootException(cause, request);
+        }
         log.error("Uncaught exception", ex);
         return handleRootException(new RootException(ex), request);
     }
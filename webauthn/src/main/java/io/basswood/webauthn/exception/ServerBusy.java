@@ -0,0 +1,19 @@
+package io.basswood.webauthn.exception;
+
+import org.springframework.http.HttpStatus;
+
+public class ServerBusy extends RootException {
+    private static final String DEFAULT_MESSAGE = "Server busy, try again later";
+
+    public ServerBusy() {
+        this(DEFAULT_MESSAGE);
+    }
+
+    public ServerBusy(String message) {
+        this(message, null);
+    }
+
+    public ServerBusy(String message, Throwable cause) {
+        super(message, cause, ErrorCode.server_busy, HttpStatus.SERVICE_UNAVAILABLE.value());
+    }
+}
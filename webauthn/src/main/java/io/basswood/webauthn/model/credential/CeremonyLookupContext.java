@@ -0,0 +1,129 @@
+package io.basswood.webauthn.model.credential;
+
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import io.basswood.webauthn.model.user.User;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Memoizes the user and credential lookups made by {@link CredentialRepositoryImpl} while one ceremony call (a start or
+ * a finish) is running, so that the Yubico library asking for the same user or credential several times only costs one
+ * query. A context is bound to the current thread by {@link #open()} and dropped when the returned {@link Scope} is
+ * closed. Users are only remembered when found, so a user created during the ceremony is seen. Credentials are also
+ * remembered when missing, which lets a ceremony check up front that a new credential id is not taken. The context can
+ * be handed to another thread with {@link #attach(CeremonyLookupContext)}.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public class CeremonyLookupContext {
+    private static final ThreadLocal<CeremonyLookupContext> CURRENT = new ThreadLocal<>();
+
+    private Map<String, User> usersByUsername = new ConcurrentHashMap<>();
+    private Map<String, User> usersByHandle = new ConcurrentHashMap<>();
+    private Map<String, Optional<RegisteredCredentialEntity>> credentialsById = new ConcurrentHashMap<>();
+    private Map<String, Set<PublicKeyCredentialDescriptor>> descriptorsByUsername = new ConcurrentHashMap<>();
+
+    /**
+     * Binds a new context to the current thread. When a context is already bound, for example because one ceremony
+     * method calls another, that context is kept and closing the returned scope does nothing.
+     *
+     * @return scope to close when the ceremony call ends
+     */
+    public static Scope open() {
+        if (CURRENT.get() != null) {
+            return () -> {
+            };
+        }
+        CURRENT.set(new CeremonyLookupContext());
+        return CURRENT::remove;
+    }
+
+    /**
+     * Binds the given context to the current thread, used to run part of a ceremony on another thread. The previously
+     * bound context is restored when the returned scope is closed.
+     *
+     * @param context context to bind, may be null
+     * @return scope to close when the work on this thread ends
+     */
+    public static Scope attach(CeremonyLookupContext context) {
+        CeremonyLookupContext previous = CURRENT.get();
+        if (context == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(context);
+        }
+        return () -> {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        };
+    }
+
+    /**
+     * @return the context bound to the current thread, or null when no ceremony is running
+     */
+    public static CeremonyLookupContext current() {
+        return CURRENT.get();
+    }
+
+    public Optional<User> userByUsername(String username, Function<String, Optional<User>> loader) {
+        User user = usersByUsername.get(username);
+        if (user == null) {
+            user = loader.apply(username).orElse(null);
+            if (user != null) {
+                remember(username, user);
+            }
+        }
+        return Optional.ofNullable(user);
+    }
+
+    public Optional<User> userByHandle(String userHandle, Function<String, Optional<User>> loader) {
+        User user = usersByHandle.get(userHandle);
+        if (user == null) {
+            user = loader.apply(userHandle).orElse(null);
+            if (user != null) {
+                usersByHandle.put(userHandle, user);
+            }
+        }
+        return Optional.ofNullable(user);
+    }
+
+    public Optional<RegisteredCredentialEntity> credentialById(String credentialId,
+                                                               Function<String, Optional<RegisteredCredentialEntity>> loader) {
+        Optional<RegisteredCredentialEntity> credential = credentialsById.get(credentialId);
+        if (credential == null) {
+            credential = loader.apply(credentialId);
+            credentialsById.put(credentialId, credential);
+        }
+        return credential;
+    }
+
+    public Set<PublicKeyCredentialDescriptor> descriptorsByUsername(String username,
+                                                                    Function<String, Set<PublicKeyCredentialDescriptor>> loader) {
+        return descriptorsByUsername.computeIfAbsent(username, loader);
+    }
+
+    /**
+     * Records a user that was created or loaded outside of the context.
+     */
+    public void remember(String username, User user) {
+        usersByUsername.put(username, user);
+        usersByHandle.put(user.getUserHandle(), user);
+    }
+
+    /**
+     * Closes a {@link CeremonyLookupContext}.
+     */
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
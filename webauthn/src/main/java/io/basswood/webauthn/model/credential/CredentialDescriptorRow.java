@@ -0,0 +1,12 @@
+package io.basswood.webauthn.model.credential;
+
+/**
+ * A credential id with one of its transports, null for a credential without any. Read by
+ * {@link io.basswood.webauthn.repository.RegisteredCredentialEntityRepository#findDescriptorRowsByUsername(String)}
+ * in place of whole {@link RegisteredCredentialEntity} rows.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public record CredentialDescriptorRow(String credentialId, String transport) {
+}
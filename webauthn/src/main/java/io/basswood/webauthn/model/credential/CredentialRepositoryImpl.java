@@ -15,10 +15,12 @@ import io.basswood.webauthn.service.UserService;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 public class CredentialRepositoryImpl implements CredentialRepository {
 
@@ -31,18 +33,21 @@ public class CredentialRepositoryImpl implements CredentialRepository {
         this.registeredCredentialEntityRepository = registeredCredentialEntityRepository;
     }
 
+    /**
+     * Reads only the credential ids and transports, see
+     * {@link RegisteredCredentialEntityRepository#findDescriptorRowsByUsername(String)}.
+     *
+     * @throws EntityNotFound if there is no user with this username
+     */
     @Override
     public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
-        User user = findByUsername(username);
-        if (user == null) {
-            throw new RootException();
-        }
-        Set<RegisteredCredentialEntity> credentials = registeredCredentialEntityRepository.findByUser(user);
-        if (credentials == null || credentials.isEmpty()) {
-            //throw new AuthenticatorException();
-            return new LinkedHashSet<>();
+        CeremonyLookupContext context = CeremonyLookupContext.current();
+        Set<PublicKeyCredentialDescriptor> descriptors = context == null ? findDescriptors(username)
+                : context.descriptorsByUsername(username, this::findDescriptors);
+        if (descriptors.isEmpty() && findUserByUsername(username).isEmpty()) {
+            throw new EntityNotFound(User.class, username);
         }
-        return credentials.stream().map(credential -> map(credential)).collect(Collectors.toSet());
+        return descriptors;
     }
 
     @Override
@@ -60,14 +65,14 @@ public class CredentialRepositoryImpl implements CredentialRepository {
 
     @Override
     public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
-        Optional<User> userOptional = userService.findUserById(userHandle.getBase64Url());
+        Optional<User> userOptional = findUserByHandle(userHandle.getBase64Url());
         return userOptional.isPresent() ? Optional.of(userOptional.get().getUsernames().stream().findFirst().get().getUsername())
                 : Optional.empty();
     }
 
     @Override
     public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
-        Optional<RegisteredCredentialEntity> optional = registeredCredentialEntityRepository.findById(credentialId.getBase64Url());
+        Optional<RegisteredCredentialEntity> optional = findCredentialById(credentialId.getBase64Url());
         if (!optional.isPresent()) {
             return Optional.empty();
         }
@@ -89,7 +94,7 @@ public class CredentialRepositoryImpl implements CredentialRepository {
 
     @Override
     public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
-        Optional<RegisteredCredentialEntity> optional = registeredCredentialEntityRepository.findById(credentialId.getBase64Url());
+        Optional<RegisteredCredentialEntity> optional = findCredentialById(credentialId.getBase64Url());
         if (!optional.isPresent()) {
             return Collections.emptySet();
         }
@@ -107,20 +112,55 @@ public class CredentialRepositoryImpl implements CredentialRepository {
     }
 
     public User findByUsername(String username) {
-        return userService.findUserByUsername(username)
+        return findUserByUsername(username)
                 .orElseThrow(() -> new EntityNotFound(User.class, username));
     }
 
-    private PublicKeyCredentialDescriptor map(RegisteredCredentialEntity credential) {
+    /**
+     * Same as {@link UserService#findUserByUsername(String)}, memoized while a {@link CeremonyLookupContext} is open.
+     */
+    public Optional<User> findUserByUsername(String username) {
+        CeremonyLookupContext context = CeremonyLookupContext.current();
+        return context == null ? userService.findUserByUsername(username)
+                : context.userByUsername(username, userService::findUserByUsername);
+    }
+
+    private Optional<User> findUserByHandle(String userHandle) {
+        CeremonyLookupContext context = CeremonyLookupContext.current();
+        return context == null ? userService.findUserById(userHandle)
+                : context.userByHandle(userHandle, userService::findUserById);
+    }
+
+    /**
+     * Loads a credential by its base64url id, memoized while a {@link CeremonyLookupContext} is open.
+     */
+    public Optional<RegisteredCredentialEntity> findCredentialById(String credentialId) {
+        CeremonyLookupContext context = CeremonyLookupContext.current();
+        return context == null ? registeredCredentialEntityRepository.findById(credentialId)
+                : context.credentialById(credentialId, registeredCredentialEntityRepository::findById);
+    }
+
+    private Set<PublicKeyCredentialDescriptor> findDescriptors(String username) {
+        List<CredentialDescriptorRow> rows = registeredCredentialEntityRepository.findDescriptorRowsByUsername(username);
+        Map<String, Set<AuthenticatorTransport>> transportsByCredentialId = new LinkedHashMap<>();
+        for (CredentialDescriptorRow row : rows) {
+            Set<AuthenticatorTransport> transports = transportsByCredentialId.computeIfAbsent(row.credentialId(),
+                    credentialId -> new LinkedHashSet<>());
+            if (row.transport() != null) {
+                transports.add(AuthenticatorTransport.of(row.transport()));
+            }
+        }
+        Set<PublicKeyCredentialDescriptor> descriptors = new LinkedHashSet<>();
+        transportsByCredentialId.forEach((credentialId, transports) -> descriptors.add(map(credentialId, transports)));
+        return descriptors;
+    }
+
+    private PublicKeyCredentialDescriptor map(String credentialId, Set<AuthenticatorTransport> transports) {
         try {
             return PublicKeyCredentialDescriptor.builder()
-                    .id(ByteArray.fromBase64Url(credential.getCredentialId()))
+                    .id(ByteArray.fromBase64Url(credentialId))
                     .type(PublicKeyCredentialType.PUBLIC_KEY)
-                    .transports(
-                            credential.getTransports() == null || credential.getTransports().isEmpty() ?
-                                    null :
-                                    credential.getTransports().stream().map(t -> AuthenticatorTransport.of(t.getTransport())).collect(Collectors.toSet())
-                    )
+                    .transports(transports.isEmpty() ? null : transports)
                     .build();
         } catch (Base64UrlException e) {
             throw new RootException(e);
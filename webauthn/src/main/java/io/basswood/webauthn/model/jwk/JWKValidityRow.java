@@ -0,0 +1,14 @@
+package io.basswood.webauthn.model.jwk;
+
+import java.util.Date;
+
+/**
+ * When a key was created and when it expires. Read by
+ * {@link io.basswood.webauthn.repository.JWKRepository#findValidityRowsByKeyUseAndExpiryTimeAfter(KeyUseEnum, Date)}
+ * to choose the key in use without decrypting the others.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public record JWKValidityRow(String kid, Date createdTime, Date expiryTime) {
+}
@@ -1,9 +1,21 @@
 package io.basswood.webauthn.model.request;
 
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import lombok.Getter;
+
 /**
  * @author shamualr
  * @since 1.0
  */
 public enum RequestType {
-    REGISTRATION, ASSERTION
+    REGISTRATION(PublicKeyCredentialCreationOptions.class),
+    ASSERTION(AssertionRequest.class);
+
+    @Getter
+    private final Class<?> payloadClass;
+
+    RequestType(Class<?> payloadClass) {
+        this.payloadClass = payloadClass;
+    }
 }
@@ -7,6 +7,7 @@ import jakarta.persistence.Enumerated;
 import jakarta.persistence.Id;
 import jakarta.persistence.Temporal;
 import jakarta.persistence.TemporalType;
+import jakarta.persistence.Transient;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Getter;
@@ -44,6 +45,14 @@ public class WebAuthnRequestEntity {
     @Temporal(TemporalType.TIMESTAMP)
     @Builder.Default
     private Date expiryTime = Date.from(Instant.now().plusMillis(DEFAULT_REQUEST_TIMEOUT.toMillis()));
-    @Column(name = "request", columnDefinition = "json")
-    private String request;
+    /**
+     * The request encoded by {@link io.basswood.webauthn.service.challenge.ChallengeRequestCodec}.
+     */
+    @Column(name = "request", columnDefinition = "blob")
+    private byte[] request;
+    /**
+     * The deserialized request, a {@link RequestType#getPayloadClass()} instance. Not persisted.
+     */
+    @Transient
+    private Object payload;
 }
@@ -6,6 +6,7 @@ import jakarta.persistence.Convert;
 import jakarta.persistence.Entity;
 import jakarta.persistence.EnumType;
 import jakarta.persistence.Enumerated;
+import jakarta.persistence.FetchType;
 import jakarta.persistence.Id;
 import jakarta.persistence.OneToMany;
 import jakarta.persistence.Table;
@@ -60,7 +61,7 @@ public class RelyingPartyEntity {
     @Convert(converter = org.hibernate.type.NumericBooleanConverter.class)
     private Boolean allowOriginSubdomain;
 
-    @OneToMany(mappedBy = "relyingPartyEntity", cascade = CascadeType.ALL)
+    @OneToMany(mappedBy = "relyingPartyEntity", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
     private Set<RelyingPartyOrigin> origins;
 
     @Column(name = "timeout")
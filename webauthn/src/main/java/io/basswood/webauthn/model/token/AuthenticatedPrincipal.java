@@ -0,0 +1,74 @@
+package io.basswood.webauthn.model.token;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+import io.basswood.webauthn.service.TokenGenerator;
+import jakarta.servlet.http.HttpServletRequest;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The caller of a protected API, built by the {@code JWTFilter} from the claims of a validated token and attached to
+ * the request as {@value #REQUEST_ATTRIBUTE}. Controllers can take it with
+ * {@code @RequestAttribute(name = AuthenticatedPrincipal.REQUEST_ATTRIBUTE, required = false)}. Role names in the
+ * token which are not a {@link Role} are ignored.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public record AuthenticatedPrincipal(String subject, Set<Role> roles, List<String> audience, Instant expiry,
+                                     String jti) {
+    public static final String REQUEST_ATTRIBUTE = "io.basswood.webauthn.AuthenticatedPrincipal";
+
+    public AuthenticatedPrincipal {
+        roles = Collections.unmodifiableSet(roles.isEmpty() ? EnumSet.noneOf(Role.class) : EnumSet.copyOf(roles));
+        audience = audience != null ? List.copyOf(audience) : List.of();
+    }
+
+    public static AuthenticatedPrincipal of(JWTClaimsSet claimsSet) {
+        EnumSet<Role> roles = EnumSet.noneOf(Role.class);
+        switch (claimsSet.getClaim(TokenGenerator.CLAIM_NAME_ROLES)) {
+            case Collection<?> values -> values.forEach(value -> addRole(roles, String.valueOf(value)));
+            case String value -> addRole(roles, value);
+            case null, default -> {
+            }
+        }
+        Instant expiry = claimsSet.getExpirationTime() != null ? claimsSet.getExpirationTime().toInstant() : Instant.MAX;
+        return new AuthenticatedPrincipal(claimsSet.getSubject(), roles, claimsSet.getAudience(), expiry,
+                claimsSet.getJWTID());
+    }
+
+    public static Optional<AuthenticatedPrincipal> from(HttpServletRequest request) {
+        return Optional.ofNullable((AuthenticatedPrincipal) request.getAttribute(REQUEST_ATTRIBUTE));
+    }
+
+    public boolean hasRole(Role role) {
+        return roles.contains(role);
+    }
+
+    /**
+     * @param required roles of which one is required
+     * @return true if the principal has at least one of them
+     */
+    public boolean hasAnyRole(Set<Role> required) {
+        return !Collections.disjoint(roles, required);
+    }
+
+    public boolean isExpired(Instant now) {
+        return !expiry.isAfter(now);
+    }
+
+    private static void addRole(EnumSet<Role> roles, String name) {
+        for (Role role : Role.values()) {
+            if (role.name().equals(name)) {
+                roles.add(role);
+                return;
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import io.basswood.webauthn.model.credential.RegisteredCredentialEntity;
 import jakarta.persistence.CascadeType;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
 import jakarta.persistence.Id;
 import jakarta.persistence.OneToMany;
 import jakarta.persistence.Table;
@@ -30,7 +31,7 @@ public class User {
     @Column(name = "displayName")
     private String displayName;
 
-    @OneToMany(mappedBy = "user", cascade = CascadeType.ALL)
+    @OneToMany(mappedBy = "user", cascade = CascadeType.ALL, fetch = FetchType.EAGER)
     private Set<Username> usernames;
 
     @OneToMany(mappedBy = "user", cascade = CascadeType.ALL)
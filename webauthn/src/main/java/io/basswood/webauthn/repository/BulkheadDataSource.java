@@ -0,0 +1,133 @@
+package io.basswood.webauthn.repository;
+
+import io.basswood.webauthn.exception.ServerBusy;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits how many connections can be checked out of the target {@link DataSource} at the same time. A permit is taken
+ * in {@link #getConnection()} and given back when the connection is closed. A caller that cannot get a permit within
+ * {@code acquireTimeoutMillis} gets a {@link ServerBusy} instead of joining the pool's own wait queue.
+ * <p>
+ * This matters when requests run on virtual threads: there is no thread pool left to bound the number of requests in
+ * flight, and without the bulkhead every one of them would wait inside the connection pool until its timeout. Waiters
+ * park on a fair {@link Semaphore}, which does not pin the carrier thread.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public class BulkheadDataSource extends DelegatingDataSource {
+    public static final String METRIC_AVAILABLE = "webauthn.datasource.bulkhead.available";
+    public static final String METRIC_WAITING = "webauthn.datasource.bulkhead.waiting";
+    public static final String METRIC_REJECTED = "webauthn.datasource.bulkhead.rejected";
+
+    private Semaphore permits;
+    private long acquireTimeoutMillis;
+    private Counter rejected;
+
+    public BulkheadDataSource(DataSource targetDataSource, int maxConcurrent, long acquireTimeoutMillis, MeterRegistry meterRegistry) {
+        super(targetDataSource);
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        if (meterRegistry != null) {
+            this.rejected = Counter.builder(METRIC_REJECTED)
+                    .description("Connection requests rejected by the bulkhead")
+                    .register(meterRegistry);
+            Gauge.builder(METRIC_AVAILABLE, permits, Semaphore::availablePermits)
+                    .description("Connections that can still be checked out")
+                    .register(meterRegistry);
+            Gauge.builder(METRIC_WAITING, permits, Semaphore::getQueueLength)
+                    .description("Threads waiting for a connection permit")
+                    .register(meterRegistry);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        acquire();
+        return guarded(() -> super.getConnection());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        acquire();
+        return guarded(() -> super.getConnection(username, password));
+    }
+
+    public int availablePermits() {
+        return permits.availablePermits();
+    }
+
+    private void acquire() {
+        try {
+            if (permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerBusy("Interrupted while waiting for a database connection", e);
+        }
+        if (rejected != null) {
+            rejected.increment();
+        }
+        throw new ServerBusy("Too many database operations in progress");
+    }
+
+    private Connection guarded(ConnectionSupplier supplier) throws SQLException {
+        Connection connection;
+        try {
+            connection = supplier.get();
+        } catch (SQLException | RuntimeException | Error e) {
+            permits.release();
+            throw e;
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    if ("close".equals(method.getName()) && method.getParameterCount() == 0) {
+                        try {
+                            connection.close();
+                        } finally {
+                            if (released.compareAndSet(false, true)) {
+                                permits.release();
+                            }
+                        }
+                        return null;
+                    }
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "unwrap":
+                            if (((Class<?>) args[0]).isInstance(proxy)) {
+                                return proxy;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getTargetException();
+                    }
+                });
+    }
+
+    @FunctionalInterface
+    private interface ConnectionSupplier {
+        Connection get() throws SQLException;
+    }
+}
@@ -1,13 +1,37 @@
 package io.basswood.webauthn.repository;
 
 import io.basswood.webauthn.model.jwk.JWKEntity;
+import io.basswood.webauthn.model.jwk.JWKValidityRow;
 import io.basswood.webauthn.model.jwk.KeyUseEnum;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 
 public interface JWKRepository extends JpaRepository<JWKEntity, String> {
     Optional<JWKEntity> findDistinctByKid(String kid);
     Optional<JWKEntity> findFirstByKeyUseAndExpiryTimeAfterOrderByExpiryTimeDesc(KeyUseEnum keyUse, Date date);
+
+    boolean existsByExpiryTimeBefore(Date date);
+
+    /**
+     * Only the kids, so that finding the keys to retire does not decrypt them.
+     */
+    @Query("select j.kid from JWKEntity j where j.expiryTime < :date")
+    List<String> findKidByExpiryTimeBefore(Date date);
+
+    /**
+     * All kids, in order. Nothing is decrypted.
+     */
+    @Query("select j.kid from JWKEntity j order by j.kid")
+    List<String> findKids();
+
+    /**
+     * The keys of this use valid after the date, first expiring first. Only the kid and times, nothing is decrypted.
+     */
+    @Query("select new io.basswood.webauthn.model.jwk.JWKValidityRow(j.kid, j.createdTime, j.expiryTime) "
+            + "from JWKEntity j where j.keyUse = :keyUse and j.expiryTime > :date order by j.expiryTime")
+    List<JWKValidityRow> findValidityRowsByKeyUseAndExpiryTimeAfter(KeyUseEnum keyUse, Date date);
 }
@@ -0,0 +1,60 @@
+package io.basswood.webauthn.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+
+/**
+ * A named, time bounded lease in {@code webauthn_lease}, used to let exactly one node of a cluster run a job. A lease
+ * is taken with a conditional update that only succeeds if the lease is free, expired or already held by this owner,
+ * so no connection or lock is held while the job runs. A node that dies while holding the lease blocks the others for
+ * at most {@code duration}.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public class JdbcLease {
+    static final String INSERT = "INSERT IGNORE INTO webauthn_lease (name, owner, expiryTime) VALUES (?, '', ?)";
+    static final String ACQUIRE = "UPDATE webauthn_lease SET owner = ?, expiryTime = ? WHERE name = ? AND (owner = ? OR expiryTime < ?)";
+    static final String RELEASE = "UPDATE webauthn_lease SET expiryTime = ? WHERE name = ? AND owner = ?";
+
+    private JdbcTemplate jdbcTemplate;
+    private String name;
+    private String owner;
+    private Duration duration;
+
+    public JdbcLease(JdbcTemplate jdbcTemplate, String name, String owner, Duration duration) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.name = name;
+        this.owner = owner;
+        this.duration = duration;
+    }
+
+    /**
+     * Takes or renews the lease.
+     *
+     * @return true if this owner holds the lease for the next {@code duration}
+     */
+    public boolean tryAcquire() {
+        long now = System.currentTimeMillis();
+        Timestamp nowTimestamp = new Timestamp(now);
+        jdbcTemplate.update(INSERT, name, new Timestamp(now - 1));
+        return jdbcTemplate.update(ACQUIRE, owner, new Timestamp(now + duration.toMillis()), name, owner, nowTimestamp) == 1;
+    }
+
+    /**
+     * Gives up the lease early, if this owner holds it.
+     */
+    public void release() {
+        jdbcTemplate.update(RELEASE, new Timestamp(System.currentTimeMillis() - 1), name, owner);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Duration getDuration() {
+        return duration;
+    }
+}
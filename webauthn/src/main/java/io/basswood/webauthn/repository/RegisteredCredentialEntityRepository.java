@@ -1,12 +1,24 @@
 package io.basswood.webauthn.repository;
 
+import io.basswood.webauthn.model.credential.CredentialDescriptorRow;
 import io.basswood.webauthn.model.credential.RegisteredCredentialEntity;
 import io.basswood.webauthn.model.user.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 
+import java.util.List;
 import java.util.Set;
 
 public interface RegisteredCredentialEntityRepository extends JpaRepository<RegisteredCredentialEntity, String> {
     Set<RegisteredCredentialEntity> findByUser(User user);
     void deleteByUser(User user);
+
+    /**
+     * The credential ids and transports of the user with this username, a row per transport, in one query which loads
+     * no entity: the allowCredentials and excludeCredentials lists need nothing else of the credentials.
+     */
+    @Query("select new io.basswood.webauthn.model.credential.CredentialDescriptorRow(c.credentialId, t.transport) "
+            + "from RegisteredCredentialEntity c join Username n on n.user = c.user left join c.transports t "
+            + "where n.username = :username")
+    List<CredentialDescriptorRow> findDescriptorRowsByUsername(String username);
 }
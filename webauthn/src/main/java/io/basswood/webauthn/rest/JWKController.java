@@ -5,7 +5,11 @@ import io.basswood.webauthn.dto.JWKCreateDTO;
 import io.basswood.webauthn.exception.EntityNotFound;
 import io.basswood.webauthn.model.jwk.JWKEntity;
 import io.basswood.webauthn.model.jwk.JWKEntityConverter;
+import io.basswood.webauthn.model.token.AuthenticatedPrincipal;
+import io.basswood.webauthn.service.JWKSetSnapshot;
 import io.basswood.webauthn.service.JWKService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -13,20 +17,26 @@ import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestAttribute;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
+import java.time.Duration;
 import java.util.Optional;
 
+@Slf4j
 @RestController
 public class JWKController {
     private static final JWKCreateDTO DEFAULT_JWK_CREATE_DTO = JWKCreateDTO.builder().build();
     private JWKService jwkService;
     private JWKEntityConverter converter;
+    private Duration jwksMaxAge;
 
-    public JWKController(JWKService jwkService) {
+    public JWKController(JWKService jwkService, Duration jwksMaxAge) {
         this.jwkService = jwkService;
+        this.jwksMaxAge = jwksMaxAge;
         this.converter = new JWKEntityConverter();
     }
 
@@ -41,17 +51,35 @@ public class JWKController {
     @GetMapping(value = "/jwk/{kid}", produces = MediaType.APPLICATION_JSON_VALUE)
     public String getJWKById(@PathVariable("kid") String kid,
                           @RequestParam(name = "returnPublicKeyOnly", required = false, defaultValue = "true") Boolean returnPublicKeyOnly) {
+        if (returnPublicKeyOnly) {
+            return jwkService.publicKeyJSON(kid).orElseThrow(() -> new EntityNotFound(JWKEntity.class, kid));
+        }
         Optional<JWKEntity> optional = jwkService.getJWKEntity(kid);
         if (optional.isEmpty()) {
             throw new EntityNotFound(JWKEntity.class, kid);
         }
-        JWK jwk = converter.toJWK(optional.get());
-        return returnPublicKeyOnly ? jwk.toPublicJWK().toJSONString() : jwk.toJSONString();
+        return converter.toJWK(optional.get()).toJSONString();
+    }
+
+    /**
+     * The public key set for token verifiers. The body is pre-serialized and comes with a strong ETag, so a poll with
+     * a matching {@code If-None-Match} is answered with a 304.
+     */
+    @GetMapping(value = "/.well-known/jwks.json", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<byte[]> getJWKSet(WebRequest request) {
+        JWKSetSnapshot snapshot = jwkService.jwksSnapshot();
+        CacheControl cacheControl = CacheControl.maxAge(jwksMaxAge).cachePublic();
+        if (request.checkNotModified(snapshot.etag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(snapshot.etag()).cacheControl(cacheControl).build();
+        }
+        return ResponseEntity.ok().eTag(snapshot.etag()).cacheControl(cacheControl).body(snapshot.json());
     }
 
     @DeleteMapping(value = "/jwk/{kid}")
-    public ResponseEntity removeKey(@PathVariable String kid){
+    public ResponseEntity removeKey(@PathVariable String kid,
+                                    @RequestAttribute(name = AuthenticatedPrincipal.REQUEST_ATTRIBUTE, required = false) AuthenticatedPrincipal principal){
         jwkService.removeKey(kid);
+        log.info("JWK {} removed by {}", kid, principal != null ? principal.subject() : "anonymous");
         return ResponseEntity.status(HttpStatus.NO_CONTENT).build();
     }
 }
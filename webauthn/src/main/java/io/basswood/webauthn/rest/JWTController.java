@@ -1,18 +1,33 @@
 package io.basswood.webauthn.rest;
 
-import com.nimbusds.jose.jwk.JWK;
-import com.nimbusds.jwt.SignedJWT;
 import io.basswood.webauthn.SecurityConfigurationProperties;
+import io.basswood.webauthn.dto.TokenRevocationDto;
+import io.basswood.webauthn.exception.BadRequest;
 import io.basswood.webauthn.model.token.Token;
+import io.basswood.webauthn.service.EncryptionKey;
 import io.basswood.webauthn.service.JWKService;
+import io.basswood.webauthn.service.SigningKey;
 import io.basswood.webauthn.service.TokenGenerator;
+import io.basswood.webauthn.service.TokenRevocationService;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
 @RestController
@@ -20,19 +35,91 @@ public class JWTController {
     private TokenGenerator tokenGenerator;
     private JWKService jwkService;
     private SecurityConfigurationProperties securityConfigurationProperties;
+    private TokenRevocationService tokenRevocationService;
 
-    public JWTController(JWKService jwkService, SecurityConfigurationProperties securityConfigurationProperties) {
+    public JWTController(JWKService jwkService, SecurityConfigurationProperties securityConfigurationProperties,
+                         TokenRevocationService tokenRevocationService) {
         this.tokenGenerator = new TokenGenerator();
         this.jwkService = jwkService;
         this.securityConfigurationProperties = securityConfigurationProperties;
+        this.tokenRevocationService = tokenRevocationService;
     }
 
     @PostMapping(value = "/jwt", produces = MediaType.TEXT_PLAIN_VALUE)
     public String createJWT(@RequestBody Token token) {
+        checkLifetime(token);
         Token tk = setupTokenWithDefaults(token);
-        JWK jwk = jwkService.latestSignatureKey();
-        SignedJWT signedJWT = tokenGenerator.createSignedJWT(jwk, tk);
-        return signedJWT.serialize();
+        return tokenGenerator.sign(jwkService.latestSigningKey(), tk);
+    }
+
+    /**
+     * Mints one token per spec, signed with the latest signature key and, if {@code encrypt}, encrypted with the latest
+     * encryption key. The tokens are written while they are signed, as a JSON array of strings or, if the client
+     * accepts {@code application/x-ndjson}, one JSON string per line.
+     */
+    @PostMapping(value = "/jwt/batch", produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public ResponseEntity<StreamingResponseBody> createJWTs(
+            @RequestBody List<Token> tokens,
+            @RequestParam(name = "encrypt", required = false, defaultValue = "false") Boolean encrypt,
+            @RequestHeader(name = HttpHeaders.ACCEPT, required = false) String accept) {
+        if (tokens.size() > securityConfigurationProperties.getJwtBatchMaxSize()) {
+            throw new BadRequest("At most " + securityConfigurationProperties.getJwtBatchMaxSize() + " tokens per batch");
+        }
+        tokens.forEach(this::checkLifetime); // before the response is committed
+        SigningKey signingKey = jwkService.latestSigningKey();
+        EncryptionKey encryptionKey = encrypt ? tokenGenerator.encryptionKey(jwkService.latestEncryptionKey().toPublicJWK()) : null;
+        boolean ndjson = accept != null && accept.contains(MediaType.APPLICATION_NDJSON_VALUE);
+        StreamingResponseBody body = outputStream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.US_ASCII));
+            writer.write(ndjson ? "" : "[");
+            for (int i = 0; i < tokens.size(); i++) {
+                String jwt = tokenGenerator.sign(signingKey, setupTokenWithDefaults(tokens.get(i)));
+                if (encryptionKey != null) {
+                    jwt = tokenGenerator.encrypt(encryptionKey, jwt);
+                }
+                if (i > 0) {
+                    writer.write(ndjson ? "" : ",");
+                }
+                // compact serializations are base64url and dots, nothing to escape.
+                writer.write('"');
+                writer.write(jwt);
+                writer.write('"');
+                if (ndjson) {
+                    writer.write('\n');
+                }
+            }
+            writer.write(ndjson ? "" : "]");
+            writer.flush();
+        };
+        return ResponseEntity.ok()
+                .contentType(ndjson ? MediaType.APPLICATION_NDJSON : MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
+    /**
+     * Revokes a token on all nodes until it expires. Without an {@code expirationTime} the revocation is kept for the
+     * longest token lifetime.
+     */
+    @PostMapping(value = "/jwt/revocations")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void revokeJWT(@RequestBody TokenRevocationDto revocation) {
+        if (!tokenRevocationService.isEnabled()) {
+            throw new BadRequest("Token revocation is disabled");
+        }
+        Instant expiry = revocation.expirationTime() != null ? revocation.expirationTime().toInstant()
+                : Instant.now().plusSeconds(securityConfigurationProperties.getTokenRevocationMaxTokenLifetimeSeconds());
+        tokenRevocationService.revoke(revocation.jti(), expiry);
+    }
+
+    /**
+     * Rejects a token expiring after the longest token lifetime, the signing key may have been removed by then.
+     */
+    private void checkLifetime(Token token) {
+        Instant latest = Instant.now().plusSeconds(securityConfigurationProperties.getTokenRevocationMaxTokenLifetimeSeconds());
+        if (token.expirationTime() != null && token.expirationTime().toInstant().isAfter(latest)) {
+            throw new BadRequest("expirationTime is more than "
+                    + securityConfigurationProperties.getTokenRevocationMaxTokenLifetimeSeconds() + " seconds away");
+        }
     }
 
     /**
@@ -3,6 +3,7 @@ package io.basswood.webauthn.rest;
 import io.basswood.webauthn.dto.RelyingPartyDto;
 import io.basswood.webauthn.exception.EntityNotFound;
 import io.basswood.webauthn.model.rp.RelyingPartyEntity;
+import io.basswood.webauthn.service.RelyingPartyCache;
 import io.basswood.webauthn.service.RelyingPartyService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.DeleteMapping;
@@ -18,14 +19,17 @@ import java.util.stream.Collectors;
 public class RelyingPartyController {
 
     private RelyingPartyService relyingPartyService;
+    private RelyingPartyCache relyingPartyCache;
 
-    public RelyingPartyController(@Autowired RelyingPartyService relyingPartyService) {
+    public RelyingPartyController(@Autowired RelyingPartyService relyingPartyService, @Autowired RelyingPartyCache relyingPartyCache) {
         this.relyingPartyService = relyingPartyService;
+        this.relyingPartyCache = relyingPartyCache;
     }
 
     @PostMapping("/relying-party")
     public RelyingPartyDto register(@RequestBody RelyingPartyDto dto) {
         RelyingPartyEntity entity = relyingPartyService.createNewRelyingParty(dto);
+        relyingPartyCache.invalidate(entity);
         return toRelyingPartyRecordDto(entity);
     }
 
@@ -40,6 +44,7 @@ public class RelyingPartyController {
     public RelyingPartyDto removeById(@PathVariable String id) {
         RelyingPartyEntity relyingPartyEntity = relyingPartyService.removeById(id)
                 .orElseThrow(() -> new EntityNotFound(RelyingPartyEntity.class, id));
+        relyingPartyCache.invalidate(relyingPartyEntity);
         return toRelyingPartyRecordDto(relyingPartyEntity);
     }
 
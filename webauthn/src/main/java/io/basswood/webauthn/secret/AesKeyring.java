@@ -0,0 +1,40 @@
+package io.basswood.webauthn.secret;
+
+import io.basswood.webauthn.exception.KeystoreException;
+
+import javax.crypto.SecretKey;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The AES keys column values may be encrypted with, by key version. New values are encrypted with the
+ * {@code currentVersion} key, the others are kept to decrypt values written before a rotation.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public record AesKeyring(int currentVersion, Map<Integer, SecretKey> keys) {
+    public static final int DEFAULT_VERSION = 1;
+
+    public AesKeyring {
+        if (!keys.containsKey(currentVersion)) {
+            throw new KeystoreException("No AES key with the current version " + currentVersion);
+        }
+        keys = Map.copyOf(keys);
+    }
+
+    public static AesKeyring of(SecretKey key) {
+        return new AesKeyring(DEFAULT_VERSION, Map.of(DEFAULT_VERSION, key));
+    }
+
+    public SecretKey currentKey() {
+        return keys.get(currentVersion);
+    }
+
+    /**
+     * @return the keys newest version first
+     */
+    public Map<Integer, SecretKey> byVersionDescending() {
+        return new TreeMap<>(keys).descendingMap();
+    }
+}
@@ -1,35 +1,216 @@
 package io.basswood.webauthn.secret;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import io.basswood.webauthn.exception.CryptoException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+
 import javax.crypto.SecretKey;
 import java.nio.charset.StandardCharsets;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
+ * Encrypts column values ({@link AttributeEncryptionConverter}) with AES-GCM, under the current key of an
+ * {@link AesKeyring}. A value is {@code v<key version>:} followed by the Base64 of IV, cipher text and tag, so a value
+ * is decrypted with the key it was encrypted with while the keyring also holds older keys. Values written before the
+ * version header existed are Base64 only; they are tried with every key, newest first, and the GCM tag rejects the
+ * wrong ones. {@link #isCurrent(String)} and {@link #reEncrypt(String)} move values to the current key.
+ * <p>
+ * Hibernate decrypts a column on every
+ * load of its entity, so decrypted values can be cached: loading the same row again then costs a map lookup. The cache
+ * holds plain text on the heap and is off by default.
+ * <p>
+ * The cache key is the IV and the authentication tag, read off the Base64 text. The tag is a MAC of the cipher text
+ * under the key, so it identifies the cipher text as well as a digest of it would, at a cost independent of the value
+ * size (a SHA-256 of a 16 KiB value takes longer than decrypting it). A cipher text carrying the IV and tag of a
+ * cached one but another body gets that plain text unauthenticated, which gives nothing copying the cached cipher
+ * text itself would not.
+ * <p>
+ * {@link #setKeyring(AesKeyring)} replaces the keyring of a running instance, when {@link SecretManager} reloads the
+ * keystore. The keys are swapped in one step, encryptors of keys which did not change are kept.
+ *
  * @author shamualr
  * @since 1.0
  */
 public class EncryptionService {
+    public static final String CACHE_NAME = "webauthn.decrypted-value";
+    public static final String METRIC_GCM_INVOCATIONS = "webauthn.encryption.gcm.invocations";
+    private static final int IV_CHARS = 16; // the 12 byte IV
+    private static final int TAG_CHARS = 24; // whole Base64 quanta covering the 16 byte tag, with any padding
+    private static final int MAX_HEADER_LENGTH = 12; // v, up to 10 digits and :
     private static EncryptionService INSTANCE;
-    private GCMEncryptor gcmEncryptor;
+    private volatile Keys keys;
+    private Cache<String, String> decryptedValues;
+
+    /**
+     * The encryptors of a keyring, newest first, and the current one with its value header.
+     */
+    private record Keys(int currentVersion, GCMEncryptor gcmEncryptor, String header, Map<Integer, GCMEncryptor> encryptors) {
+    }
 
     public EncryptionService(SecretKey key) {
-        this.gcmEncryptor = new GCMEncryptor(key, null);
+        this(key, 0, null);
+    }
+
+    public EncryptionService(SecretKey key, long decryptedCacheSize, MeterRegistry meterRegistry) {
+        this(AesKeyring.of(key), decryptedCacheSize, meterRegistry);
+    }
+
+    /**
+     * @param decryptedCacheSize maximum number of decrypted values to cache, 0 to decrypt every time
+     * @param meterRegistry      registry for the cache metrics, may be null
+     */
+    public EncryptionService(AesKeyring keyring, long decryptedCacheSize, MeterRegistry meterRegistry) {
+        this.keys = keys(keyring, Map.of());
+        if (meterRegistry != null) {
+            // a gauge, the count starts again when the key is replaced
+            Gauge.builder(METRIC_GCM_INVOCATIONS, this, service -> service.keys.gcmEncryptor().getNonceGenerator().invocations())
+                    .description("AES-GCM encryptions with the current key by this instance")
+                    .register(meterRegistry);
+        }
+        if (decryptedCacheSize > 0) {
+            this.decryptedValues = CacheBuilder.newBuilder()
+                    .maximumSize(decryptedCacheSize)
+                    .recordStats()
+                    .build();
+            if (meterRegistry != null) {
+                GuavaCacheMetrics.monitor(meterRegistry, decryptedValues, CACHE_NAME);
+            }
+        }
+    }
+
+    private static Keys keys(AesKeyring keyring, Map<Integer, GCMEncryptor> previous) {
+        Map<Integer, GCMEncryptor> encryptors = new LinkedHashMap<>();
+        keyring.byVersionDescending().forEach((version, key) -> {
+            GCMEncryptor encryptor = previous.get(version);
+            // the same encryptor for the same key, its nonce counter goes on
+            encryptors.put(version, encryptor != null && encryptor.getKey().equals(key) ? encryptor : new GCMEncryptor(key, null));
+        });
+        int currentVersion = keyring.currentVersion();
+        return new Keys(currentVersion, encryptors.get(currentVersion), "v" + currentVersion + ":", encryptors);
+    }
+
+    /**
+     * Replaces the keyring. Values encrypted meanwhile with a key no longer in the keyring cannot be decrypted anymore.
+     */
+    public void setKeyring(AesKeyring keyring) {
+        keys = keys(keyring, keys.encryptors());
+        if (decryptedValues != null) {
+            decryptedValues.invalidateAll(); // a version may now stand for another key
+        }
     }
 
     public String encrypt(String plain) {
-        byte[] cipher = gcmEncryptor.encrypt(plain.getBytes(StandardCharsets.UTF_8));
-        return Base64.getEncoder().encodeToString(cipher);
+        Keys keys = this.keys;
+        byte[] cipher = keys.gcmEncryptor().encrypt(plain.getBytes(StandardCharsets.UTF_8));
+        return keys.header() + Base64.getEncoder().encodeToString(cipher);
+    }
+
+    public String decrypt(String value) {
+        int headerLength = headerLength(value);
+        if (decryptedValues == null) {
+            return decryptValue(value, headerLength);
+        }
+        int ivEnd = headerLength + IV_CHARS;
+        String ivAndTag = value.length() <= ivEnd + TAG_CHARS ? value
+                : value.substring(0, ivEnd) + value.substring(value.length() - TAG_CHARS);
+        String plain = decryptedValues.getIfPresent(ivAndTag);
+        if (plain == null) {
+            plain = decryptValue(value, headerLength);
+            decryptedValues.put(ivAndTag, plain);
+        }
+        return plain;
+    }
+
+    /**
+     * @return true if the value is encrypted with the current key
+     */
+    public boolean isCurrent(String value) {
+        return value.startsWith(keys.header());
+    }
+
+    /**
+     * @return the value encrypted with the current key, the value itself if it already is
+     */
+    public String reEncrypt(String value) {
+        return isCurrent(value) ? value : encrypt(decryptValue(value, headerLength(value)));
+    }
+
+    private String decryptValue(String value, int headerLength) {
+        byte[] cipher = Base64.getDecoder().decode(headerLength == 0 ? value : value.substring(headerLength));
+        Map<Integer, GCMEncryptor> encryptors = keys.encryptors();
+        if (headerLength > 0) {
+            int version = Integer.parseInt(value, 1, headerLength - 1, 10);
+            GCMEncryptor encryptor = encryptors.get(version);
+            if (encryptor == null) {
+                throw new CryptoException("No AES key with version " + version + " in the keyring");
+            }
+            return new String(encryptor.decrypt(cipher), StandardCharsets.UTF_8);
+        }
+        CryptoException failure = null;
+        for (GCMEncryptor encryptor : encryptors.values()) { // newest first
+            try {
+                return new String(encryptor.decrypt(cipher), StandardCharsets.UTF_8);
+            } catch (CryptoException e) {
+                failure = e;
+            }
+        }
+        throw failure;
     }
 
-    public String decrypt(String cipherBase64) {
-        byte[] cipher = Base64.getDecoder().decode(cipherBase64);
-        byte[] plain = gcmEncryptor.decrypt(cipher);
-        return new String(plain, StandardCharsets.UTF_8);
+    /**
+     * @return the length of the {@code v<version>:} header, 0 if the value has none
+     */
+    private static int headerLength(String value) {
+        if (value.isEmpty() || value.charAt(0) != 'v') {
+            return 0;
+        }
+        for (int i = 1; i < Math.min(value.length(), MAX_HEADER_LENGTH); i++) {
+            char c = value.charAt(i);
+            if (c == ':') {
+                return i > 1 ? i + 1 : 0;
+            }
+            if (c < '0' || c > '9') {
+                return 0; // Base64 never has a ':'
+            }
+        }
+        return 0;
+    }
+
+    public int getCurrentVersion() {
+        return keys.currentVersion();
+    }
+
+    /**
+     * @return true once the key has been used for as many encryptions as it safely can, see {@link GCMNonceGenerator}
+     */
+    public boolean isKeyRotationDue() {
+        return keys.gcmEncryptor().getNonceGenerator().isRotationDue();
+    }
+
+    /**
+     * @return statistics of the decrypted value cache, empty if it is disabled
+     */
+    public CacheStats decryptedCacheStats() {
+        return decryptedValues != null ? decryptedValues.stats() : new CacheStats(0, 0, 0, 0, 0, 0);
     }
 
     public static EncryptionService build(SecretKey key){
+        return build(key, 0, null);
+    }
+
+    public static EncryptionService build(SecretKey key, long decryptedCacheSize, MeterRegistry meterRegistry){
+        return build(AesKeyring.of(key), decryptedCacheSize, meterRegistry);
+    }
+
+    public static EncryptionService build(AesKeyring keyring, long decryptedCacheSize, MeterRegistry meterRegistry){
         if(INSTANCE == null){
-            INSTANCE = new EncryptionService(key);
+            INSTANCE = new EncryptionService(keyring, decryptedCacheSize, meterRegistry);
         }
         return INSTANCE;
     }
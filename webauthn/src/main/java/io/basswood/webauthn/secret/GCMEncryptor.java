@@ -7,32 +7,40 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
+ * AES-GCM, with the IV prepended to the cipher text. Every encryption takes a new IV from a {@link GCMNonceGenerator}.
+ * {@code Cipher.getInstance} looks up the provider and builds a new engine on every call, so both directions reuse
+ * idle {@link Cipher} instances from a small pool; a call finding the pool empty creates one, and one returned to a
+ * full pool is dropped.
+ *
  * @author shamualr
  * @since 1.0
  */
 public class GCMEncryptor implements AESEncryptor {
     public static final int GCM_IV_LENGTH = 12;
     public static final int DEFAULT_TAG_LENGTH = 128;
+    public static final int DEFAULT_CIPHER_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
 
     private SecretKey key;
-    private byte[] initializationVector;
+    private GCMNonceGenerator nonceGenerator;
     private byte[] associatedData;
     private int tagLength;
-    private SecureRandom secureRandom;
+    private volatile SegmentedGCMEncryptor segmentedEncryptor;
+    private BlockingQueue<Cipher> ciphers = new ArrayBlockingQueue<>(DEFAULT_CIPHER_POOL_SIZE);
 
     public GCMEncryptor(SecretKey key, byte[] associatedData) {
-        this(key, new SecureRandom(), associatedData, DEFAULT_TAG_LENGTH);
+        this(key, drbg(), associatedData, DEFAULT_TAG_LENGTH);
     }
 
     public GCMEncryptor(SecretKey key, SecureRandom secureRandom, byte[] associatedData) {
@@ -40,51 +48,61 @@ public class GCMEncryptor implements AESEncryptor {
     }
 
     public GCMEncryptor(SecretKey key, SecureRandom secureRandom, byte[] associatedData, int tagLength) {
+        this(key, new GCMNonceGenerator(secureRandom), associatedData, tagLength);
+    }
+
+    public GCMEncryptor(SecretKey key, GCMNonceGenerator nonceGenerator, byte[] associatedData, int tagLength) {
         this.key = key;
-        this.secureRandom = secureRandom;
+        this.nonceGenerator = nonceGenerator;
         this.associatedData = associatedData;
-        this.initializationVector = new byte[GCM_IV_LENGTH];
         this.tagLength = tagLength;
-        secureRandom.nextBytes(initializationVector);
     }
 
-    @Override
-    public void encrypt(InputStream in, OutputStream out) {
+    private static SecureRandom drbg() {
         try {
-            byte[] ciphered = encrypt(in.readAllBytes());
-            out.write(ciphered);
-        } catch (IOException e) {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
             throw new CryptoException(e.getMessage(), e);
         }
     }
 
+    /**
+     * Encrypts the stream in authenticated segments, see {@link SegmentedGCMEncryptor}, so that memory use does not
+     * depend on its size. The output is only readable by {@link #decrypt(InputStream, OutputStream)}.
+     */
+    @Override
+    public void encrypt(InputStream in, OutputStream out) {
+        segmentedEncryptor().encrypt(in, out);
+    }
+
     @Override
     public void decrypt(InputStream in, OutputStream out) {
-        try {
-            byte[] plain = decrypt(in.readAllBytes());
-            out.write(plain);
-        } catch (IOException e) {
-            throw new CryptoException(e.getMessage(), e);
+        segmentedEncryptor().decrypt(in, out);
+    }
+
+    private SegmentedGCMEncryptor segmentedEncryptor() {
+        if (segmentedEncryptor == null) { // racing threads create equivalent instances
+            segmentedEncryptor = new SegmentedGCMEncryptor(key, drbg(), associatedData);
         }
+        return segmentedEncryptor;
     }
 
     @Override
     public byte[] encrypt(byte[] plainData) {
-        byte[] iv = getInitializationVector();
         try {
-            Cipher cipher = Cipher.getInstance(transformation());
-            GCMParameterSpec parameterSpec = new GCMParameterSpec(getTagLength(), iv);
-            cipher.init(Cipher.ENCRYPT_MODE, key, parameterSpec);
+            byte[] out = new byte[GCM_IV_LENGTH + plainData.length + getTagLength() / 8];
+            nonceGenerator.next(out, 0);
+            Cipher cipher = pooledCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(getTagLength(), out, 0, GCM_IV_LENGTH));
             if (associatedData != null) {
                 cipher.updateAAD(associatedData);
             }
-            byte[] cipherText = cipher.doFinal(plainData);
-            ByteBuffer byteBuffer = ByteBuffer.allocate(iv.length + cipherText.length);
-            byteBuffer.put(iv);
-            byteBuffer.put(cipherText);
-            return byteBuffer.array();
+            // straight after the IV, no intermediate cipher text array
+            cipher.doFinal(plainData, 0, plainData.length, out, GCM_IV_LENGTH);
+            ciphers.offer(cipher);
+            return out;
         } catch (InvalidAlgorithmParameterException | NoSuchPaddingException | IllegalBlockSizeException |
-                 NoSuchAlgorithmException | BadPaddingException | InvalidKeyException e) {
+                 NoSuchAlgorithmException | BadPaddingException | InvalidKeyException | ShortBufferException e) {
             throw new CryptoException(e.getMessage(), e);
         }
     }
@@ -92,13 +110,14 @@ public class GCMEncryptor implements AESEncryptor {
     @Override
     public byte[] decrypt(byte[] cipherData) {
         try {
-            Cipher cipher = Cipher.getInstance(transformation());
+            Cipher cipher = pooledCipher();
             GCMParameterSpec gcmIv = new GCMParameterSpec(getTagLength(), cipherData, 0, GCM_IV_LENGTH);
             cipher.init(Cipher.DECRYPT_MODE, key, gcmIv);
             if (associatedData != null) {
                 cipher.updateAAD(associatedData);
             }
             byte[] plainText = cipher.doFinal(cipherData, GCM_IV_LENGTH, cipherData.length - GCM_IV_LENGTH);
+            ciphers.offer(cipher); // only after success, a failed cipher is left to the garbage collector
             return plainText;
         } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException |
                  InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
@@ -106,6 +125,10 @@ public class GCMEncryptor implements AESEncryptor {
         }
     }
 
+    private Cipher pooledCipher() throws NoSuchPaddingException, NoSuchAlgorithmException {
+        Cipher cipher = ciphers.poll();
+        return cipher != null ? cipher : Cipher.getInstance(transformation());
+    }
 
     @Override
     public Cipher initCipher(int cipherMode) {
@@ -127,9 +150,18 @@ public class GCMEncryptor implements AESEncryptor {
         return key;
     }
 
+    /**
+     * @return a new IV on every call, an IV must never be used twice with the key
+     */
     @Override
     public byte[] getInitializationVector() {
-        return initializationVector;
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        nonceGenerator.next(iv, 0);
+        return iv;
+    }
+
+    public GCMNonceGenerator getNonceGenerator() {
+        return nonceGenerator;
     }
 
     @Override
@@ -0,0 +1,78 @@
+package io.basswood.webauthn.secret;
+
+import io.basswood.webauthn.exception.CryptoException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 96 bit GCM nonces in the deterministic construction of NIST SP 800-38D 8.2.1: a fixed field, here 8 random bytes
+ * drawn once per instance, followed by a 4 byte invocation counter. A nonce costs an atomic increment, with no lock and
+ * no {@link SecureRandom} call, and is unique for the instance as long as the counter does not wrap.
+ * <p>
+ * SP 800-38D limits a key to 2<sup>32</sup> invocations, which is also where the counter would wrap. Past the
+ * rotation threshold {@link #isRotationDue()} turns true and a warning is logged once; at the limit {@link #next(byte[], int)}
+ * refuses to produce a nonce. The count is for this instance only and starts again with the process, the limit is
+ * meant for the total of all instances using the key.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class GCMNonceGenerator {
+    public static final int PREFIX_LENGTH = 8;
+    public static final long DEFAULT_LIMIT = 1L << 32;
+    public static final long DEFAULT_ROTATION_THRESHOLD = 1L << 31;
+
+    private final byte[] prefix = new byte[PREFIX_LENGTH];
+    private final AtomicLong invocations = new AtomicLong();
+    private final AtomicBoolean rotationSignalled = new AtomicBoolean();
+    private final long rotationThreshold;
+    private final long limit;
+
+    public GCMNonceGenerator(SecureRandom secureRandom) {
+        this(secureRandom, DEFAULT_ROTATION_THRESHOLD, DEFAULT_LIMIT);
+    }
+
+    /**
+     * @param rotationThreshold invocations after which the key should be rotated
+     * @param limit             invocations after which no nonce is produced, at most {@value #DEFAULT_LIMIT}
+     */
+    public GCMNonceGenerator(SecureRandom secureRandom, long rotationThreshold, long limit) {
+        if (limit > DEFAULT_LIMIT || rotationThreshold > limit) {
+            throw new CryptoException("Invalid GCM nonce limits, threshold " + rotationThreshold + ", limit " + limit);
+        }
+        this.rotationThreshold = rotationThreshold;
+        this.limit = limit;
+        secureRandom.nextBytes(prefix);
+    }
+
+    /**
+     * Writes the next nonce, {@link GCMEncryptor#GCM_IV_LENGTH} bytes, into {@code out} at {@code offset}.
+     */
+    public void next(byte[] out, int offset) {
+        long invocation = invocations.getAndIncrement();
+        if (invocation >= limit) {
+            throw new CryptoException("GCM key usage limit of " + limit + " invocations reached, the key must be rotated");
+        }
+        if (invocation >= rotationThreshold && rotationSignalled.compareAndSet(false, true)) {
+            log.warn("GCM key used for {} invocations, rotate the key before {}", invocation, limit);
+        }
+        System.arraycopy(prefix, 0, out, offset, PREFIX_LENGTH);
+        int counter = (int) invocation;
+        out[offset + PREFIX_LENGTH] = (byte) (counter >>> 24);
+        out[offset + PREFIX_LENGTH + 1] = (byte) (counter >>> 16);
+        out[offset + PREFIX_LENGTH + 2] = (byte) (counter >>> 8);
+        out[offset + PREFIX_LENGTH + 3] = (byte) counter;
+    }
+
+    public long invocations() {
+        return Math.min(invocations.get(), limit);
+    }
+
+    public boolean isRotationDue() {
+        return invocations.get() >= rotationThreshold;
+    }
+}
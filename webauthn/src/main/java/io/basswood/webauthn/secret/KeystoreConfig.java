@@ -1,12 +1,31 @@
 package io.basswood.webauthn.secret;
 
+import java.util.List;
+
 /**
+ * {@code aesKeyVersion} is the version of the {@code aesKeyAlias} key, written into every value it encrypts, 1 if not
+ * set. After a rotation the previous keys are listed in {@code previousAesKeys} until all values are re-encrypted.
+ *
  * @author shamualr
  * @since 1.0
  */
 public record KeystoreConfig(
         String storeType, String storepass,
         String aesKeyPassword, String aesKeyAlias,
-        String dbKeyPassword, String dbKeyAlias
+        String dbKeyPassword, String dbKeyAlias,
+        Integer aesKeyVersion, List<AesKeyEntry> previousAesKeys
 ) {
+    public KeystoreConfig {
+        aesKeyVersion = aesKeyVersion != null ? aesKeyVersion : AesKeyring.DEFAULT_VERSION;
+        previousAesKeys = previousAesKeys != null ? List.copyOf(previousAesKeys) : List.of();
+    }
+
+    public KeystoreConfig(String storeType, String storepass, String aesKeyPassword, String aesKeyAlias,
+                          String dbKeyPassword, String dbKeyAlias) {
+        this(storeType, storepass, aesKeyPassword, aesKeyAlias, dbKeyPassword, dbKeyAlias, null, null);
+    }
+
+    public record AesKeyEntry(Integer version, String alias, String password) {
+    }
 }
+
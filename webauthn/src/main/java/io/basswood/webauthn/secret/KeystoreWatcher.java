@@ -0,0 +1,147 @@
+package io.basswood.webauthn.secret;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import io.basswood.webauthn.exception.KeystoreException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads the {@link SecretManager} when the keystore or the keystore configuration file changes, so rotated secrets
+ * are picked up without a restart.
+ * <p>
+ * A {@link WatchService} watches the directories of both files. Any change in them is taken as a hint only: once the
+ * directories have been quiet for {@code quietPeriod}, both files are read and the secrets reloaded if their content
+ * differs from the last load. This covers files replaced by a rename, or through a symbolic link as a Kubernetes secret
+ * volume does, and a keystore and configuration written one after the other. A reload which fails, say on a half written
+ * file, is logged and the current secrets stay; it is tried again on the next change.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class KeystoreWatcher {
+    private SecretManager secretManager;
+    private Path keyStoreFile;
+    private Path keyStoreConfigFile;
+    private boolean enabled;
+    private Duration quietPeriod;
+    private ObjectMapper objectMapper = new ObjectMapper();
+    private String loadedHash;
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * @param keyStoreFile       the keystore the secret manager was loaded from
+     * @param keyStoreConfigFile its configuration, a JSON {@link KeystoreConfig}
+     * @param quietPeriod        how long no change is seen before the files are read
+     */
+    public KeystoreWatcher(SecretManager secretManager, Path keyStoreFile, Path keyStoreConfigFile, boolean enabled,
+                           Duration quietPeriod) {
+        this.secretManager = secretManager;
+        this.keyStoreFile = keyStoreFile;
+        this.keyStoreConfigFile = keyStoreConfigFile;
+        this.enabled = enabled;
+        this.quietPeriod = quietPeriod;
+    }
+
+    public void start() {
+        if (!enabled) {
+            log.info("Keystore watcher disabled");
+            return;
+        }
+        try {
+            loadedHash = hash(Files.readAllBytes(keyStoreFile), Files.readAllBytes(keyStoreConfigFile));
+            watchService = FileSystems.getDefault().newWatchService();
+            Set<Path> directories = new LinkedHashSet<>();
+            directories.add(keyStoreFile.toAbsolutePath().getParent());
+            directories.add(keyStoreConfigFile.toAbsolutePath().getParent());
+            for (Path directory : directories) {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            log.info("Watching {} for keystore changes", directories);
+        } catch (IOException e) {
+            throw new KeystoreException("Failed to watch the keystore files", e);
+        }
+        thread = new Thread(this::run, "keystore-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.warn("Failed to close the keystore watcher", e);
+            }
+        }
+    }
+
+    /**
+     * Reloads the secret manager if the keystore or its configuration differs from the last load. Synchronized, the
+     * watcher thread and other callers reload one at a time, so one change is reloaded, and its listeners called, once.
+     *
+     * @return true if reloaded
+     * @throws KeystoreException if the files cannot be read or the keystore not loaded
+     */
+    public synchronized boolean reloadIfChanged() {
+        try {
+            byte[] keyStore = Files.readAllBytes(keyStoreFile);
+            byte[] keyStoreConfig = Files.readAllBytes(keyStoreConfigFile);
+            String hash = hash(keyStore, keyStoreConfig);
+            if (hash.equals(loadedHash)) {
+                return false;
+            }
+            secretManager.reload(new ByteArrayInputStream(keyStore), objectMapper.readValue(keyStoreConfig, KeystoreConfig.class));
+            loadedHash = hash;
+            return true;
+        } catch (IOException e) {
+            throw new KeystoreException("Failed to read the keystore files", e);
+        }
+    }
+
+    private static String hash(byte[] keyStore, byte[] keyStoreConfig) {
+        return Hashing.sha256().newHasher().putBytes(keyStore).putBytes(keyStoreConfig).hash().toString();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                drain(watchService.take());
+                WatchKey key;
+                while ((key = watchService.poll(quietPeriod.toMillis(), TimeUnit.MILLISECONDS)) != null) {
+                    drain(key);
+                }
+                try {
+                    reloadIfChanged();
+                } catch (RuntimeException e) {
+                    log.warn("Failed to reload the keystore, keeping the current secrets", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            log.info("Keystore watcher stopped");
+        }
+    }
+
+    private static void drain(WatchKey key) {
+        key.pollEvents();
+        key.reset();
+    }
+}
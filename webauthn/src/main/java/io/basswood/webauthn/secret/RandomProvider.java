@@ -0,0 +1,26 @@
+package io.basswood.webauthn.secret;
+
+import java.security.SecureRandom;
+
+/**
+ * Source of the random bytes of user handles and ceremony challenges.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public interface RandomProvider {
+    void nextBytes(byte[] bytes);
+
+    default byte[] nextBytes(int length) {
+        byte[] bytes = new byte[length];
+        nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return a provider drawing from the one instance
+     */
+    static RandomProvider of(SecureRandom secureRandom) {
+        return secureRandom::nextBytes;
+    }
+}
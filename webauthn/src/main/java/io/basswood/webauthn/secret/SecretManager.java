@@ -2,6 +2,7 @@ package io.basswood.webauthn.secret;
 
 
 import io.basswood.webauthn.exception.KeystoreException;
+import lombok.extern.slf4j.Slf4j;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
@@ -13,30 +14,103 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 /**
+ * Reads the secrets of the keystore configuration. Unwrapping a PKCS#12 key runs its password based key derivation,
+ * so the keys of the configuration are unwrapped once and then served from memory.
+ * <p>
+ * {@link #reload(InputStream, KeystoreConfig)} replaces the keystore and configuration, for example when
+ * {@link KeystoreWatcher} sees the files change. The new secrets are unwrapped before they replace the old ones, in
+ * one step, so a caller sees either the old or the new secrets and a broken keystore leaves the old ones in place.
+ * The reload listeners are then called with this instance.
+ *
  * @author shamualr
  * @since 1.0
  */
+@Slf4j
 public class SecretManager {
 
-    private KeyStore keyStore;
-    private KeystoreConfig keystoreConfig;
+    private volatile Secrets secrets;
+    private List<Consumer<SecretManager>> reloadListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * A keystore with its configuration, and the keys of the configuration unwrapped so far, by alias.
+     */
+    private record Secrets(KeyStore keyStore, KeystoreConfig keystoreConfig, Map<String, SecretKey> unwrapped) {
+        Secrets(KeyStore keyStore, KeystoreConfig keystoreConfig) {
+            this(keyStore, keystoreConfig, new ConcurrentHashMap<>());
+        }
+    }
 
     public SecretManager(KeyStore keyStore, KeystoreConfig keystoreConfig) {
-        this.keyStore = keyStore;
-        this.keystoreConfig = keystoreConfig;
+        this.secrets = new Secrets(keyStore, keystoreConfig);
     }
 
     public SecretKey getAesKey() {
-        return getSecretKey(keystoreConfig.aesKeyAlias(), keystoreConfig.aesKeyPassword().toCharArray());
+        return getAesKey(secrets);
+    }
+
+    private SecretKey getAesKey(Secrets secrets) {
+        KeystoreConfig keystoreConfig = secrets.keystoreConfig();
+        return unwrap(secrets, keystoreConfig.aesKeyAlias(), keystoreConfig.aesKeyPassword());
+    }
+
+    /**
+     * @return the current AES key and the previous ones of the keystore configuration
+     */
+    public AesKeyring getAesKeyring() {
+        return getAesKeyring(secrets);
+    }
+
+    private AesKeyring getAesKeyring(Secrets secrets) {
+        KeystoreConfig keystoreConfig = secrets.keystoreConfig();
+        Map<Integer, SecretKey> keys = new HashMap<>();
+        for (KeystoreConfig.AesKeyEntry entry : keystoreConfig.previousAesKeys()) {
+            putAesKey(keys, entry.version(), unwrap(secrets, entry.alias(), entry.password()));
+        }
+        putAesKey(keys, keystoreConfig.aesKeyVersion(), getAesKey(secrets));
+        return new AesKeyring(keystoreConfig.aesKeyVersion(), keys);
+    }
+
+    private static void putAesKey(Map<Integer, SecretKey> keys, Integer version, SecretKey key) {
+        if (version == null || keys.put(version, key) != null) {
+            throw new KeystoreException("AES key version missing or used twice: " + version);
+        }
     }
 
     public String getDatabasePassword() {
-        return getSecretKeyContentAsString(keystoreConfig.dbKeyAlias(), keystoreConfig.dbKeyPassword().toCharArray());
+        return getDatabasePassword(secrets);
+    }
+
+    private String getDatabasePassword(Secrets secrets) {
+        KeystoreConfig keystoreConfig = secrets.keystoreConfig();
+        SecretKey key = unwrap(secrets, keystoreConfig.dbKeyAlias(), keystoreConfig.dbKeyPassword());
+        return new String(key.getEncoded(), StandardCharsets.UTF_8);
     }
 
+    /**
+     * A key of the configuration, unwrapped on first use. The alias identifies it, the password is the one of the same
+     * configuration.
+     */
+    private SecretKey unwrap(Secrets secrets, String keyAlias, String keyPassword) {
+        return secrets.unwrapped().computeIfAbsent(keyAlias,
+                alias -> getSecretKey(secrets.keyStore(), alias, keyPassword.toCharArray()));
+    }
+
+    /**
+     * Unwraps the key from the keystore, every call.
+     */
     public SecretKey getSecretKey(String keyAlias, char[] keyPassword) {
+        return getSecretKey(secrets.keyStore(), keyAlias, keyPassword);
+    }
+
+    private static SecretKey getSecretKey(KeyStore keyStore, String keyAlias, char[] keyPassword) {
         try {
             Key key = keyStore.getKey(keyAlias, keyPassword);
             if(key == null){
@@ -51,37 +125,62 @@ public class SecretManager {
         }
     }
 
+    /**
+     * Unwraps the key from the keystore, every call.
+     */
     public String getSecretKeyContentAsString(String keyAlias, char[] keyPassword) {
-        try {
-            Key key = keyStore.getKey(keyAlias, keyPassword);
-            if(key == null){
-                throw new KeystoreException("The key with alias:" + keyAlias + " no found in the keystore");
-            }
-            if (!SecretKey.class.isAssignableFrom(key.getClass())) {
-                throw new KeystoreException("The key with alias:" + keyAlias + " is not a secret key");
+        return new String(getSecretKey(keyAlias, keyPassword).getEncoded(), StandardCharsets.UTF_8);
+    }
+
+    public KeystoreConfig getKeystoreConfig() {
+        return secrets.keystoreConfig();
+    }
+
+    /**
+     * @param listener called with this instance after every successful {@link #reload(InputStream, KeystoreConfig)}
+     */
+    public void addReloadListener(Consumer<SecretManager> listener) {
+        reloadListeners.add(listener);
+    }
+
+    /**
+     * Replaces the keystore and its configuration. The keys of the new configuration are unwrapped first, if that
+     * fails the current secrets stay in use. A failing listener is logged and does not stop the others.
+     *
+     * @throws KeystoreException if the keystore cannot be loaded or lacks a key of the configuration
+     */
+    public void reload(InputStream keyStoreStream, KeystoreConfig keystoreConfig) {
+        Secrets reloaded = new Secrets(load(keyStoreStream, keystoreConfig), keystoreConfig);
+        validate(reloaded);
+        secrets = reloaded;
+        log.info("Secrets reloaded, AES key version {}", keystoreConfig.aesKeyVersion());
+        for (Consumer<SecretManager> listener : reloadListeners) {
+            try {
+                listener.accept(this);
+            } catch (RuntimeException e) {
+                log.warn("Secret reload listener failed", e);
             }
-            return new String(key.getEncoded(), StandardCharsets.UTF_8);
-        } catch (KeyStoreException | UnrecoverableKeyException | NoSuchAlgorithmException e) {
-            throw new KeystoreException("Failed to retrieve secret key content as password", e);
         }
     }
 
+    private void validate(Secrets secrets) {
+        getAesKeyring(secrets);
+        getDatabasePassword(secrets);
+    }
 
-    public static SecretManager build(InputStream keyStoreStream, KeystoreConfig keystoreConfig) {
+    private static KeyStore load(InputStream keyStoreStream, KeystoreConfig keystoreConfig) {
         try {
             KeyStore keyStore = KeyStore.getInstance(keystoreConfig.storeType());
             keyStore.load(keyStoreStream, keystoreConfig.storepass().toCharArray());
-            SecretManager secretManager = new SecretManager(keyStore, keystoreConfig);
-            //validate
-            Key key = secretManager.getAesKey();
-            key.getClass().isAssignableFrom(SecretKey.class);
-            if (!SecretKey.class.isAssignableFrom(key.getClass())) {
-                throw new KeystoreException("The key with alias:" + keystoreConfig.aesKeyAlias() + " is not a secret key");
-            }
-            String databasePassword = secretManager.getDatabasePassword();
-            return secretManager;
+            return keyStore;
         } catch (KeyStoreException | CertificateException | NoSuchAlgorithmException | IOException e) {
             throw new KeystoreException("Failed to build KeystoreService instance", e);
         }
     }
+
+    public static SecretManager build(InputStream keyStoreStream, KeystoreConfig keystoreConfig) {
+        SecretManager secretManager = new SecretManager(load(keyStoreStream, keystoreConfig), keystoreConfig);
+        secretManager.validate(secretManager.secrets);
+        return secretManager;
+    }
 }
@@ -0,0 +1,209 @@
+package io.basswood.webauthn.secret;
+
+import io.basswood.webauthn.exception.CryptoException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Streaming AES-GCM in fixed size segments (the STREAM construction of Hoang, Reyhanitabar, Rogaway and Vizár, as used
+ * by Tink's streaming AEAD), so a payload of any size is encrypted and decrypted with two segment sized buffers.
+ * <p>
+ * Output: a header of one length byte, a 16 byte salt and a 7 byte nonce prefix, then the segments, each the cipher
+ * text of {@code segmentSize} plain bytes (the last one of up to that) followed by its 16 byte tag. Every stream is
+ * encrypted with its own key, HKDF-SHA256 of the key and the random salt, so the GCM invocation limits of the key do
+ * not apply. The nonce of a segment is the prefix, the 4 byte segment index and a byte which is 1 for the last segment
+ * only:
+ * <ul>
+ *     <li>a segment is written out only after its tag is verified, no unauthenticated plain text is released</li>
+ *     <li>reordered, dropped or duplicated segments fail their tag, the index is part of the nonce</li>
+ *     <li>a stream cut at a segment boundary fails too, its new last segment was not encrypted as the last one</li>
+ * </ul>
+ * Decryption fails with {@link CryptoException}; the plain text already written by then is authentic, but incomplete.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public class SegmentedGCMEncryptor implements AESEncryptor {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    public static final int TAG_LENGTH = 16;
+    static final int SALT_LENGTH = 16;
+    static final int NONCE_PREFIX_LENGTH = 7;
+    static final int HEADER_LENGTH = 1 + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+    private static final byte[] HKDF_INFO = "basswood segmented AES-GCM".getBytes(StandardCharsets.US_ASCII);
+
+    private SecretKey key;
+    private SecureRandom secureRandom;
+    private byte[] associatedData;
+    private int segmentSize;
+
+    public SegmentedGCMEncryptor(SecretKey key, SecureRandom secureRandom, byte[] associatedData) {
+        this(key, secureRandom, associatedData, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param associatedData authenticated with every segment, may be null
+     * @param segmentSize    plain text bytes per segment
+     */
+    public SegmentedGCMEncryptor(SecretKey key, SecureRandom secureRandom, byte[] associatedData, int segmentSize) {
+        this.key = key;
+        this.secureRandom = secureRandom;
+        this.associatedData = associatedData;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public void encrypt(InputStream in, OutputStream out) {
+        byte[] header = new byte[HEADER_LENGTH];
+        secureRandom.nextBytes(header);
+        header[0] = HEADER_LENGTH;
+        try {
+            out.write(header);
+            Segments segments = new Segments(header);
+            PushbackInputStream input = new PushbackInputStream(in, 1);
+            byte[] plain = new byte[segmentSize];
+            byte[] cipherText = new byte[segmentSize + TAG_LENGTH];
+            boolean last;
+            do {
+                int length = input.readNBytes(plain, 0, segmentSize);
+                last = length < segmentSize || isEnd(input);
+                int cipherLength = segments.next(Cipher.ENCRYPT_MODE, last).doFinal(plain, 0, length, cipherText, 0);
+                out.write(cipherText, 0, cipherLength);
+            } while (!last);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new CryptoException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void decrypt(InputStream in, OutputStream out) {
+        try {
+            byte[] header = in.readNBytes(HEADER_LENGTH);
+            if (header.length < HEADER_LENGTH || header[0] != HEADER_LENGTH) {
+                throw new CryptoException("Not a segmented AES-GCM stream");
+            }
+            Segments segments = new Segments(header);
+            PushbackInputStream input = new PushbackInputStream(in, 1);
+            byte[] cipherText = new byte[segmentSize + TAG_LENGTH];
+            byte[] plain = new byte[segmentSize];
+            boolean last;
+            do {
+                int length = input.readNBytes(cipherText, 0, cipherText.length);
+                if (length < TAG_LENGTH) {
+                    throw new CryptoException("Segmented AES-GCM stream truncated");
+                }
+                last = length < cipherText.length || isEnd(input);
+                int plainLength = segments.next(Cipher.DECRYPT_MODE, last).doFinal(cipherText, 0, length, plain, 0);
+                out.write(plain, 0, plainLength);
+            } while (!last);
+        } catch (AEADBadTagException e) {
+            throw new CryptoException("Segmented AES-GCM stream corrupted, truncated or reordered", e);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new CryptoException(e.getMessage(), e);
+        }
+    }
+
+    private static boolean isEnd(PushbackInputStream input) throws IOException {
+        int next = input.read();
+        if (next < 0) {
+            return true;
+        }
+        input.unread(next);
+        return false;
+    }
+
+    /**
+     * The cipher of one stream, initialized with the nonce of each segment in turn.
+     */
+    private class Segments {
+        private final SecretKeySpec streamKey;
+        private final byte[] nonce = new byte[GCMEncryptor.GCM_IV_LENGTH];
+        private final Cipher cipher;
+        private long index;
+
+        Segments(byte[] header) throws GeneralSecurityException {
+            this.streamKey = streamKey(header);
+            System.arraycopy(header, 1 + SALT_LENGTH, nonce, 0, NONCE_PREFIX_LENGTH);
+            this.cipher = Cipher.getInstance(transformation());
+        }
+
+        Cipher next(int mode, boolean last) throws GeneralSecurityException {
+            if (index > 0xFFFFFFFFL) {
+                throw new CryptoException("Segmented AES-GCM stream exceeds 2^32 segments");
+            }
+            nonce[NONCE_PREFIX_LENGTH] = (byte) (index >>> 24);
+            nonce[NONCE_PREFIX_LENGTH + 1] = (byte) (index >>> 16);
+            nonce[NONCE_PREFIX_LENGTH + 2] = (byte) (index >>> 8);
+            nonce[NONCE_PREFIX_LENGTH + 3] = (byte) index;
+            nonce[NONCE_PREFIX_LENGTH + 4] = (byte) (last ? 1 : 0);
+            index++;
+            cipher.init(mode, streamKey, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            if (associatedData != null) {
+                cipher.updateAAD(associatedData);
+            }
+            return cipher;
+        }
+
+        /**
+         * HKDF-SHA256 (RFC 5869) of the key with the salt of the header, one expand block.
+         */
+        private SecretKeySpec streamKey(byte[] header) throws GeneralSecurityException {
+            byte[] keyMaterial = key.getEncoded();
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(new SecretKeySpec(header, 1, SALT_LENGTH, "HmacSHA256"));
+            byte[] pseudoRandomKey = hmac.doFinal(keyMaterial);
+            hmac.init(new SecretKeySpec(pseudoRandomKey, "HmacSHA256"));
+            hmac.update(HKDF_INFO);
+            hmac.update((byte) 1);
+            return new SecretKeySpec(hmac.doFinal(), 0, keyMaterial.length, "AES");
+        }
+    }
+
+    @Override
+    public Cipher initCipher(int cipherMode) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getFeedbackMode() {
+        return "GCM";
+    }
+
+    @Override
+    public String getPadding() {
+        return "NoPadding";
+    }
+
+    @Override
+    public SecretKey getKey() {
+        return key;
+    }
+
+    /**
+     * Not applicable, every segment has its own nonce.
+     */
+    @Override
+    public byte[] getInitializationVector() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte[] getAssociatedData() {
+        return associatedData;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+}
@@ -0,0 +1,158 @@
+package io.basswood.webauthn.secret;
+
+import io.basswood.webauthn.exception.CryptoException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Random bytes from a number of DRBG {@link SecureRandom} instances, each call drawing from one picked at random. A
+ * DRBG generates in memory, but serializes its callers; spread over the stripes they rarely wait for each other. The
+ * stripes are not per thread, with virtual threads there would be one DRBG, and one entropy read, per request.
+ * <p>
+ * Nothing on the calling path reads entropy. The stripes are instantiated when this is created, and a background task
+ * replaces each of them every {@code reseedInterval} with a new instance, instantiated before the swap with a
+ * personalization string drawn from the strong source ({@link SecureRandom#getInstanceStrong()}, which may block).
+ * A failed reseed is logged and the stripes in use are kept.
+ * <p>
+ * Metrics:
+ * <ul>
+ *     <li>{@value #METRIC_GENERATE} - time to generate random bytes</li>
+ *     <li>{@value #METRIC_RESEED} - stripes reseeded</li>
+ *     <li>{@value #METRIC_RESEED_FAILED} - reseeds which failed</li>
+ * </ul>
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class StripedDrbgRandomProvider implements RandomProvider {
+    public static final String METRIC_GENERATE = "webauthn.random.generate";
+    public static final String METRIC_RESEED = "webauthn.random.reseed";
+    public static final String METRIC_RESEED_FAILED = "webauthn.random.reseed_failed";
+    public static final int DEFAULT_STRIPES = Runtime.getRuntime().availableProcessors();
+    private static final int SECURITY_STRENGTH = 256;
+    private static final int PERSONALIZATION_LENGTH = 48;
+
+    private AtomicReferenceArray<SecureRandom> stripes;
+    private Duration reseedInterval;
+    private SecureRandom strongSource;
+    private Timer generateTimer;
+    private Counter reseeds;
+    private Counter reseedFailures;
+    private ScheduledExecutorService executor;
+
+    public StripedDrbgRandomProvider(int stripes, Duration reseedInterval, MeterRegistry meterRegistry) {
+        this(stripes, reseedInterval, meterRegistry, null);
+    }
+
+    /**
+     * @param stripes        number of DRBG instances, {@link #DEFAULT_STRIPES} if not positive
+     * @param reseedInterval time between reseeds, zero to never reseed
+     * @param strongSource   source of the reseed personalization, null for {@link SecureRandom#getInstanceStrong()}
+     */
+    StripedDrbgRandomProvider(int stripes, Duration reseedInterval, MeterRegistry meterRegistry, SecureRandom strongSource) {
+        this.stripes = new AtomicReferenceArray<>(stripes > 0 ? stripes : DEFAULT_STRIPES);
+        for (int i = 0; i < this.stripes.length(); i++) {
+            this.stripes.set(i, newDrbg(null));
+        }
+        this.reseedInterval = reseedInterval;
+        this.strongSource = strongSource;
+        this.generateTimer = Timer.builder(METRIC_GENERATE)
+                .description("Time to generate random bytes")
+                .register(meterRegistry);
+        this.reseeds = Counter.builder(METRIC_RESEED)
+                .description("DRBG stripes reseeded from the strong source")
+                .register(meterRegistry);
+        this.reseedFailures = Counter.builder(METRIC_RESEED_FAILED)
+                .description("DRBG reseeds which failed, the stripes in use were kept")
+                .register(meterRegistry);
+    }
+
+    public void start() {
+        if (reseedInterval.isZero()) {
+            log.info("DRBG reseeding disabled");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "drbg-reseed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long millis = reseedInterval.toMillis();
+        executor.scheduleWithFixedDelay(this::run, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+        long start = System.nanoTime();
+        stripes.get(ThreadLocalRandom.current().nextInt(stripes.length())).nextBytes(bytes);
+        generateTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Replaces every stripe with a new instance personalized from the strong source.
+     *
+     * @throws CryptoException if the strong source is not available
+     */
+    public void reseed() {
+        if (strongSource == null) {
+            try {
+                strongSource = SecureRandom.getInstanceStrong();
+            } catch (NoSuchAlgorithmException e) {
+                throw new CryptoException("No strong SecureRandom available", e);
+            }
+        }
+        for (int i = 0; i < stripes.length(); i++) {
+            byte[] personalization = new byte[PERSONALIZATION_LENGTH];
+            strongSource.nextBytes(personalization);
+            stripes.set(i, newDrbg(personalization));
+            reseeds.increment();
+        }
+    }
+
+    public int getStripes() {
+        return stripes.length();
+    }
+
+    /**
+     * A DRBG, instantiated here rather than by its first caller.
+     */
+    private static SecureRandom newDrbg(byte[] personalization) {
+        try {
+            SecureRandom drbg = SecureRandom.getInstance("DRBG",
+                    DrbgParameters.instantiation(SECURITY_STRENGTH, DrbgParameters.Capability.RESEED_ONLY, personalization));
+            drbg.nextBytes(new byte[1]);
+            return drbg;
+        } catch (NoSuchAlgorithmException e) {
+            throw new CryptoException("Failed to create a DRBG SecureRandom", e);
+        }
+    }
+
+    private void run() {
+        try {
+            reseed();
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule, log it and try again on the next run.
+            reseedFailures.increment();
+            log.warn("Failed to reseed the DRBG stripes", e);
+        }
+    }
+}
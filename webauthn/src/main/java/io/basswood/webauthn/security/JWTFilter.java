@@ -1,15 +1,17 @@
 package io.basswood.webauthn.security;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jwt.SignedJWT;
 import io.basswood.webauthn.exception.EntityNotFound;
 import io.basswood.webauthn.exception.RootException;
 import io.basswood.webauthn.exception.TokenValidationError;
 import io.basswood.webauthn.model.jwk.JWKEntity;
+import io.basswood.webauthn.model.token.AuthenticatedPrincipal;
 import io.basswood.webauthn.model.token.Role;
 import io.basswood.webauthn.service.JWKService;
 import io.basswood.webauthn.service.TokenGenerator;
+import io.basswood.webauthn.service.TokenRevocationService;
+import io.basswood.webauthn.service.VerificationKey;
 import jakarta.servlet.FilterChain;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
@@ -19,9 +21,8 @@ import org.springframework.http.HttpStatus;
 import org.springframework.web.filter.OncePerRequestFilter;
 
 import java.io.IOException;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.util.Optional;
+import java.util.Set;
 
 /**
  * @author shamualr
@@ -37,12 +38,22 @@ public class JWTFilter extends OncePerRequestFilter {
     private ObjectMapper objectMapper;
 
     private Boolean disableJwtFilter;
+    private VerifiedTokenCache verifiedTokenCache;
+    private TokenRevocationService tokenRevocationService;
 
-    public JWTFilter(JWKService jwkService, ObjectMapper objectMapper, Boolean disableJwtFilter) {
+    /**
+     * @param roleMapping            the roles each API requires
+     * @param verifiedTokenCache     cache of already validated tokens, null to validate every token
+     * @param tokenRevocationService the revoked tokens, null if tokens cannot be revoked
+     */
+    public JWTFilter(JWKService jwkService, ObjectMapper objectMapper, Boolean disableJwtFilter, RoleMapping roleMapping,
+                     VerifiedTokenCache verifiedTokenCache, TokenRevocationService tokenRevocationService) {
         this.jwkService = jwkService;
+        this.verifiedTokenCache = verifiedTokenCache;
+        this.tokenRevocationService = tokenRevocationService;
         this.disableJwtFilter = (disableJwtFilter != null) ? disableJwtFilter : false;
         this.tokenGenerator = new TokenGenerator();
-        this.roleMapping = new RoleMapping();
+        this.roleMapping = roleMapping;
         this.objectMapper = objectMapper;
     }
 
@@ -52,50 +63,65 @@ public class JWTFilter extends OncePerRequestFilter {
             filterChain.doFilter(request, response);
             return;
         }
-        URL requestURL = new URL(request.getRequestURL().toString());
-        Role role = roleMapping.requireRole(requestURL.getPath());
-        if (role == Role.none) { // JWT protection not needed for this API call
+        Set<Role> roles;
+        try {
+            roles = roleMapping.requiredRoles(request.getMethod(), request.getRequestURI());
+        } catch (RootException ex) { // a path which cannot be mapped reliably
+            writeError(request, response, ex);
+            return;
+        }
+        if (roles.isEmpty()) { // JWT protection not needed for this API call
             filterChain.doFilter(request, response);
             return;
         }
         try {
-            jwtAuthorization(request, role);
+            jwtAuthorization(request, roles);
             filterChain.doFilter(request, response);
         } catch (Exception ex) {
-            RootException rootException = switch (ex) {
-                case RootException re -> re;
-                default -> new RootException(ex);
-            };
-            response.setHeader("Content-Type", "application/json");
-            response.setStatus(rootException.getHttpStatus());
-            String path = request.getRequestURI();
-            response.getOutputStream().write(objectMapper.writeValueAsString(rootException.toErrorDto(path))
-                    .getBytes(StandardCharsets.UTF_8));
+            writeError(request, response, ex);
         }
     }
 
-    private void jwtAuthorization(HttpServletRequest request, Role role) {
-        SignedJWT signedJWT = extractJWT(request);
-        String keyID = signedJWT.getHeader().getKeyID();
-        Optional<JWKEntity> entityOptional = jwkService.getJWKEntity(keyID);
-        if(entityOptional.isEmpty()){
-            throw new EntityNotFound(JWKEntity.class, keyID);
-        }
-        JWK jwk = jwkService.parse(entityOptional.get().getJwkData());
-        if (!tokenGenerator.validateSignedJWT(jwk, signedJWT)) {
-            throw new TokenValidationError("Invalid token");
+    private void writeError(HttpServletRequest request, HttpServletResponse response, Exception ex) throws IOException {
+        RootException rootException = switch (ex) {
+            case RootException re -> re;
+            default -> new RootException(ex);
+        };
+        response.setHeader("Content-Type", "application/json");
+        response.setStatus(rootException.getHttpStatus());
+        String path = request.getRequestURI();
+        response.getOutputStream().write(objectMapper.writeValueAsString(rootException.toErrorDto(path))
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void jwtAuthorization(HttpServletRequest request, Set<Role> roles) {
+        String token = extractToken(request);
+        AuthenticatedPrincipal principal = verifiedTokenCache != null
+                ? verifiedTokenCache.getOrVerify(token, this::authenticate).principal()
+                : authenticate(token);
+        // checked on every call, a cached token may have been revoked since
+        if (tokenRevocationService != null && tokenRevocationService.isRevoked(principal.jti())) {
+            throw new TokenValidationError("Token revoked");
         }
-        if (!tokenGenerator.hasClaim(signedJWT, TokenGenerator.CLAIM_NAME_ROLES, role.name())) {
+        if (!principal.hasAnyRole(roles)) {
             throw new TokenValidationError("Missing necessary role", null, HttpStatus.FORBIDDEN.value());
         }
+        request.setAttribute(AuthenticatedPrincipal.REQUEST_ATTRIBUTE, principal);
+    }
+
+    private AuthenticatedPrincipal authenticate(String token) {
+        SignedJWT signedJWT = tokenGenerator.parseSignedJWT(token);
+        String keyID = signedJWT.getHeader().getKeyID();
+        VerificationKey verificationKey = jwkService.verificationKey(keyID)
+                .orElseThrow(() -> new EntityNotFound(JWKEntity.class, keyID));
+        return tokenGenerator.authenticate(verificationKey, signedJWT);
     }
 
-    private SignedJWT extractJWT(HttpServletRequest request) {
+    private String extractToken(HttpServletRequest request) {
         String header = request.getHeader(HEADER_AUTHORIZATION);
         if (header == null || header.trim().isEmpty()) {
             throw new TokenValidationError("JWT missing");
         }
-        header = header.replace("Bearer ", "");
-        return tokenGenerator.parseSignedJWT(header);
+        return header.replace("Bearer ", "");
     }
 }
\ No newline at end of file
@@ -1,19 +1,227 @@
 package io.basswood.webauthn.security;
 
+import io.basswood.webauthn.exception.BadRequest;
+import io.basswood.webauthn.exception.RootException;
 import io.basswood.webauthn.model.token.Role;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
 /**
+ * The roles an API call requires, compiled once from route rules into a trie of path segments. A rule has the form
+ * {@code <methods> <pattern> <roles>}, e.g. {@code GET|DELETE /jwk/** jwk_manager}:
+ * <ul>
+ *     <li>methods - HTTP methods separated by {@code |}, or {@code *} for any method</li>
+ *     <li>pattern - path segments, where {@code *} matches one segment and a trailing {@code **} matches the rest of
+ *     the path, including nothing</li>
+ *     <li>roles - any one of these roles is required, separated by {@code |}. {@code none} makes the route public</li>
+ * </ul>
+ * A literal segment is preferred to {@code *}, and {@code *} to {@code **}; on the same node the first rule listing the
+ * method wins. A path no rule matches is public. Matching walks the request URI in place and allocates nothing.
+ * <p>
+ * The request URI is not decoded or normalized, while Spring MVC routes the decoded and normalized path. A path
+ * parameter ({@code ;...}) ends a segment, as it does for Spring. A path whose routing could differ from what the
+ * segments say, with an empty, {@code .} or {@code ..} segment or a percent encoded character, is rejected rather
+ * than matched.
+ *
  * @author shamualr
  * @since 1.0
  */
 public class RoleMapping {
-    public Role requireRole(String path){
-        return switch (path){
-            case String requestPath when requestPath.startsWith("/user") -> Role.user_manager;
-            case String requestPath when requestPath.startsWith("/relying-party") -> Role.rp_manager;
-            case String requestPath when requestPath.startsWith("/jwk") -> Role.jwk_manager;
-            case String requestPath when requestPath.startsWith("/jwt") -> Role.token_manager;
-            default -> Role.none;
-        };
+    public static final List<String> DEFAULT_ROUTES = List.of(
+            "* /user/** user_manager",
+            "* /relying-party/** rp_manager",
+            "* /jwk/** jwk_manager",
+            "* /jwt/** token_manager");
+    private static final String ANY_SEGMENT = "*";
+    private static final String ANY_PATH = "**";
+
+    private final Node root = new Node(null);
+
+    public RoleMapping() {
+        this(DEFAULT_ROUTES);
+    }
+
+    public RoleMapping(List<String> routes) {
+        for (String route : routes) {
+            add(route.trim());
+        }
+    }
+
+    /**
+     * @param method the HTTP method
+     * @param path   the request URI
+     * @return the roles of which one is required, empty if the call is public
+     * @throws BadRequest if the path has an empty, {@code .} or {@code ..} segment or a percent encoded character
+     */
+    public Set<Role> requiredRoles(String method, String path) {
+        validate(path);
+        Rule rule = match(root, method, path, path.startsWith("/") ? 1 : 0);
+        return rule != null ? rule.roles : Collections.emptySet();
+    }
+
+    private Rule match(Node node, String method, String path, int start) {
+        if (start >= path.length()) {
+            Rule rule = node.rule(node.rules, method);
+            return rule != null ? rule : anyPath(node, method);
+        }
+        int end = segmentEnd(path, start);
+        int next = path.indexOf('/', end); // past any path parameter
+        if (next < 0) {
+            next = path.length();
+        }
+        for (int i = 0; i < node.children.size(); i++) { // indexed, an iterator would allocate
+            Node child = node.children.get(i);
+            if (child.segment.length() == end - start && path.regionMatches(start, child.segment, 0, end - start)) {
+                Rule rule = match(child, method, path, next + 1);
+                if (rule != null) {
+                    return rule;
+                }
+            }
+        }
+        if (node.anySegment != null) {
+            Rule rule = match(node.anySegment, method, path, next + 1);
+            if (rule != null) {
+                return rule;
+            }
+        }
+        return anyPath(node, method);
+    }
+
+    /**
+     * @return the end of the segment starting at {@code start}, the next {@code /} or {@code ;} or the end of the path
+     */
+    private static int segmentEnd(String path, int start) {
+        int end = start;
+        while (end < path.length() && path.charAt(end) != '/' && path.charAt(end) != ';') {
+            end++;
+        }
+        return end;
+    }
+
+    private static void validate(String path) {
+        if (path.indexOf('%') >= 0) {
+            throw new BadRequest("Invalid request path");
+        }
+        int start = path.startsWith("/") ? 1 : 0;
+        while (start < path.length()) {
+            int end = segmentEnd(path, start);
+            if (end == start || isDotSegment(path, start, end)) {
+                throw new BadRequest("Invalid request path");
+            }
+            int next = path.indexOf('/', end);
+            if (next < 0) {
+                return;
+            }
+            start = next + 1;
+        }
+    }
+
+    private static boolean isDotSegment(String path, int start, int end) {
+        return path.charAt(start) == '.' && (end - start == 1 || (end - start == 2 && path.charAt(start + 1) == '.'));
+    }
+
+    private Rule anyPath(Node node, String method) {
+        return node.rule(node.anyPathRules, method);
+    }
+
+    private void add(String route) {
+        String[] parts = route.split("\\s+");
+        if (parts.length != 3 || !parts[1].startsWith("/")) {
+            throw new RootException("Invalid route, expected '<methods> <pattern> <roles>': " + route);
+        }
+        Rule rule = new Rule(methods(parts[0]), roles(parts[2], route));
+        String[] segments = parts[1].substring(1).split("/");
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.isEmpty() && i == segments.length - 1) { // trailing slash or the root path
+                break;
+            }
+            if (ANY_PATH.equals(segment)) {
+                if (i != segments.length - 1) {
+                    throw new RootException("'**' must be the last segment: " + route);
+                }
+                node.anyPathRules.add(rule);
+                return;
+            }
+            node = node.child(segment);
+        }
+        node.rules.add(rule);
+    }
+
+    private static String[] methods(String methods) {
+        return ANY_SEGMENT.equals(methods) ? null : methods.toUpperCase().split("\\|");
+    }
+
+    private static Set<Role> roles(String roles, String route) {
+        EnumSet<Role> set = EnumSet.noneOf(Role.class);
+        for (String name : roles.split("\\|")) {
+            try {
+                set.add(Role.valueOf(name));
+            } catch (IllegalArgumentException e) {
+                throw new RootException("Unknown role '" + name + "' in route: " + route, e);
+            }
+        }
+        if (set.contains(Role.none)) {
+            set.clear();
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    private record Rule(String[] methods, Set<Role> roles) {
+        boolean matches(String method) {
+            if (methods == null) {
+                return true;
+            }
+            for (String candidate : methods) {
+                if (candidate.equals(method)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Node {
+        private final String segment;
+        private final List<Node> children = new ArrayList<>();
+        private final List<Rule> rules = new ArrayList<>();
+        private final List<Rule> anyPathRules = new ArrayList<>();
+        private Node anySegment;
+
+        Node(String segment) {
+            this.segment = segment;
+        }
+
+        Node child(String segment) {
+            if (ANY_SEGMENT.equals(segment)) {
+                if (anySegment == null) {
+                    anySegment = new Node(segment);
+                }
+                return anySegment;
+            }
+            for (Node child : children) {
+                if (child.segment.equals(segment)) {
+                    return child;
+                }
+            }
+            Node child = new Node(segment);
+            children.add(child);
+            return child;
+        }
+
+        Rule rule(List<Rule> candidates, String method) {
+            for (int i = 0; i < candidates.size(); i++) {
+                Rule rule = candidates.get(i);
+                if (rule.matches(method)) {
+                    return rule;
+                }
+            }
+            return null;
+        }
     }
 }
@@ -0,0 +1,79 @@
+package io.basswood.webauthn.security;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import io.basswood.webauthn.model.token.AuthenticatedPrincipal;
+import io.basswood.webauthn.service.JWKService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Remembers tokens that passed validation, keyed by the SHA-256 of their compact serialization, so that a client
+ * presenting the same token again costs a hash and a map lookup instead of parsing and an ECDSA/RSA verification. The
+ * cached value is the {@link AuthenticatedPrincipal} built from the token.
+ * <p>
+ * An entry is never served after the token's {@code exp}, nor after {@code maxTtl}. Removing a signature key bumps
+ * {@link JWKService#keyGeneration()}, which makes every entry verified before the removal miss.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public class VerifiedTokenCache {
+    public static final String CACHE_NAME = "webauthn.verified-token";
+    private JWKService jwkService;
+    private Cache<String, VerifiedToken> cache;
+
+    public record VerifiedToken(AuthenticatedPrincipal principal, long keyGeneration) {
+    }
+
+    public VerifiedTokenCache(JWKService jwkService, long maximumSize, Duration maxTtl, MeterRegistry meterRegistry) {
+        this.jwkService = jwkService;
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(maxTtl.toMillis(), TimeUnit.MILLISECONDS)
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+        if (meterRegistry != null) {
+            GuavaCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+        }
+    }
+
+    /**
+     * Returns the cached verification of the token, or runs {@code verification} and caches its outcome.
+     *
+     * @param token        compact serialization of the token
+     * @param verification validates the token, throwing if it is not valid
+     * @return the verified token
+     */
+    public VerifiedToken getOrVerify(String token, Function<String, AuthenticatedPrincipal> verification) {
+        String key = Hashing.sha256().hashString(token, StandardCharsets.US_ASCII).toString();
+        VerifiedToken verified = cache.getIfPresent(key);
+        if (verified != null) {
+            if (!verified.principal().isExpired(Instant.now()) && verified.keyGeneration() == jwkService.keyGeneration()) {
+                return verified;
+            }
+            cache.invalidate(key);
+        }
+        // Read before verifying, a key removed while verifying must still invalidate this entry.
+        long keyGeneration = jwkService.keyGeneration();
+        verified = new VerifiedToken(verification.apply(token), keyGeneration);
+        cache.put(key, verified);
+        return verified;
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+}
@@ -0,0 +1,18 @@
+package io.basswood.webauthn.service;
+
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
+import com.yubico.webauthn.data.UserVerificationRequirement;
+
+/**
+ * An immutable, ready to use view of a {@link io.basswood.webauthn.model.rp.RelyingPartyEntity}. Holds the Yubico
+ * {@link RelyingParty} together with the per relying party ceremony settings so that none of them have to be rebuilt
+ * for every ceremony.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public record CompiledRelyingParty(String id, RelyingParty relyingParty,
+                                   AuthenticatorSelectionCriteria authenticatorSelectionCriteria,
+                                   UserVerificationRequirement userVerification, Long timeout) {
+}
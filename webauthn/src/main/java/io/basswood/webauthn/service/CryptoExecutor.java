@@ -0,0 +1,100 @@
+package io.basswood.webauthn.service;
+
+import io.basswood.webauthn.exception.RootException;
+import io.basswood.webauthn.exception.ServerBusy;
+import io.basswood.webauthn.model.credential.CeremonyLookupContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Fixed size pool for the CPU bound verification step of a ceremony (COSE parsing, signature checks). The queue is
+ * bounded and a task that does not fit is rejected right away with {@link ServerBusy}, so a burst of ceremonies cannot
+ * pile up behind the CPU. The caller's {@link CeremonyLookupContext} is carried over to the pool thread, so the
+ * lookups the Yubico library makes while verifying are served from what the caller already loaded.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class CryptoExecutor {
+    public static final String METRIC_QUEUE_SIZE = "webauthn.crypto_executor.queue_size";
+    public static final String METRIC_ACTIVE = "webauthn.crypto_executor.active";
+    public static final String METRIC_REJECTED = "webauthn.crypto_executor.rejected";
+
+    private ThreadPoolExecutor executor;
+    private Counter rejected;
+
+    public CryptoExecutor(int threads, int queueCapacity, MeterRegistry meterRegistry) {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "webauthn-crypto-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.prestartAllCoreThreads();
+        this.rejected = Counter.builder(METRIC_REJECTED)
+                .description("Verifications rejected because the crypto queue was full")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_QUEUE_SIZE, executor, e -> e.getQueue().size())
+                .description("Verifications waiting for a crypto thread")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_ACTIVE, executor, ThreadPoolExecutor::getActiveCount)
+                .description("Verifications running")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Runs the task on the pool and waits for its result. Runtime exceptions thrown by the task are rethrown as is.
+     *
+     * @param task the verification step
+     * @return what the task returned
+     * @throws ServerBusy when the queue is full
+     */
+    public <T> T execute(Supplier<T> task) {
+        CeremonyLookupContext context = CeremonyLookupContext.current();
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                try (CeremonyLookupContext.Scope ignored = CeremonyLookupContext.attach(context)) {
+                    return task.get();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new ServerBusy("Too many verifications in progress", e);
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RootException("Interrupted while waiting for verification", e);
+        } catch (ExecutionException e) {
+            switch (e.getCause()) {
+                case RuntimeException runtimeException -> throw runtimeException;
+                case Error error -> throw error;
+                case null -> throw new RootException(e);
+                default -> throw new RootException(e.getCause());
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,23 @@
+package io.basswood.webauthn.service;
+
+import com.nimbusds.jose.JWEEncrypter;
+import com.nimbusds.jose.JWEHeader;
+import com.nimbusds.jose.jwk.JWK;
+
+/**
+ * An immutable, ready to use encryption key: the {@link JWEEncrypter} for the key together with the header of the
+ * nested JWTs it encrypts.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public record EncryptionKey(String kid, JWK jwk, JWEEncrypter encrypter, JWEHeader header) {
+
+    public static EncryptionKey of(JWK jwk, AlgorithmSelectionStrategy algorithmSelectionStrategy) {
+        JWEHeader header = new JWEHeader.Builder(algorithmSelectionStrategy.encryptionAlgorithm(jwk),
+                algorithmSelectionStrategy.encryptionMethod())
+                .contentType("JWT") // required to indicate nested JWT
+                .keyID(jwk.getKeyID()).build();
+        return new EncryptionKey(jwk.getKeyID(), jwk, algorithmSelectionStrategy.encrypter(jwk), header);
+    }
+}
@@ -0,0 +1,203 @@
+package io.basswood.webauthn.service;
+
+import io.basswood.webauthn.exception.RootException;
+import io.basswood.webauthn.repository.JdbcLease;
+import io.basswood.webauthn.secret.EncryptionService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-encrypts {@code webauthn_jwk.jwkData} values which are not encrypted with the current key of the
+ * {@link EncryptionService} keyring, so that a rotated keystore key can be dropped from the keyring once this has run.
+ * It runs in the background, while the application serves requests, on startup and then every {@code rateSeconds}.
+ * Every run scans the whole table again: a node still running with an older key version keeps writing values with its
+ * key, so a pass that once completed says nothing about the rows written since. A pass is complete when it reached the
+ * end of the table with every value on the current key, and only then logged as complete; a node which lost the lease,
+ * or a holder which died partway, is not, and the next run scans again. A key version taken into use by a reload is
+ * picked up by the next run.
+ * <p>
+ * Rows are read {@code chunkSize} at a time in primary key order, each chunk starting after the last {@code kid} of
+ * the previous one, so every read is a short range scan however large the table. A value is replaced only if it has not
+ * changed since it was read, and the job pauses {@code throttle} between chunks. It runs under a {@link JdbcLease},
+ * renewed every chunk, so only one node of a cluster does it.
+ * <p>
+ * Metrics:
+ * <ul>
+ *     <li>{@value #METRIC_REENCRYPTED} - values re-encrypted</li>
+ *     <li>{@value #METRIC_FAILED} - values which could not be decrypted with any key of the keyring</li>
+ *     <li>{@value #METRIC_PROGRESS} - fraction of the rows scanned by the current or last pass</li>
+ *     <li>{@value #METRIC_KEY_VERSION} - version of the current key of this node</li>
+ * </ul>
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class JWKReEncryptionJob {
+    public static final String METRIC_REENCRYPTED = "webauthn.jwk.reencrypted";
+    public static final String METRIC_FAILED = "webauthn.jwk.reencryption_failed";
+    public static final String METRIC_PROGRESS = "webauthn.jwk.reencryption_progress";
+    public static final String METRIC_KEY_VERSION = "webauthn.jwk.reencryption_key_version";
+    static final String COUNT = "SELECT COUNT(*) FROM webauthn_jwk";
+    static final String SELECT_CHUNK = "SELECT kid, jwkData FROM webauthn_jwk WHERE kid > ? ORDER BY kid LIMIT ?";
+    static final String UPDATE = "UPDATE webauthn_jwk SET jwkData = ? WHERE kid = ? AND jwkData = ?";
+
+    private JdbcTemplate jdbcTemplate;
+    private EncryptionService encryptionService;
+    private JdbcLease lease;
+    private boolean enabled;
+    private long rateSeconds;
+    private int chunkSize;
+    private Duration throttle;
+    private Counter reEncrypted;
+    private Counter failed;
+    private AtomicLong total = new AtomicLong();
+    private AtomicLong scanned = new AtomicLong();
+    private long failedInPass;
+    private volatile boolean complete;
+    private ScheduledExecutorService executor;
+
+    public record Progress(long total, long scanned, boolean complete) {
+    }
+
+    public JWKReEncryptionJob(JdbcTemplate jdbcTemplate, EncryptionService encryptionService, JdbcLease lease,
+                              MeterRegistry meterRegistry, boolean enabled, long rateSeconds, int chunkSize,
+                              Duration throttle) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.encryptionService = encryptionService;
+        this.lease = lease;
+        this.enabled = enabled;
+        this.rateSeconds = rateSeconds;
+        this.chunkSize = chunkSize;
+        this.throttle = throttle;
+        this.reEncrypted = Counter.builder(METRIC_REENCRYPTED)
+                .description("webauthn_jwk values re-encrypted with the current key")
+                .register(meterRegistry);
+        this.failed = Counter.builder(METRIC_FAILED)
+                .description("webauthn_jwk values no key of the keyring could decrypt")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PROGRESS, this, JWKReEncryptionJob::progressRatio)
+                .description("Fraction of webauthn_jwk rows scanned by the re-encryption")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_KEY_VERSION, encryptionService, EncryptionService::getCurrentVersion)
+                .description("Version of the AES key values are re-encrypted to")
+                .register(meterRegistry);
+    }
+
+    public void start() {
+        if (!enabled) {
+            log.info("JWK re-encryption disabled");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jwk-re-encryption");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::run, 0, rateSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Scans the whole table once, re-encrypting the values not encrypted with the current key.
+     *
+     * @return number of values re-encrypted, -1 if another node holds the lease
+     * @throws InterruptedException if stopped while pausing between chunks
+     */
+    public long reEncryptAll() throws InterruptedException {
+        int version = encryptionService.getCurrentVersion();
+        if (!lease.tryAcquire()) {
+            log.info("JWK re-encryption lease held by another node");
+            return -1;
+        }
+        try {
+            complete = false;
+            failedInPass = 0;
+            total.set(jdbcTemplate.queryForObject(COUNT, Long.class));
+            scanned.set(0);
+            long count = 0;
+            String lastKid = "";
+            while (true) {
+                List<Map<String, Object>> rows = jdbcTemplate.queryForList(SELECT_CHUNK, lastKid, chunkSize);
+                for (Map<String, Object> row : rows) {
+                    lastKid = (String) row.get("kid");
+                    count += reEncrypt(lastKid, (String) row.get("jwkData")) ? 1 : 0;
+                }
+                scanned.addAndGet(rows.size());
+                if (rows.size() < chunkSize) {
+                    break;
+                }
+                log.info("JWK re-encryption: {} of {} rows scanned, {} re-encrypted", scanned.get(), total.get(), count);
+                Thread.sleep(throttle.toMillis());
+                if (!lease.tryAcquire()) {
+                    log.warn("JWK re-encryption lease lost after {} rows, stopping until the next run", scanned.get());
+                    return count;
+                }
+            }
+            if (failedInPass > 0) {
+                log.warn("JWK re-encryption pass ended: {} rows scanned, {} re-encrypted to key version {}, {} failed",
+                        scanned.get(), count, version, failedInPass);
+                return count;
+            }
+            complete = true;
+            log.info("JWK re-encryption complete: {} rows scanned, {} re-encrypted to key version {}", scanned.get(),
+                    count, version);
+            return count;
+        } finally {
+            lease.release();
+        }
+    }
+
+    public Progress progress() {
+        return new Progress(total.get(), scanned.get(), complete);
+    }
+
+    private boolean reEncrypt(String kid, String value) {
+        if (encryptionService.isCurrent(value)) {
+            return false;
+        }
+        try {
+            // only if unchanged, a key saved meanwhile is already encrypted with the current key
+            int updated = jdbcTemplate.update(UPDATE, encryptionService.reEncrypt(value), kid, value);
+            reEncrypted.increment(updated);
+            return updated == 1;
+        } catch (RootException e) {
+            failed.increment();
+            failedInPass++;
+            log.warn("Failed to re-encrypt JWK {}", kid, e);
+            return false;
+        }
+    }
+
+    private double progressRatio() {
+        long rows = total.get();
+        return rows == 0 ? 1.0 : Math.min(1.0, (double) scanned.get() / rows);
+    }
+
+    private void run() {
+        try {
+            reEncryptAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule, log it and try again on the next run.
+            log.warn("JWK re-encryption failed", e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package io.basswood.webauthn.service;
+
+import io.basswood.webauthn.model.jwk.KeyUseEnum;
+import io.basswood.webauthn.repository.JdbcLease;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotates the signature and encryption keys in the background, so that no request ever waits for a key to be
+ * generated. Every run chooses the keys in use again from the database (picking up keys created by other nodes, see
+ * {@link JWKService}), creates a new key for a use whose latest key expires within {@code aheadOfTime}, and removes keys which expired more than
+ * {@code retireAfter} ago. {@code retireAfter} must be at least the longest lifetime of a token, a token signed just
+ * before its key expired is still verified with it until then.
+ * <p>
+ * Creating and retiring keys is done under a {@link JdbcLease}, so only one node of a cluster does it. The first run
+ * is on {@link #start()}, so a fresh cluster has its keys before the first request needs one.
+ * <p>
+ * Metrics:
+ * <ul>
+ *     <li>{@value #METRIC_ROTATED} - keys created ahead of expiry</li>
+ *     <li>{@value #METRIC_RETIRED} - expired keys removed</li>
+ * </ul>
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class JWKRotationScheduler {
+    public static final String METRIC_ROTATED = "webauthn.jwk.rotated";
+    public static final String METRIC_RETIRED = "webauthn.jwk.retired";
+
+    private JWKService jwkService;
+    private JdbcLease lease;
+    private boolean enabled;
+    private long rateSeconds;
+    private Duration aheadOfTime;
+    private Duration retireAfter;
+    private Counter rotated;
+    private Counter retired;
+    private ScheduledExecutorService executor;
+
+    public JWKRotationScheduler(JWKService jwkService, JdbcLease lease, MeterRegistry meterRegistry, boolean enabled,
+                                long rateSeconds, Duration aheadOfTime, Duration retireAfter) {
+        this.jwkService = jwkService;
+        this.lease = lease;
+        this.enabled = enabled;
+        this.rateSeconds = rateSeconds;
+        this.aheadOfTime = aheadOfTime;
+        this.retireAfter = retireAfter;
+        this.rotated = Counter.builder(METRIC_ROTATED)
+                .description("JSON Web Keys created ahead of expiry")
+                .register(meterRegistry);
+        this.retired = Counter.builder(METRIC_RETIRED)
+                .description("Expired JSON Web Keys removed")
+                .register(meterRegistry);
+    }
+
+    public void start() {
+        if (!enabled) {
+            log.info("JWK rotation disabled");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jwk-rotation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::run, 0, rateSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the keys which are due and retires the expired ones, if this node gets the lease.
+     *
+     * @return true if the lease was needed and taken
+     */
+    public boolean rotate() {
+        jwkService.refreshLatestKeys();
+        List<KeyUseEnum> due = dueKeyUses();
+        Date retireBefore = Date.from(Instant.now().minus(retireAfter));
+        if (due.isEmpty() && !jwkService.hasKeysExpiredBefore(retireBefore)) {
+            return false;
+        }
+        if (!lease.tryAcquire()) {
+            log.debug("JWK rotation lease held by another node");
+            return false;
+        }
+        try {
+            for (KeyUseEnum keyUse : dueKeyUses()) { // again, the previous holder of the lease may have rotated
+                String kid = jwkService.rotate(keyUse).getKeyID();
+                rotated.increment();
+                log.info("Rotated {} key, new kid {}", keyUse, kid);
+            }
+            List<String> kids = jwkService.retireKeys(retireBefore);
+            retired.increment(kids.size());
+            if (!kids.isEmpty()) {
+                log.info("Retired keys {}", kids);
+            }
+            return true;
+        } finally {
+            lease.release();
+        }
+    }
+
+    private List<KeyUseEnum> dueKeyUses() {
+        return Arrays.stream(KeyUseEnum.values())
+                .filter(keyUse -> jwkService.isRotationDue(keyUse, aheadOfTime))
+                .toList();
+    }
+
+    private void run() {
+        try {
+            rotate();
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule, log it and try again on the next run.
+            log.warn("Failed to rotate keys", e);
+        }
+    }
+}
@@ -1,58 +1,118 @@
 package io.basswood.webauthn.service;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import com.nimbusds.jose.jwk.JWK;
-import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jose.jwk.KeyUse;
 import io.basswood.webauthn.dto.JWKCreateDTO;
 import io.basswood.webauthn.exception.DuplicateEntityFound;
 import io.basswood.webauthn.exception.EntityNotFound;
+import io.basswood.webauthn.exception.ServerBusy;
 import io.basswood.webauthn.model.jwk.JWKEntity;
 import io.basswood.webauthn.model.jwk.JWKEntityConverter;
+import io.basswood.webauthn.model.jwk.JWKValidityRow;
 import io.basswood.webauthn.model.jwk.KeyUseEnum;
 import io.basswood.webauthn.repository.JWKRepository;
+import io.basswood.webauthn.repository.JdbcLease;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Date;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static io.basswood.webauthn.model.jwk.JWKEntity.ONE_MONTH_DURATION;
 
 /**
+ * Creates, stores and looks up the JSON Web Keys. Keys are cached by kid; the keys used to verify token signatures are
+ * additionally cached as {@link VerificationKey}s, so that a protected call does not re-parse the key and build a new
+ * verifier every time.
+ * <p>
+ * The public key set is kept as a {@link JWKSetSnapshot}, rebuilt only when a key is created, saved or removed through
+ * this service, or when it is older than {@code jwksRefreshInterval} (to pick up keys changed by another instance).
+ * A rebuild reads the kids only, the public keys are kept in memory and just a key not seen before is read and
+ * decrypted.
+ * <p>
+ * A new key is in the key set at once, but signs or encrypts only once it has been there for {@code publishDelay}, the
+ * time another instance or a verifier may serve a key set cached before. The key in use stays in use until it expires
+ * within {@code switchAhead}, then the next key published long enough takes over. Only when no key has been published
+ * long enough, on a fresh install, is the latest key used at once.
+ * <p>
+ * A key created because there is no usable one at all is created under {@code keyCreationLease}, the lease of the
+ * {@link JWKRotationScheduler}, so that nodes starting together do not each create their own. A node which does not
+ * get the lease waits for the key the holder creates, at most the duration of the lease, then fails with
+ * {@link ServerBusy}.
+ *
  * @author shamualr
  * @since 1.0
  */
 public class JWKService {
+    private static final long KEY_CREATION_POLL_MILLIS = 100;
+
     private JWKRepository jwkRepository;
     private JWKEntityConverter converter;
 
     private NimbusJOSEHelper nimbusJOSEHelper;
-    private LoadingCache<String, JWKEntity> keyCache;
-    private JWK latestSignatureKey;
-    private JWK latestEncryptionKey;
+    private Cache<String, JWKEntity> keyCache;
+    private Cache<String, VerificationKey> verificationKeyCache;
+    private Cache<String, JWK> publicKeyCache;
+    private Cache<String, Boolean> unknownKidCache;
+    private AlgorithmSelectionStrategy algorithmSelectionStrategy;
+    private AtomicLong keyGeneration = new AtomicLong();
+    private AtomicLong keySetVersion = new AtomicLong();
+    private ReentrantLock snapshotLock = new ReentrantLock();
+    private Duration jwksRefreshInterval;
+    private volatile JWKSetSnapshot jwksSnapshot;
+    private ReentrantLock latestKeyLock = new ReentrantLock();
+    private volatile JWK latestSignatureKey;
+    private volatile SigningKey latestSigningKey;
+    private volatile JWK latestEncryptionKey;
+    private Duration publishDelay;
+    private Duration switchAhead;
+    private JdbcLease keyCreationLease;
 
     public JWKService(JWKRepository jwkRepository) {
+        this(jwkRepository, Duration.ofMinutes(5), Duration.ZERO, Duration.ZERO, null);
+    }
+
+    /**
+     * @param publishDelay     how long a new key is in the key set before it is used
+     * @param switchAhead      how long before the key in use expires the next one takes over
+     * @param keyCreationLease taken to create a key when there is none, null on a single node
+     */
+    public JWKService(JWKRepository jwkRepository, Duration jwksRefreshInterval, Duration publishDelay,
+                      Duration switchAhead, JdbcLease keyCreationLease) {
         this.jwkRepository = jwkRepository;
+        this.jwksRefreshInterval = jwksRefreshInterval;
+        this.publishDelay = publishDelay;
+        this.switchAhead = switchAhead;
+        this.keyCreationLease = keyCreationLease;
         this.converter = new JWKEntityConverter();
         this.nimbusJOSEHelper = new NimbusJOSEHelper();
+        // No CacheLoader: a Guava load runs inside synchronized(entry), which would pin a virtual thread for the
+        // whole database round trip. getJWKEntity() does getIfPresent/put instead.
         keyCache = CacheBuilder.newBuilder()
                 .expireAfterWrite(1, TimeUnit.DAYS)
                 .maximumSize(1000)
-                .build(new CacheLoader<>() {
-                    @Override
-                    public JWKEntity load(String kid) {
-                        Optional<JWKEntity> entity = jwkRepository.findDistinctByKid(kid);
-                        if(entity.isPresent()){
-                            return entity.get();
-                        }else{
-                            throw new EntityNotFound(JWKEntity.class, kid);
-                        }
-                    }
-                });
+                .build();
+        verificationKeyCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(1, TimeUnit.DAYS)
+                .maximumSize(1000)
+                .build();
+        publicKeyCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(1, TimeUnit.DAYS)
+                .maximumSize(1000)
+                .build();
+        unknownKidCache = CacheBuilder.newBuilder()
+                .expireAfterWrite(jwksRefreshInterval)
+                .maximumSize(10000)
+                .build();
+        algorithmSelectionStrategy = new AlgorithmSelectionStrategy() {
+        };
     }
 
     public JWK createKey(JWKCreateDTO dto) {
@@ -64,6 +124,8 @@ public class JWKService {
         JWKEntity entity = converter.toEntity(jwk);
         jwkRepository.save(entity);
         keyCache.put(entity.getKid(), entity);
+        cachePublicKey(jwk);
+        keySetVersion.incrementAndGet();
         return jwk;
     }
 
@@ -75,6 +137,8 @@ public class JWKService {
         }
         JWKEntity saved = jwkRepository.save(entity);
         keyCache.put(saved.getKid(), saved);
+        cachePublicKey(jwk);
+        keySetVersion.incrementAndGet();
         return saved;
     }
 
@@ -93,54 +157,277 @@ public class JWKService {
         return optional;
     }
 
-    public JWKSet jwks() {
-        List<JWKEntity> keys = jwkRepository.findAll();
-        List<JWK> jwks = keys.stream()
-                .map(jwkEntity -> converter.toJWK(jwkEntity))
-                .collect(Collectors.toList());
-        return new JWKSet(jwks);
+    /**
+     * Returns the parsed key and a verifier for it, building both on the first call for a kid.
+     *
+     * @param kid the key id from the token header
+     * @return the verification key if a key with this kid exists
+     */
+    public Optional<VerificationKey> verificationKey(String kid) {
+        VerificationKey verificationKey = verificationKeyCache.getIfPresent(kid);
+        if (verificationKey != null) {
+            return Optional.of(verificationKey);
+        }
+        Optional<JWKEntity> optional = getJWKEntity(kid);
+        if (optional.isEmpty()) {
+            return Optional.empty();
+        }
+        JWK jwk = converter.toJWK(optional.get()).toPublicJWK();
+        verificationKey = new VerificationKey(kid, jwk, algorithmSelectionStrategy.verifier(jwk),
+                algorithmSelectionStrategy.signatureAlgorithm(jwk), optional.get().getExpiryTime());
+        verificationKeyCache.put(kid, verificationKey);
+        return Optional.of(verificationKey);
+    }
+
+    /**
+     * Returns the current public key set snapshot, building a new one if a key changed since the last build or the
+     * snapshot is older than the refresh interval. Only the first caller after a change reads the database.
+     *
+     * @return the public key set snapshot
+     */
+    public JWKSetSnapshot jwksSnapshot() {
+        JWKSetSnapshot snapshot = jwksSnapshot;
+        if (isCurrent(snapshot)) {
+            return snapshot;
+        }
+        snapshotLock.lock();
+        try {
+            snapshot = jwksSnapshot;
+            if (isCurrent(snapshot)) {
+                return snapshot;
+            }
+            // Read the version first, a key changed while reading must still make this snapshot stale.
+            long version = keySetVersion.get();
+            snapshot = JWKSetSnapshot.of(version, publicKeys());
+            jwksSnapshot = snapshot;
+            return snapshot;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the public JWK JSON for the kid from the snapshot. A kid missing from the snapshot is looked up in the
+     * database, and if found there the snapshot is marked stale, so the key set catches up with another instance. A
+     * kid not found there either is not looked up again for {@code jwksRefreshInterval}.
+     *
+     * @param kid the key id
+     * @return the public JWK JSON if a key with this kid exists
+     */
+    public Optional<String> publicKeyJSON(String kid) {
+        Optional<String> publicKey = jwksSnapshot().publicKey(kid);
+        if (publicKey.isPresent() || unknownKidCache.getIfPresent(kid) != null) {
+            return publicKey;
+        }
+        Optional<JWKEntity> optional = getJWKEntity(kid);
+        if (optional.isEmpty()) {
+            unknownKidCache.put(kid, Boolean.TRUE);
+            return Optional.empty();
+        }
+        JWK jwk = cachePublicKey(converter.toJWK(optional.get()));
+        keySetVersion.incrementAndGet(); // the rebuild takes this key from publicKeyCache
+        return Optional.of(jwk.toJSONString());
     }
 
     /**
-     * Returns the latest key for signature. If none found or expired then creates a new one and returns. It updates the
-     * keyCache accordingly if needed.
+     * The public keys of all kids in the database, in kid order. Only a key not in {@code publicKeyCache} is read.
+     */
+    private List<JWK> publicKeys() {
+        List<String> kids = jwkRepository.findKids();
+        List<String> missing = kids.stream().filter(kid -> publicKeyCache.getIfPresent(kid) == null).toList();
+        if (!missing.isEmpty()) {
+            jwkRepository.findAllById(missing).forEach(entity -> cachePublicKey(converter.toJWK(entity)));
+        }
+        return kids.stream().map(publicKeyCache::getIfPresent).filter(Objects::nonNull).toList();
+    }
+
+    private JWK cachePublicKey(JWK jwk) {
+        JWK publicJWK = jwk.toPublicJWK();
+        publicKeyCache.put(publicJWK.getKeyID(), publicJWK);
+        unknownKidCache.invalidate(publicJWK.getKeyID());
+        return publicJWK;
+    }
+
+    private boolean isCurrent(JWKSetSnapshot snapshot) {
+        return snapshot != null && snapshot.version() == keySetVersion.get()
+                && snapshot.builtAt().plus(jwksRefreshInterval).isAfter(Instant.now());
+    }
+
+    /**
+     * Returns the latest key for signature. Normally the {@link JWKRotationScheduler} has created and published the
+     * next key long before this one expires, if not (no key yet, or rotation disabled) one is loaded or created here,
+     * by a single thread of a single node.
      * @return
      */
     public JWK latestSignatureKey() {
-        if(latestSignatureKey != null && latestSignatureKey.getExpirationTime().after(new Date())){
-            return latestSignatureKey;
+        JWK jwk = latestSignatureKey;
+        if (isUsable(jwk)) {
+            return jwk;
         }
-        latestSignatureKey = null; // no key or the key is expired.
-        Optional<JWKEntity> optionalJWK = jwkRepository.findFirstByKeyUseAndExpiryTimeAfterOrderByExpiryTimeDesc(KeyUseEnum.SIGNATURE, new Date());
-        if(optionalJWK.isPresent()){
-            latestSignatureKey = converter.toJWK(optionalJWK.get());
-            keyCache.put(optionalJWK.get().getKid(), optionalJWK.get());
-            return latestSignatureKey;
+        return loadOrCreateLatestKey(KeyUseEnum.SIGNATURE);
+    }
+
+    /**
+     * Returns the signer and header of the {@link #latestSignatureKey()}, built once per key.
+     */
+    public SigningKey latestSigningKey() {
+        JWK jwk = latestSignatureKey();
+        SigningKey signingKey = latestSigningKey;
+        if (signingKey == null || !signingKey.kid().equals(jwk.getKeyID())) {
+            signingKey = SigningKey.of(jwk, algorithmSelectionStrategy);
+            latestSigningKey = signingKey;
         }
-        // none found. So create a new one
-        return latestSignatureKey = createKey(JWKCreateDTO.builder().build());
+        return signingKey;
     }
 
     /**
-     * Returns the latest key for encryption. If none found or expired then creates a new one and returns. It updates the
-     * keyCache accordingly if needed
+     * Returns the latest key for encryption. See {@link #latestSignatureKey()}.
      * @return
      */
     public JWK latestEncryptionKey() {
-        if(latestEncryptionKey != null && latestEncryptionKey.getExpirationTime().after(new Date())){
-            return latestEncryptionKey;
+        JWK jwk = latestEncryptionKey;
+        if (isUsable(jwk)) {
+            return jwk;
         }
-        latestEncryptionKey = null; // no key or the key is expired.
-        Optional<JWKEntity> optionalJWK = jwkRepository.findFirstByKeyUseAndExpiryTimeAfterOrderByExpiryTimeDesc(KeyUseEnum.ENCRYPTION, new Date());
-        if(optionalJWK.isPresent()){
-            latestEncryptionKey = converter.toJWK(optionalJWK.get());
-            keyCache.put(optionalJWK.get().getKid(), optionalJWK.get());
-            return latestEncryptionKey;
+        return loadOrCreateLatestKey(KeyUseEnum.ENCRYPTION);
+    }
+
+    /**
+     * Chooses the signature and encryption keys in use again from the database, picking up keys created ahead of time
+     * by this or another node once they have been published long enough.
+     */
+    public void refreshLatestKeys() {
+        for (KeyUseEnum keyUse : KeyUseEnum.values()) {
+            findKeyInUse(keyUse).ifPresent(jwk -> publishLatestKey(keyUse, jwk));
         }
-        // none found. So create a new one
-        return latestEncryptionKey = createKey(JWKCreateDTO.builder()
-                .keyUseEnum(KeyUseEnum.ENCRYPTION)
-                .build());
+    }
+
+    /**
+     * @param keyUse      signature or encryption
+     * @param aheadOfTime how long before the expiry of the latest key a new key is due
+     * @return true if no key of this use is valid for at least {@code aheadOfTime}
+     */
+    public boolean isRotationDue(KeyUseEnum keyUse, Duration aheadOfTime) {
+        return jwkRepository.findValidityRowsByKeyUseAndExpiryTimeAfter(keyUse,
+                Date.from(Instant.now().plus(aheadOfTime))).isEmpty();
+    }
+
+    /**
+     * Creates a new key of this use. It is in the key set at once, and used once it has been there for
+     * {@code publishDelay}, or at once if there is no other key to use.
+     *
+     * @param keyUse signature or encryption
+     * @return the new key
+     */
+    public JWK rotate(KeyUseEnum keyUse) {
+        JWK jwk = createKey(JWKCreateDTO.builder().keyUseEnum(keyUse).build());
+        findKeyInUse(keyUse).ifPresent(inUse -> publishLatestKey(keyUse, inUse));
+        return jwk;
+    }
+
+    public boolean hasKeysExpiredBefore(Date expiredBefore) {
+        return jwkRepository.existsByExpiryTimeBefore(expiredBefore);
+    }
+
+    /**
+     * Removes the keys which expired before the given time.
+     *
+     * @param expiredBefore keys expiring before this time are removed
+     * @return the kids of the removed keys
+     */
+    public List<String> retireKeys(Date expiredBefore) {
+        List<String> kids = jwkRepository.findKidByExpiryTimeBefore(expiredBefore);
+        for (String kid : kids) {
+            try {
+                removeKey(kid);
+            } catch (EntityNotFound e) {
+                // removed by another node meanwhile
+            }
+        }
+        return kids;
+    }
+
+    private JWK loadOrCreateLatestKey(KeyUseEnum keyUse) {
+        latestKeyLock.lock();
+        try {
+            JWK jwk = keyUse == KeyUseEnum.SIGNATURE ? latestSignatureKey : latestEncryptionKey;
+            if (isUsable(jwk)) { // published by another thread meanwhile
+                return jwk;
+            }
+            Optional<JWK> latest = findKeyInUse(keyUse);
+            long deadline = keyCreationLease == null ? 0 : System.currentTimeMillis() + keyCreationLease.getDuration().toMillis();
+            while (latest.isEmpty()) { // none found, create one under the lease or wait for the node holding it
+                if (keyCreationLease == null) {
+                    latest = Optional.of(createKey(JWKCreateDTO.builder().keyUseEnum(keyUse).build()));
+                } else if (keyCreationLease.tryAcquire()) {
+                    try {
+                        latest = findKeyInUse(keyUse); // again, the previous holder may have created it
+                        if (latest.isEmpty()) {
+                            latest = Optional.of(createKey(JWKCreateDTO.builder().keyUseEnum(keyUse).build()));
+                        }
+                    } finally {
+                        keyCreationLease.release();
+                    }
+                } else if (System.currentTimeMillis() < deadline) {
+                    pauseForKeyCreation();
+                    latest = findKeyInUse(keyUse);
+                } else {
+                    throw new ServerBusy("No " + keyUse + " key yet, another node is creating one");
+                }
+            }
+            publishLatestKey(keyUse, latest.get());
+            return latest.get();
+        } finally {
+            latestKeyLock.unlock();
+        }
+    }
+
+    private static void pauseForKeyCreation() {
+        try {
+            Thread.sleep(KEY_CREATION_POLL_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServerBusy("Interrupted while waiting for a key to be created", e);
+        }
+    }
+
+    /**
+     * The first expiring key published for {@code publishDelay} which does not expire within {@code switchAhead}. If
+     * all of those do, the last expiring of them, and if none was published long enough, the last expiring key.
+     */
+    private Optional<JWK> findKeyInUse(KeyUseEnum keyUse) {
+        long now = System.currentTimeMillis();
+        List<JWKValidityRow> rows = jwkRepository.findValidityRowsByKeyUseAndExpiryTimeAfter(keyUse, new Date(now));
+        if (rows.isEmpty()) {
+            return Optional.empty();
+        }
+        Date publishedBefore = new Date(now - publishDelay.toMillis());
+        Date switchAt = new Date(now + switchAhead.toMillis());
+        List<JWKValidityRow> published = rows.stream()
+                .filter(row -> row.createdTime() == null || !row.createdTime().after(publishedBefore))
+                .toList();
+        JWKValidityRow inUse = published.stream()
+                .filter(row -> row.expiryTime().after(switchAt))
+                .findFirst()
+                .orElse(published.isEmpty() ? rows.get(rows.size() - 1) : published.get(published.size() - 1));
+        return getJWKEntity(inUse.kid()).map(converter::toJWK);
+    }
+
+    private void publishLatestKey(KeyUseEnum keyUse, JWK jwk) {
+        if (keyUse == KeyUseEnum.SIGNATURE) {
+            JWK previous = latestSignatureKey;
+            latestSignatureKey = jwk;
+            if (previous != null && !previous.getKeyID().equals(jwk.getKeyID())) {
+                // rotated, rebuild the verifier of the previous key on its next use.
+                verificationKeyCache.invalidate(previous.getKeyID());
+            }
+        } else {
+            latestEncryptionKey = jwk;
+        }
+    }
+
+    private static boolean isUsable(JWK jwk) {
+        return jwk != null && jwk.getExpirationTime().after(new Date());
     }
 
     public void removeKey(String kid){
@@ -150,6 +437,10 @@ public class JWKService {
         }
         jwkRepository.delete(optional.get());
         keyCache.invalidate(kid);
+        verificationKeyCache.invalidate(kid);
+        publicKeyCache.invalidate(kid);
+        keyGeneration.incrementAndGet();
+        keySetVersion.incrementAndGet();
         if(latestEncryptionKey!=null && kid.equals(latestEncryptionKey.getKeyID())){
             latestEncryptionKey = null;
         }
@@ -158,6 +449,14 @@ public class JWKService {
         }
     }
 
+    /**
+     * Incremented whenever a key is removed, so that anything derived from a verification can tell whether the key
+     * it was verified with may be gone.
+     */
+    public long keyGeneration() {
+        return keyGeneration.get();
+    }
+
     public JWK parse(String jwk){
         return nimbusJOSEHelper.parse(jwk);
     }
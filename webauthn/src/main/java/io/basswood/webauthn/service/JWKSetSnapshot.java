@@ -0,0 +1,48 @@
+package io.basswood.webauthn.service;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * An immutable, pre-serialized view of the public JSON Web Key Set. The set and every single key are serialized once,
+ * when the snapshot is built, and the ETag is the SHA-256 of the set so that it is the same on every instance serving
+ * the same keys.
+ *
+ * @param version   the {@link JWKService} key set version the snapshot was built from
+ * @param builtAt   when the snapshot was built
+ * @param etag      strong ETag of {@code json}, quoted
+ * @param json      the public JWKS as UTF-8 JSON
+ * @param jwkSet    the public key set
+ * @param publicKeys the public JWK JSON by kid
+ * @author shamualr
+ * @since 1.0
+ */
+public record JWKSetSnapshot(long version, Instant builtAt, String etag, byte[] json, JWKSet jwkSet,
+                             Map<String, String> publicKeys) {
+
+    public static JWKSetSnapshot of(long version, List<JWK> keys) {
+        List<JWK> publicKeys = keys.stream().map(JWK::toPublicJWK).toList();
+        JWKSet jwkSet = new JWKSet(publicKeys);
+        byte[] json = jwkSet.toString(true).getBytes(StandardCharsets.UTF_8);
+        String etag = "\"" + BaseEncoding.base64Url().omitPadding().encode(Hashing.sha256().hashBytes(json).asBytes()) + "\"";
+        return new JWKSetSnapshot(version, Instant.now(), etag, json, jwkSet, publicKeys.stream()
+                .collect(Collectors.toUnmodifiableMap(JWK::getKeyID, JWK::toJSONString, (first, second) -> first)));
+    }
+
+    public Optional<String> publicKey(String kid) {
+        return Optional.ofNullable(publicKeys.get(kid));
+    }
+
+    public boolean isEmpty() {
+        return publicKeys.isEmpty();
+    }
+}
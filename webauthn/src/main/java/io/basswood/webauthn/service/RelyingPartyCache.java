@@ -0,0 +1,121 @@
+package io.basswood.webauthn.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.AuthenticatorAttachment;
+import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubico.webauthn.data.ResidentKeyRequirement;
+import com.yubico.webauthn.data.UserVerificationRequirement;
+import io.basswood.webauthn.model.credential.CredentialRepositoryImpl;
+import io.basswood.webauthn.model.rp.AuthenticatorPreference;
+import io.basswood.webauthn.model.rp.RelyingPartyEntity;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Caches {@link CompiledRelyingParty} instances keyed by origin. A cache hit saves the origin and relying party
+ * lookups as well as building a new Yubico {@link RelyingParty} for every ceremony. Entries are invalidated when a
+ * relying party is created or removed and expire after {@link #EXPIRE_AFTER_WRITE_MINUTES} so that changes made by
+ * other nodes are eventually picked up.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public class RelyingPartyCache {
+    public static final String CACHE_NAME = "webauthn.relying-party";
+    public static final long EXPIRE_AFTER_WRITE_MINUTES = 10;
+    public static final long MAXIMUM_SIZE = 1000;
+    private RelyingPartyService relyingPartyService;
+    private CredentialRepositoryImpl credentialRepository;
+    private Cache<String, CompiledRelyingParty> cache;
+
+    public RelyingPartyCache(RelyingPartyService relyingPartyService, CredentialRepositoryImpl credentialRepository, MeterRegistry meterRegistry) {
+        this.relyingPartyService = relyingPartyService;
+        this.credentialRepository = credentialRepository;
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                .maximumSize(MAXIMUM_SIZE)
+                .recordStats()
+                .build();
+        if (meterRegistry != null) {
+            GuavaCacheMetrics.monitor(meterRegistry, cache, CACHE_NAME);
+        }
+    }
+
+    /**
+     * Returns the compiled relying party for the given origin, loading and compiling it on a cache miss. Unknown
+     * origins are not cached.
+     *
+     * @param origin the relying party origin
+     * @return the compiled relying party if one is registered for the origin
+     */
+    public Optional<CompiledRelyingParty> findByOrigin(String origin) {
+        CompiledRelyingParty compiled = cache.getIfPresent(origin);
+        if (compiled != null) {
+            return Optional.of(compiled);
+        }
+        Optional<RelyingPartyEntity> optional = relyingPartyService.findByOrigin(origin);
+        if (optional.isEmpty()) {
+            return Optional.empty();
+        }
+        compiled = compile(optional.get());
+        cache.put(origin, compiled);
+        return Optional.of(compiled);
+    }
+
+    public void invalidate(RelyingPartyEntity relyingPartyEntity) {
+        if (relyingPartyEntity.getOrigins() != null) {
+            cache.invalidateAll(relyingPartyEntity.getOrigins().stream()
+                    .map(origin -> origin.getOrigin())
+                    .collect(Collectors.toSet()));
+        }
+        // An origin could have been re-assigned, so also drop anything still pointing at this relying party.
+        cache.asMap().values().removeIf(compiled -> compiled.id().equals(relyingPartyEntity.getId()));
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    public CompiledRelyingParty compile(RelyingPartyEntity relyingPartyEntity) {
+        RelyingParty rp = RelyingParty.builder()
+                .identity(RelyingPartyIdentity.builder()
+                        .id(relyingPartyEntity.getId())
+                        .name(relyingPartyEntity.getName())
+                        .build())
+                .credentialRepository(credentialRepository)
+                .origins(relyingPartyEntity.getOrigins().stream().map(t -> t.getOrigin()).collect(Collectors.toSet()))
+                .allowOriginPort(relyingPartyEntity.getAllowOriginPort())
+                .allowOriginSubdomain(relyingPartyEntity.getAllowOriginSubdomain())
+                .build();
+        UserVerificationRequirement userVerification = relyingPartyEntity.getUserVerification() != null
+                ? UserVerificationRequirement.valueOf(relyingPartyEntity.getUserVerification().name())
+                : null;
+        return new CompiledRelyingParty(relyingPartyEntity.getId(), rp, authenticatorSelectionCriteria(relyingPartyEntity),
+                userVerification, relyingPartyEntity.getTimeout());
+    }
+
+    private AuthenticatorSelectionCriteria authenticatorSelectionCriteria(RelyingPartyEntity relyingPartyEntity) {
+        ResidentKeyRequirement keyRequirement = relyingPartyEntity.getResidentKey() == null ? null : ResidentKeyRequirement.valueOf(relyingPartyEntity.getResidentKey().toString());
+        UserVerificationRequirement userVerificationRequirement = relyingPartyEntity.getUserVerification() == null ? null : UserVerificationRequirement.valueOf(relyingPartyEntity.getUserVerification().toString());
+        AuthenticatorPreference.Attachment attachment = relyingPartyEntity.getAuthenticatorAttachment();
+        AuthenticatorAttachment authenticatorAttachment = (attachment == null) ? AuthenticatorAttachment.CROSS_PLATFORM : AuthenticatorAttachment.valueOf(attachment.toString());
+        return AuthenticatorSelectionCriteria.builder()
+                .authenticatorAttachment(authenticatorAttachment)
+                .residentKey(keyRequirement)
+                .userVerification(userVerificationRequirement)
+                .authenticatorAttachment(Optional.of(authenticatorAttachment))
+                .build();
+    }
+}
@@ -0,0 +1,151 @@
+package io.basswood.webauthn.service;
+
+import io.basswood.webauthn.exception.RootException;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes the signature counters reported by successful assertions. Only the {@code signatureCount} column is updated
+ * and the update never lowers the stored value, so updates can be applied in any order.
+ * <ul>
+ *     <li>{@link Mode#sync} - the counter is written before {@link #update(String, long)} returns.</li>
+ *     <li>{@link Mode#deferred} - updates are coalesced per credential, keeping the highest counter, and written in
+ *     JDBC batches at most {@code maxDelayMillis} later, or as soon as {@code maxBatchSize} credentials are pending.
+ *     Until then the stored counter lags behind, which only delays the detection of cloned authenticators.</li>
+ * </ul>
+ * Pending updates are flushed on {@link #stop()}.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class SignatureCounterUpdater {
+    public static final String METRIC_QUEUE_DEPTH = "webauthn.signature_counter.queue_depth";
+    public static final String METRIC_FLUSH = "webauthn.signature_counter.flush";
+    static final String UPDATE = "UPDATE webauthn_registered_credential SET signatureCount = GREATEST(signatureCount, ?) WHERE credentialId = ?";
+
+    public enum Mode {
+        sync, deferred
+    }
+
+    private JdbcTemplate jdbcTemplate;
+    private Mode mode;
+    private long maxDelayMillis;
+    private int maxBatchSize;
+    private ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<>();
+    private AtomicBoolean flushRequested = new AtomicBoolean();
+    private Timer flushTimer;
+    private ScheduledExecutorService executor;
+
+    public SignatureCounterUpdater(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry, Mode mode,
+                                   long maxDelayMillis, int maxBatchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.mode = mode;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.flushTimer = Timer.builder(METRIC_FLUSH)
+                .description("Time taken to write signature counters")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_QUEUE_DEPTH, pending, ConcurrentHashMap::size)
+                .description("Credentials with a signature counter waiting to be written")
+                .register(meterRegistry);
+    }
+
+    public void start() {
+        if (mode != Mode.deferred) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "signature-counter-updater");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::flushQuietly, maxDelayMillis, maxDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(maxDelayMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushQuietly();
+    }
+
+    /**
+     * Records a new signature counter for a credential. Authenticators that do not implement a counter always report
+     * zero, for those there is nothing to write.
+     *
+     * @param credentialId     base64url credential id
+     * @param signatureCount   the counter reported by the authenticator
+     */
+    public void update(String credentialId, long signatureCount) {
+        if (signatureCount <= 0) {
+            return;
+        }
+        if (mode == Mode.sync) {
+            int updated = flushTimer.record(() -> jdbcTemplate.update(UPDATE, signatureCount, credentialId));
+            if (updated == 0) {
+                throw new RootException("No credential found");
+            }
+            return;
+        }
+        pending.merge(credentialId, signatureCount, Math::max);
+        if (pending.size() >= maxBatchSize && executor != null && !executor.isShutdown()
+                && flushRequested.compareAndSet(false, true)) {
+            executor.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * Writes all the pending updates in one JDBC batch. Updates that fail are put back and retried on the next flush.
+     *
+     * @return number of credentials written
+     */
+    public int flush() {
+        List<Object[]> batch = new ArrayList<>();
+        for (String credentialId : pending.keySet()) {
+            Long signatureCount = pending.remove(credentialId);
+            if (signatureCount != null) {
+                batch.add(new Object[]{signatureCount, credentialId});
+            }
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        try {
+            flushTimer.record(() -> jdbcTemplate.batchUpdate(UPDATE, batch));
+        } catch (RuntimeException e) {
+            batch.forEach(args -> pending.merge((String) args[1], (Long) args[0], Math::max));
+            throw e;
+        }
+        return batch.size();
+    }
+
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    private void flushQuietly() {
+        flushRequested.set(false);
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.warn("Failed to write signature counters, {} pending", pending.size(), e);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package io.basswood.webauthn.service;
+
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.jwk.JWK;
+
+/**
+ * An immutable, ready to use signature key: the {@link JWSSigner} for the key together with its header, already
+ * Base64URL encoded, so that signing a token only serializes the claims and computes the signature. Nimbus signers are
+ * thread safe, one instance is shared by all requests.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public record SigningKey(String kid, JWK jwk, JWSSigner signer, JWSHeader header, String encodedHeader) {
+
+    public static SigningKey of(JWK jwk, AlgorithmSelectionStrategy algorithmSelectionStrategy) {
+        JWSHeader header = new JWSHeader.Builder(algorithmSelectionStrategy.signatureAlgorithm(jwk))
+                .keyID(jwk.getKeyID())
+                .type(JOSEObjectType.JWT)
+                .build();
+        return new SigningKey(jwk.getKeyID(), jwk, algorithmSelectionStrategy.signer(jwk), header,
+                header.toBase64URL().toString());
+    }
+}
@@ -7,13 +7,16 @@ import com.nimbusds.jose.JWEObject;
 import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jose.Payload;
 import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.util.Base64URL;
 import com.nimbusds.jwt.JWTClaimNames;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
 import io.basswood.webauthn.exception.RootException;
 import io.basswood.webauthn.exception.TokenValidationError;
+import io.basswood.webauthn.model.token.AuthenticatedPrincipal;
 import io.basswood.webauthn.model.token.Token;
 
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.time.Duration;
 import java.time.Instant;
@@ -42,15 +45,47 @@ public class TokenGenerator {
         return signedJWT;
     }
 
-    public JWEObject encryptJWT(JWK jwk, SignedJWT signedJWT) {
-        JWEObject jweObject = new JWEObject(new JWEHeader.Builder(algorithmSelectionStrategy.encryptionAlgorithm(jwk),
-                algorithmSelectionStrategy.encryptionMethod())
-                .contentType("JWT") // required to indicate nested JWT
-                .keyID(jwk.getKeyID()).build(),
-                new Payload(signedJWT));
+    /**
+     * Signs the token with a ready made signer and header, and returns its compact serialization. Produces the same
+     * token as {@link #createSignedJWT(JWK, Token)}, for minting many tokens with one key.
+     */
+    public String sign(SigningKey signingKey, Token token) {
+        String signingInput = signingKey.encodedHeader() + '.' + Base64URL.encode(jwtClaimsSet(token).toString());
+        try {
+            Base64URL signature = signingKey.signer().sign(signingKey.header(), signingInput.getBytes(StandardCharsets.US_ASCII));
+            return signingInput + '.' + signature;
+        } catch (JOSEException e) {
+            throw new RootException("Failed to sign jwt token", e);
+        }
+    }
+
+    public SigningKey signingKey(JWK jwk) {
+        return SigningKey.of(jwk, algorithmSelectionStrategy);
+    }
+
+    public EncryptionKey encryptionKey(JWK jwk) {
+        return EncryptionKey.of(jwk, algorithmSelectionStrategy);
+    }
 
+    /**
+     * Encrypts the compact serialization of a signed JWT with a ready made encrypter, and returns the compact
+     * serialization of the JWE.
+     */
+    public String encrypt(EncryptionKey encryptionKey, String signedJWT) {
+        JWEObject jweObject = new JWEObject(encryptionKey.header(), new Payload(signedJWT));
         try {
-            jweObject.encrypt(algorithmSelectionStrategy.encrypter(jwk));
+            jweObject.encrypt(encryptionKey.encrypter());
+        } catch (JOSEException e) {
+            throw new RootException("Encryption error", e);
+        }
+        return jweObject.serialize();
+    }
+
+    public JWEObject encryptJWT(JWK jwk, SignedJWT signedJWT) {
+        EncryptionKey encryptionKey = encryptionKey(jwk);
+        JWEObject jweObject = new JWEObject(encryptionKey.header(), new Payload(signedJWT));
+        try {
+            jweObject.encrypt(encryptionKey.encrypter());
         } catch (JOSEException e) {
             throw new RootException("Encryption error", e);
         }
@@ -95,19 +130,67 @@ public class TokenGenerator {
     }
 
     public boolean validateSignedJWT(JWK jwk, SignedJWT signedJWT) {
-        JWTClaimsSet claimsSet;
+        checkNotExpired(signedJWT);
+        return verifySignature(jwk, signedJWT);
+    }
+
+    /**
+     * Same as {@link #validateSignedJWT(JWK, SignedJWT)} with a ready made verifier, validated by
+     * {@link #authenticate(VerificationKey, SignedJWT)}.
+     *
+     * @return true, a token which is not valid throws
+     * @throws TokenValidationError if the token is expired, not signed by the key or the signature is invalid
+     */
+    public boolean validateSignedJWT(VerificationKey verificationKey, SignedJWT signedJWT) {
+        authenticate(verificationKey, signedJWT);
+        return true;
+    }
+
+    /**
+     * Validates the token with a ready made verifier and returns its claims as an {@link AuthenticatedPrincipal},
+     * parsing the claim set only once. The token must be signed by the key, with the algorithm of the key.
+     *
+     * @throws TokenValidationError if the token is expired, not signed by the key or the signature is invalid
+     */
+    public AuthenticatedPrincipal authenticate(VerificationKey verificationKey, SignedJWT signedJWT) {
+        AuthenticatedPrincipal principal = AuthenticatedPrincipal.of(claimsSet(signedJWT));
+        if (principal.isExpired(Instant.now())) {
+            throw new TokenValidationError("Token expired");
+        }
+        JWSHeader header = signedJWT.getHeader();
+        if (!verificationKey.kid().equals(header.getKeyID())) {
+            throw new TokenValidationError("Invalid signature key - keyId do not match");
+        }
+        if (!verificationKey.algorithm().equals(header.getAlgorithm())) {
+            throw new TokenValidationError("Invalid signature algorithm");
+        }
+        boolean verified;
+        try {
+            verified = signedJWT.verify(verificationKey.verifier());
+        } catch (JOSEException e) {
+            throw new TokenValidationError("Signature validation failed", e);
+        }
+        if (!verified) {
+            throw new TokenValidationError("Invalid token");
+        }
+        return principal;
+    }
+
+    private JWTClaimsSet claimsSet(SignedJWT signedJWT) {
         try {
-            claimsSet = signedJWT.getJWTClaimsSet();
+            return signedJWT.getJWTClaimsSet();
         } catch (ParseException e) {
             throw new TokenValidationError("Failed to parse claim set", e);
         }
-        Object exp = claimsSet.getClaim(JWTClaimNames.EXPIRATION_TIME);
+    }
+
+    private void checkNotExpired(SignedJWT signedJWT) {
+        Object exp = claimsSet(signedJWT).getClaim(JWTClaimNames.EXPIRATION_TIME);
         if (exp != null && exp instanceof Date expiryDate) {
             if (expiryDate.before(new Date())) {
                 throw new TokenValidationError("Token expired");
             }
         }
-        return verifySignature(jwk, signedJWT);
     }
 
     public void validateEncryptedToken(JWK jwk, String jsonWebEncryptedToken) {
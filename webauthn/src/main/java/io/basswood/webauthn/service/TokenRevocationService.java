@@ -0,0 +1,180 @@
+package io.basswood.webauthn.service;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the jti of revoked tokens until the tokens expire. Revocations are stored in {@code webauthn_revoked_token},
+ * and every node holds them in memory: a {@link BloomFilter} in front of the exact jti set. {@link #isRevoked(String)}
+ * never does I/O, and for a token which is not revoked it is usually answered by the bloom filter alone.
+ * <p>
+ * A background task reads the revocations made since its previous run (by {@code revokedTime}, which the database
+ * sets, so node clocks do not matter), deletes expired revocations, and rebuilds the bloom filter when entries expired
+ * or it filled up. A revocation made on another node is therefore enforced here after at most {@code refreshSeconds}.
+ * <p>
+ * Metrics:
+ * <ul>
+ *     <li>{@value #METRIC_SIZE} - revoked tokens not yet expired</li>
+ *     <li>{@value #METRIC_FALSE_POSITIVE} - checks the bloom filter could not answer for a token not revoked</li>
+ * </ul>
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class TokenRevocationService {
+    public static final String METRIC_SIZE = "webauthn.revoked_tokens.size";
+    public static final String METRIC_FALSE_POSITIVE = "webauthn.revoked_tokens.bloom_false_positive";
+    static final String INSERT = "INSERT IGNORE INTO webauthn_revoked_token (jti, expiryTime) VALUES (?, ?)";
+    static final String SELECT_SINCE = "SELECT jti, expiryTime, revokedTime FROM webauthn_revoked_token WHERE revokedTime >= ? AND expiryTime >= ?";
+    static final String DELETE_EXPIRED = "DELETE FROM webauthn_revoked_token WHERE expiryTime < ? ORDER BY expiryTime LIMIT ?";
+    /**
+     * Revocations are read again for this long, so that one committed late with an earlier revokedTime is not missed.
+     */
+    static final long OVERLAP_MILLIS = 5_000;
+    private static final int DELETE_BATCH_SIZE = 1000;
+
+    private JdbcTemplate jdbcTemplate;
+    private boolean enabled;
+    private long refreshSeconds;
+    private double falsePositiveProbability;
+    private long expectedInsertions;
+    private ConcurrentHashMap<String, Instant> revoked = new ConcurrentHashMap<>();
+    private volatile BloomFilter<CharSequence> bloomFilter;
+    private Timestamp watermark = new Timestamp(0);
+    private Counter falsePositives;
+    private ScheduledExecutorService executor;
+
+    public TokenRevocationService(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry, boolean enabled,
+                                  long refreshSeconds, long expectedInsertions, double falsePositiveProbability) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.enabled = enabled;
+        this.refreshSeconds = refreshSeconds;
+        this.expectedInsertions = expectedInsertions;
+        this.falsePositiveProbability = falsePositiveProbability;
+        this.bloomFilter = newBloomFilter(expectedInsertions);
+        this.falsePositives = Counter.builder(METRIC_FALSE_POSITIVE)
+                .description("Revocation checks the bloom filter could not answer for a token which is not revoked")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_SIZE, revoked, ConcurrentHashMap::size)
+                .description("Revoked tokens which have not expired yet")
+                .register(meterRegistry);
+    }
+
+    public void start() {
+        if (!enabled) {
+            log.info("Token revocation disabled");
+            return;
+        }
+        refresh(); // fail the startup rather than accept revoked tokens
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "token-revocation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::run, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Revokes the token with this jti on all nodes.
+     *
+     * @param jti    the token id
+     * @param expiry the token expiry, the revocation is kept until then
+     */
+    public void revoke(String jti, Instant expiry) {
+        jdbcTemplate.update(INSERT, jti, Timestamp.from(expiry));
+        add(jti, expiry);
+    }
+
+    /**
+     * @param jti the token id, may be null
+     * @return true if the token is revoked
+     */
+    public boolean isRevoked(String jti) {
+        if (jti == null || !bloomFilter.mightContain(jti)) {
+            return false;
+        }
+        Instant expiry = revoked.get(jti);
+        if (expiry == null) {
+            falsePositives.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the revocations made since the previous refresh and forgets, and deletes, the expired ones.
+     */
+    public void refresh() {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Timestamp since = new Timestamp(Math.max(0, watermark.getTime() - OVERLAP_MILLIS));
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList(SELECT_SINCE, since, now);
+        for (Map<String, Object> row : rows) {
+            add((String) row.get("jti"), ((Timestamp) row.get("expiryTime")).toInstant());
+            Timestamp revokedTime = (Timestamp) row.get("revokedTime");
+            if (revokedTime.after(watermark)) {
+                watermark = revokedTime;
+            }
+        }
+        boolean expired = revoked.values().removeIf(expiry -> expiry.isBefore(now.toInstant()));
+        if (expired || bloomFilter.expectedFpp() > falsePositiveProbability) {
+            rebuildBloomFilter();
+        }
+        int deleted;
+        do {
+            deleted = jdbcTemplate.update(DELETE_EXPIRED, now, DELETE_BATCH_SIZE);
+        } while (deleted == DELETE_BATCH_SIZE);
+    }
+
+    private void add(String jti, Instant expiry) {
+        // the set first, a jti in the bloom filter but not yet in the set would be let through
+        revoked.put(jti, expiry);
+        bloomFilter.put(jti);
+    }
+
+    private void rebuildBloomFilter() {
+        BloomFilter<CharSequence> rebuilt = newBloomFilter(Math.max(expectedInsertions, 2L * revoked.size()));
+        revoked.keySet().forEach(rebuilt::put);
+        bloomFilter = rebuilt;
+        // again, a jti revoked meanwhile may have gone into the previous filter only
+        revoked.keySet().forEach(rebuilt::put);
+    }
+
+    private BloomFilter<CharSequence> newBloomFilter(long expectedInsertions) {
+        return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedInsertions, falsePositiveProbability);
+    }
+
+    private void run() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule, log it and try again on the next run.
+            log.warn("Failed to refresh revoked tokens", e);
+        }
+    }
+}
@@ -6,6 +6,7 @@ import io.basswood.webauthn.model.user.User;
 import io.basswood.webauthn.model.user.Username;
 import io.basswood.webauthn.repository.UserRepository;
 import io.basswood.webauthn.repository.UsernameRepository;
+import io.basswood.webauthn.secret.RandomProvider;
 
 import java.security.SecureRandom;
 import java.util.Base64;
@@ -21,13 +22,17 @@ public class UserService {
     private static final int USER_HANDLE_LENGTH_IN_BYTES = 16;
     private UserRepository userRepository;
     private UsernameRepository usernameRepository;
-    private SecureRandom secureRandom;
+    private RandomProvider randomProvider;
 
 
     public UserService(UserRepository userRepository, UsernameRepository usernameRepository, SecureRandom secureRandom) {
+        this(userRepository, usernameRepository, RandomProvider.of(secureRandom));
+    }
+
+    public UserService(UserRepository userRepository, UsernameRepository usernameRepository, RandomProvider randomProvider) {
         this.userRepository = userRepository;
         this.usernameRepository = usernameRepository;
-        this.secureRandom = secureRandom;
+        this.randomProvider = randomProvider;
     }
 
     public Optional<User> findUserById(String userHandle) {
@@ -73,8 +78,7 @@ public class UserService {
     }
 
     private String generateRandomUserHandle() {
-        byte[] randomBytes = new byte[USER_HANDLE_LENGTH_IN_BYTES];
-        secureRandom.nextBytes(randomBytes);
+        byte[] randomBytes = randomProvider.nextBytes(USER_HANDLE_LENGTH_IN_BYTES);
         return Base64.getUrlEncoder().withoutPadding().encodeToString(randomBytes);
     }
 }
@@ -0,0 +1,18 @@
+package io.basswood.webauthn.service;
+
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.jwk.JWK;
+
+import java.util.Date;
+
+/**
+ * An immutable, ready to use view of a signature key: the parsed public {@link JWK} together with a
+ * {@link JWSVerifier} for it, so that checking a token signature does not decrypt, parse or build anything. Nimbus
+ * verifiers are thread safe, one instance is shared by all requests.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public record VerificationKey(String kid, JWK jwk, JWSVerifier verifier, JWSAlgorithm algorithm, Date expiryTime) {
+}
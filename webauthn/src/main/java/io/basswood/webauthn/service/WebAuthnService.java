@@ -9,9 +9,7 @@ import com.yubico.webauthn.RelyingParty;
 import com.yubico.webauthn.StartAssertionOptions;
 import com.yubico.webauthn.StartRegistrationOptions;
 import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
-import com.yubico.webauthn.data.AuthenticatorAttachment;
 import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
-import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
 import com.yubico.webauthn.data.AuthenticatorTransport;
 import com.yubico.webauthn.data.ByteArray;
 import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
@@ -20,10 +18,7 @@ import com.yubico.webauthn.data.PublicKeyCredential;
 import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
 import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
 import com.yubico.webauthn.data.RegistrationExtensionInputs;
-import com.yubico.webauthn.data.RelyingPartyIdentity;
-import com.yubico.webauthn.data.ResidentKeyRequirement;
 import com.yubico.webauthn.data.UserIdentity;
-import com.yubico.webauthn.data.UserVerificationRequirement;
 import com.yubico.webauthn.data.exception.Base64UrlException;
 import com.yubico.webauthn.exception.AssertionFailedException;
 import com.yubico.webauthn.exception.RegistrationFailedException;
@@ -32,59 +27,95 @@ import io.basswood.webauthn.exception.BadRequest;
 import io.basswood.webauthn.exception.EntityNotFound;
 import io.basswood.webauthn.exception.RootException;
 import io.basswood.webauthn.model.credential.AuthenticatorTransportEntity;
+import io.basswood.webauthn.model.credential.CeremonyLookupContext;
 import io.basswood.webauthn.model.credential.CredentialRepositoryImpl;
 import io.basswood.webauthn.model.credential.RegisteredCredentialEntity;
-import io.basswood.webauthn.model.rp.AuthenticatorPreference;
 import io.basswood.webauthn.model.rp.RelyingPartyEntity;
 import io.basswood.webauthn.model.user.User;
 import io.basswood.webauthn.model.user.Username;
 import io.basswood.webauthn.repository.RegisteredCredentialEntityRepository;
+import io.basswood.webauthn.secret.RandomProvider;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.io.IOException;
 import java.util.Collections;
-import java.util.List;
-import java.util.Optional;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+/**
+ * Runs the registration and assertion ceremonies. Every ceremony call runs inside a {@link CeremonyLookupContext}, so
+ * the user and credential rows the Yubico library asks for repeatedly are only loaded once per call. Those rows are
+ * loaded before the signature is verified, so that the verification, optionally run on a {@link CryptoExecutor},
+ * does not touch the database.
+ * <p>
+ * The Yubico {@link RelyingParty} draws challenges from a static {@code SecureRandom} of its own, so with a
+ * {@link RandomProvider} the challenge it generated is replaced by one from the provider before the request is saved.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
 @Slf4j
 public class WebAuthnService {
-    private RelyingPartyService relyingPartyService;
+    private static final int CHALLENGE_LENGTH = 32; // as the RelyingParty's
+    private RelyingPartyCache relyingPartyCache;
     private UserService userService;
     private CredentialRepositoryImpl credentialRepository;
     private RegisteredCredentialEntityRepository registeredCredentialEntityRepository;
     private WebAuthnRequestCache webAuthnRequestCache;
+    private SignatureCounterUpdater signatureCounterUpdater;
+    private CryptoExecutor cryptoExecutor;
+    private RandomProvider randomProvider;
 
-    public WebAuthnService(RelyingPartyService relyingPartyService, UserService userService, CredentialRepositoryImpl credentialRepository, RegisteredCredentialEntityRepository registeredCredentialEntityRepository, WebAuthnRequestCache webAuthnRequestCache) {
-        this.relyingPartyService = relyingPartyService;
+    /**
+     * @param cryptoExecutor where the signature verification runs, null to verify on the calling thread
+     */
+    public WebAuthnService(RelyingPartyCache relyingPartyCache, UserService userService, CredentialRepositoryImpl credentialRepository, RegisteredCredentialEntityRepository registeredCredentialEntityRepository, WebAuthnRequestCache webAuthnRequestCache, SignatureCounterUpdater signatureCounterUpdater, CryptoExecutor cryptoExecutor) {
+        this(relyingPartyCache, userService, credentialRepository, registeredCredentialEntityRepository, webAuthnRequestCache, signatureCounterUpdater, cryptoExecutor, null);
+    }
+
+    /**
+     * @param randomProvider source of the challenges, null for the one of the {@link RelyingParty}
+     */
+    public WebAuthnService(RelyingPartyCache relyingPartyCache, UserService userService, CredentialRepositoryImpl credentialRepository, RegisteredCredentialEntityRepository registeredCredentialEntityRepository, WebAuthnRequestCache webAuthnRequestCache, SignatureCounterUpdater signatureCounterUpdater, CryptoExecutor cryptoExecutor, RandomProvider randomProvider) {
+        this.relyingPartyCache = relyingPartyCache;
         this.userService = userService;
         this.credentialRepository = credentialRepository;
         this.registeredCredentialEntityRepository = registeredCredentialEntityRepository;
         this.webAuthnRequestCache = webAuthnRequestCache;
+        this.signatureCounterUpdater = signatureCounterUpdater;
+        this.cryptoExecutor = cryptoExecutor;
+        this.randomProvider = randomProvider;
     }
 
     public PublicKeyCredentialCreationOptions startRegistration(String registrationId, String rpOrigin, RegistrationRequestDTO request) {
-        RelyingPartyEntity relyingPartyEntity = relyingPartyService.findByOrigin(rpOrigin)
-                .orElseThrow(() -> new EntityNotFound(RelyingPartyEntity.class, rpOrigin));
-        RelyingParty relyingParty = relyingParty(relyingPartyEntity);
+        return inCeremony(() -> startRegistrationInCeremony(registrationId, rpOrigin, request));
+    }
+
+    private PublicKeyCredentialCreationOptions startRegistrationInCeremony(String registrationId, String rpOrigin, RegistrationRequestDTO request) {
+        CompiledRelyingParty compiledRelyingParty = compiledRelyingParty(rpOrigin);
         StartRegistrationOptions startRegistrationOptions = StartRegistrationOptions.builder()
                 .user(userIdentity(request))
-                .authenticatorSelection(authenticatorSelectionCriteria(relyingPartyEntity))
+                .authenticatorSelection(compiledRelyingParty.authenticatorSelectionCriteria())
                 .extensions(RegistrationExtensionInputs.builder().build())
-                .timeout(relyingPartyEntity.getTimeout())
+                .timeout(compiledRelyingParty.timeout())
                 .build();
 
-        PublicKeyCredentialCreationOptions creationOptions = relyingParty.startRegistration(startRegistrationOptions);
+        PublicKeyCredentialCreationOptions creationOptions = compiledRelyingParty.relyingParty().startRegistration(startRegistrationOptions);
+        if (randomProvider != null) {
+            creationOptions = creationOptions.toBuilder().challenge(challenge()).build();
+        }
         webAuthnRequestCache.saveRequest(registrationId, creationOptions);
         //cacheService.put(registrationId, creationOptions);
         return creationOptions;
     }
 
-    @Transactional
     public void finishRegistration(String rpOrigin, String registrationId, String publicKeyCredentialJson) {
+        inCeremony(() -> finishRegistrationInCeremony(rpOrigin, registrationId, publicKeyCredentialJson));
+    }
+
+    private void finishRegistrationInCeremony(String rpOrigin, String registrationId, String publicKeyCredentialJson) {
         PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> pkc;
         try {
             pkc = PublicKeyCredential.parseRegistrationResponseJson(publicKeyCredentialJson);
@@ -93,9 +124,7 @@ public class WebAuthnService {
             log.debug(message);
             throw new BadRequest(message, e);
         }
-        RelyingPartyEntity relyingPartyEntity = relyingPartyService.findByOrigin(rpOrigin)
-                .orElseThrow(() -> new EntityNotFound(RelyingPartyEntity.class, rpOrigin));
-        RelyingParty rp = relyingParty(relyingPartyEntity);
+        RelyingParty rp = compiledRelyingParty(rpOrigin).relyingParty();
         //PublicKeyCredentialCreationOptions request = cacheService.getCreateOptions(registrationId);
         PublicKeyCredentialCreationOptions request = webAuthnRequestCache.loadRequest(registrationId, PublicKeyCredentialCreationOptions.class);
         if(request == null){
@@ -103,17 +132,20 @@ public class WebAuthnService {
             log.debug(message);
             throw new EntityNotFound(PublicKeyCredentialCreationOptions.class, registrationId);
         }
-        RegistrationResult result;
-        try {
-            result = rp.finishRegistration(FinishRegistrationOptions.builder()
-                    .request(request)
-                    .response(pkc)
-                    .build());
-        } catch (RegistrationFailedException e) {
-            throw new RootException("Registration failed", e);
-        }
+        // Load what the verification looks up, so that it needs no database access.
+        credentialRepository.findCredentialById(pkc.getId().getBase64Url());
+        RegistrationResult result = verify(() -> {
+            try {
+                return rp.finishRegistration(FinishRegistrationOptions.builder()
+                        .request(request)
+                        .response(pkc)
+                        .build());
+            } catch (RegistrationFailedException e) {
+                throw new RootException("Registration failed", e);
+            }
+        });
 
-        User user = userService.findUserByUsername(request.getUser().getName())
+        User user = credentialRepository.findUserByUsername(request.getUser().getName())
                 .orElseThrow(() -> new EntityNotFound(User.class, request.getUser().getName()));
 
         SortedSet<AuthenticatorTransport> transports = pkc.getResponse().getTransports();
@@ -139,22 +171,35 @@ public class WebAuthnService {
     }
 
     public PublicKeyCredentialRequestOptions startAssertion(String rpOrigin, String loginHandle, String username) {
-        User user = userService.findUserByUsername(username)
+        return inCeremony(() -> startAssertionInCeremony(rpOrigin, loginHandle, username));
+    }
+
+    private PublicKeyCredentialRequestOptions startAssertionInCeremony(String rpOrigin, String loginHandle, String username) {
+        User user = credentialRepository.findUserByUsername(username)
                 .orElseThrow(() -> new EntityNotFound(User.class, username));
-        RelyingPartyEntity rpEntity = relyingPartyService.findByOrigin(rpOrigin)
-                .orElseThrow(() -> new EntityNotFound(RelyingPartyEntity.class, rpOrigin));
-        RelyingParty relyingParty = relyingParty(rpEntity);
-        AssertionRequest assertionRequest = relyingParty.startAssertion(StartAssertionOptions.builder()
+        CompiledRelyingParty compiledRelyingParty = compiledRelyingParty(rpOrigin);
+        AssertionRequest assertionRequest = compiledRelyingParty.relyingParty().startAssertion(StartAssertionOptions.builder()
                 .username(username)
-                .timeout(rpEntity.getTimeout())
-                .userVerification(rpEntity.getUserVerification() != null ? UserVerificationRequirement.valueOf(rpEntity.getUserVerification().name()) : null)
+                .timeout(compiledRelyingParty.timeout())
+                .userVerification(compiledRelyingParty.userVerification())
                 .build());
+        if (randomProvider != null) {
+            assertionRequest = assertionRequest.toBuilder()
+                    .publicKeyCredentialRequestOptions(assertionRequest.getPublicKeyCredentialRequestOptions().toBuilder()
+                            .challenge(challenge())
+                            .build())
+                    .build();
+        }
         //cacheService.put(loginHandle, assertionRequest);
         webAuthnRequestCache.saveRequest(loginHandle, assertionRequest);
         return assertionRequest.getPublicKeyCredentialRequestOptions();
     }
 
     public AssertionResult finishAssertion(String rpOrigin, String loginHandle, String publicKeyCredentialJson) {
+        return inCeremony(() -> finishAssertionInCeremony(rpOrigin, loginHandle, publicKeyCredentialJson));
+    }
+
+    private AssertionResult finishAssertionInCeremony(String rpOrigin, String loginHandle, String publicKeyCredentialJson) {
         PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> pkc;
         try {
             pkc = PublicKeyCredential.parseAssertionResponseJson(publicKeyCredentialJson);
@@ -163,10 +208,7 @@ public class WebAuthnService {
             log.debug(message, e);
             throw new BadRequest(message, e);
         }
-        RelyingPartyEntity relyingPartyEntity = relyingPartyService.findByOrigin(rpOrigin)
-                .orElseThrow(() -> new EntityNotFound(RelyingPartyEntity.class, rpOrigin));
-
-        RelyingParty rp = relyingParty(relyingPartyEntity);
+        RelyingParty rp = compiledRelyingParty(rpOrigin).relyingParty();
         //AssertionRequest request = cacheService.getAssertionRequest(loginHandle);
         AssertionRequest request = webAuthnRequestCache.loadRequest(loginHandle, AssertionRequest.class);
         if (request == null) {
@@ -174,56 +216,68 @@ public class WebAuthnService {
             log.debug(message);
             throw new EntityNotFound(AssertionRequest.class, loginHandle);
         }
-        //
-        List<RegisteredCredentialEntity> all = registeredCredentialEntityRepository.findAll();
-        //
-        AssertionResult assertionResult;
-        try {
-            assertionResult = rp.finishAssertion(FinishAssertionOptions.builder()
-                    .request(request)
-                    .response(pkc)
-                    .build());
-        } catch (AssertionFailedException e) {
-            throw new RootException("Assertion failed", e);
-        }
+        // Load what the verification looks up, so that it needs no database access.
+        credentialRepository.findCredentialById(pkc.getId().getBase64Url());
+        request.getUsername().ifPresent(credentialRepository::findUserByUsername);
+        pkc.getResponse().getUserHandle().ifPresent(credentialRepository::getUsernameForUserHandle);
+        AssertionResult assertionResult = verify(() -> {
+            try {
+                return rp.finishAssertion(FinishAssertionOptions.builder()
+                        .request(request)
+                        .response(pkc)
+                        .build());
+            } catch (AssertionFailedException e) {
+                throw new RootException("Assertion failed", e);
+            }
+        });
         if (!assertionResult.isSuccess()) {
             throw new RootException("Authentication failed");
         }
         // Now update the credential signature count in the database.
-        Optional<RegisteredCredentialEntity> optional = registeredCredentialEntityRepository.findById(assertionResult.getCredential().getCredentialId().getBase64Url());
-        if (!optional.isPresent()) {
-            throw new RootException("No credential found");
-        }
-        RegisteredCredentialEntity registeredCredential = optional.get();
-        registeredCredential.setSignatureCount(assertionResult.getSignatureCount());
-        registeredCredentialEntityRepository.save(registeredCredential);
+        signatureCounterUpdater.update(assertionResult.getCredential().getCredentialId().getBase64Url(), assertionResult.getSignatureCount());
         return assertionResult;
     }
 
-    private RelyingParty relyingParty(RelyingPartyEntity relyingPartyEntity) {
-        RelyingParty rp = RelyingParty.builder()
-                .identity(RelyingPartyIdentity.builder()
-                        .id(relyingPartyEntity.getId())
-                        .name(relyingPartyEntity.getName())
-                        .build())
-                .credentialRepository(credentialRepository)
-                .origins(relyingPartyEntity.getOrigins().stream().map(t -> t.getOrigin()).collect(Collectors.toSet()))
-                .allowOriginPort(relyingPartyEntity.getAllowOriginPort())
-                .allowOriginSubdomain(relyingPartyEntity.getAllowOriginSubdomain())
-                .build();
-        return rp;
+    private <T> T inCeremony(Supplier<T> ceremony) {
+        try (CeremonyLookupContext.Scope ignored = CeremonyLookupContext.open()) {
+            return ceremony.get();
+        }
+    }
+
+    private void inCeremony(Runnable ceremony) {
+        try (CeremonyLookupContext.Scope ignored = CeremonyLookupContext.open()) {
+            ceremony.run();
+        }
+    }
+
+    private <T> T verify(Supplier<T> verification) {
+        return cryptoExecutor == null ? verification.get() : cryptoExecutor.execute(verification);
+    }
+
+    private ByteArray challenge() {
+        return new ByteArray(randomProvider.nextBytes(CHALLENGE_LENGTH));
+    }
+
+    private CompiledRelyingParty compiledRelyingParty(String rpOrigin) {
+        return relyingPartyCache.findByOrigin(rpOrigin)
+                .orElseThrow(() -> new EntityNotFound(RelyingPartyEntity.class, rpOrigin));
     }
 
     private UserIdentity userIdentity(RegistrationRequestDTO request) {
-        User user = userService.findUserByUsername(request.getUsername())
-                .orElseGet(() ->
-                        userService.createUser(
-                                User.builder()
-                                        .displayName(request.getDisplayName())
-                                        .usernames(Set.of(Username.builder().username(request.getUsername()).build()))
-                                        .build()
-                        )
-                );
+        User user = credentialRepository.findUserByUsername(request.getUsername())
+                .orElseGet(() -> {
+                    User created = userService.createUser(
+                            User.builder()
+                                    .displayName(request.getDisplayName())
+                                    .usernames(Set.of(Username.builder().username(request.getUsername()).build()))
+                                    .build()
+                    );
+                    CeremonyLookupContext context = CeremonyLookupContext.current();
+                    if (context != null) {
+                        context.remember(request.getUsername(), created);
+                    }
+                    return created;
+                });
         try {
             return UserIdentity.builder()
                     .name(request.getUsername())
@@ -234,17 +288,4 @@ public class WebAuthnService {
             throw new RootException(e);
         }
     }
-
-    private AuthenticatorSelectionCriteria authenticatorSelectionCriteria(RelyingPartyEntity relyingPartyEntity) {
-        ResidentKeyRequirement keyRequirement = relyingPartyEntity.getResidentKey() == null ? null : ResidentKeyRequirement.valueOf(relyingPartyEntity.getResidentKey().toString());
-        UserVerificationRequirement userVerificationRequirement = relyingPartyEntity.getUserVerification() == null ? null : UserVerificationRequirement.valueOf(relyingPartyEntity.getUserVerification().toString());
-        AuthenticatorPreference.Attachment attachment = relyingPartyEntity.getAuthenticatorAttachment();
-        AuthenticatorAttachment authenticatorAttachment = (attachment == null) ? AuthenticatorAttachment.CROSS_PLATFORM : AuthenticatorAttachment.valueOf(attachment.toString());
-        return AuthenticatorSelectionCriteria.builder()
-                .authenticatorAttachment(authenticatorAttachment)
-                .residentKey(keyRequirement)
-                .userVerification(userVerificationRequirement)
-                .authenticatorAttachment(Optional.of(authenticatorAttachment))
-                .build();
-    }
 }
@@ -0,0 +1,124 @@
+package io.basswood.webauthn.service.challenge;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import io.basswood.webauthn.exception.RootException;
+import io.basswood.webauthn.model.request.RequestType;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes the ceremony requests kept by the {@link JdbcChallengeStore}. A request is written as CBOR, using the same
+ * Jackson settings Yubico uses for its JSON form, and is deflated when the CBOR is at least {@code compressionMinSize}
+ * bytes long. The first byte of the encoded form tells which of the two it is.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class ChallengeRequestCodec {
+    static final byte FORMAT_CBOR = 0;
+    static final byte FORMAT_CBOR_DEFLATE = 1;
+    private static final ObjectMapper CBOR_MAPPER = CBORMapper.builder()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .serializationInclusion(JsonInclude.Include.NON_ABSENT)
+            .defaultBase64Variant(Base64Variants.MODIFIED_FOR_URL)
+            .addModule(new Jdk8Module())
+            .build();
+
+    private boolean compressionEnabled;
+    private int compressionMinSize;
+
+    public ChallengeRequestCodec(boolean compressionEnabled, int compressionMinSize) {
+        this.compressionEnabled = compressionEnabled;
+        this.compressionMinSize = compressionMinSize;
+    }
+
+    public byte[] encode(Object request) {
+        byte[] cbor;
+        try {
+            cbor = CBOR_MAPPER.writeValueAsBytes(request);
+        } catch (IOException e) {
+            String message = "Failed to serialize request payload";
+            log.debug(message, e);
+            throw new RootException(message, e);
+        }
+        if (compressionEnabled && cbor.length >= compressionMinSize) {
+            return deflate(cbor);
+        }
+        byte[] encoded = new byte[cbor.length + 1];
+        encoded[0] = FORMAT_CBOR;
+        System.arraycopy(cbor, 0, encoded, 1, cbor.length);
+        return encoded;
+    }
+
+    public Object decode(byte[] encoded, RequestType requestType) {
+        return decode(encoded, requestType.getPayloadClass());
+    }
+
+    public <R> R decode(byte[] encoded, Class<R> payloadClass) {
+        if (encoded == null || encoded.length == 0) {
+            throw new RootException("Empty request payload");
+        }
+        byte[] cbor = switch (encoded[0]) {
+            case FORMAT_CBOR -> Arrays.copyOfRange(encoded, 1, encoded.length);
+            case FORMAT_CBOR_DEFLATE -> inflate(encoded);
+            default -> throw new RootException("Unknown request payload format: " + encoded[0]);
+        };
+        try {
+            return CBOR_MAPPER.readValue(cbor, payloadClass);
+        } catch (IOException e) {
+            String message = "Failed to parse request payload";
+            log.debug(message, e);
+            throw new RootException(message, e);
+        }
+    }
+
+    private byte[] deflate(byte[] cbor) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(cbor);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(cbor.length / 2 + 16);
+            out.write(FORMAT_CBOR_DEFLATE);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] inflate(byte[] encoded) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded, 1, encoded.length - 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length * 3);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new RootException("Truncated request payload");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new RootException("Failed to inflate request payload", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package io.basswood.webauthn.service.challenge;
+
+import io.basswood.webauthn.model.request.RequestType;
+import io.basswood.webauthn.model.request.WebAuthnRequestEntity;
+
+import java.util.Optional;
+
+/**
+ * Storage for the pending registration and assertion requests (and hence their challenges) between the start and the
+ * finish of a ceremony. A request is single use: once {@link #consume(String, RequestType)} has returned it, no other caller can
+ * get it again, which rules out replaying a challenge.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public interface ChallengeStore {
+    /**
+     * Stores the request unless a request with the same id is already present.
+     *
+     * @param request the request to store
+     * @return true if the request was stored, false if the id is already taken
+     */
+    boolean putIfAbsent(WebAuthnRequestEntity request);
+
+    /**
+     * Atomically removes and returns the request. Among concurrent callers at most one gets the request. Expired
+     * requests are never returned, and a request of another type is left in place.
+     *
+     * @param requestId   id of the request
+     * @param requestType type the request must have
+     * @return the request if it was present, of the given type and not expired
+     */
+    Optional<WebAuthnRequestEntity> consume(String requestId, RequestType requestType);
+
+    /**
+     * Removes the request without returning it.
+     *
+     * @param requestId id of the request
+     * @return true if this call removed the request
+     */
+    boolean remove(String requestId);
+}
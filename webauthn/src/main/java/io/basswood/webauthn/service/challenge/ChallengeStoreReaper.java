@@ -0,0 +1,127 @@
+package io.basswood.webauthn.service.challenge;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically deletes expired rows from {@code webauthn_request_cache}. Rows are deleted in batches of
+ * {@code batchSize} in {@code expiryTime} order, so every delete is a short range scan on the {@code expiryTime} index
+ * and only holds its locks briefly. A run stops after {@code maxBatchesPerRun} batches and the next run continues
+ * from there.
+ * <p>
+ * Metrics:
+ * <ul>
+ *     <li>{@value #METRIC_PURGED} - rows deleted</li>
+ *     <li>{@value #METRIC_LAG} - seconds since the oldest row still in the table expired</li>
+ *     <li>{@value #METRIC_TABLE_ROWS} - estimated number of rows in the table</li>
+ * </ul>
+ * The gauges are refreshed after every run, so scraping them never hits the database.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class ChallengeStoreReaper {
+    public static final String METRIC_PURGED = "webauthn.challenge_store.purged";
+    public static final String METRIC_LAG = "webauthn.challenge_store.purge_lag";
+    public static final String METRIC_TABLE_ROWS = "webauthn.challenge_store.table_rows";
+    static final String DELETE_EXPIRED = "DELETE FROM webauthn_request_cache WHERE expiryTime < ? ORDER BY expiryTime LIMIT ?";
+    static final String OLDEST_EXPIRY = "SELECT MIN(expiryTime) FROM webauthn_request_cache";
+    static final String TABLE_ROWS = "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'webauthn_request_cache'";
+
+    private JdbcTemplate jdbcTemplate;
+    private boolean enabled;
+    private long rateSeconds;
+    private int batchSize;
+    private int maxBatchesPerRun;
+    private Counter purged;
+    private AtomicLong lagSeconds = new AtomicLong();
+    private AtomicLong tableRows = new AtomicLong();
+    private ScheduledExecutorService executor;
+
+    public ChallengeStoreReaper(JdbcTemplate jdbcTemplate, MeterRegistry meterRegistry, boolean enabled,
+                                long rateSeconds, int batchSize, int maxBatchesPerRun) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.enabled = enabled;
+        this.rateSeconds = rateSeconds;
+        this.batchSize = batchSize;
+        this.maxBatchesPerRun = maxBatchesPerRun;
+        this.purged = Counter.builder(METRIC_PURGED)
+                .description("Expired webauthn_request_cache rows deleted")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_LAG, lagSeconds, AtomicLong::get)
+                .description("Seconds since the oldest row left in webauthn_request_cache expired")
+                .baseUnit("seconds")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_TABLE_ROWS, tableRows, AtomicLong::get)
+                .description("Estimated number of rows in webauthn_request_cache")
+                .register(meterRegistry);
+    }
+
+    public void start() {
+        if (!enabled) {
+            log.info("Challenge store reaper disabled");
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "challenge-store-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::run, rateSeconds, rateSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Deletes expired rows until a batch comes back short or {@code maxBatchesPerRun} batches have run.
+     *
+     * @return number of rows deleted
+     */
+    public int purge() {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        int total = 0;
+        for (int batch = 0; batch < maxBatchesPerRun; batch++) {
+            int deleted = jdbcTemplate.update(DELETE_EXPIRED, now, batchSize);
+            total += deleted;
+            purged.increment(deleted);
+            if (deleted < batchSize) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    void refreshGauges() {
+        Timestamp oldest = jdbcTemplate.queryForObject(OLDEST_EXPIRY, Timestamp.class);
+        long lag = oldest == null ? 0 : (System.currentTimeMillis() - oldest.getTime()) / 1000;
+        lagSeconds.set(Math.max(0, lag));
+        List<Long> rows = jdbcTemplate.queryForList(TABLE_ROWS, Long.class);
+        tableRows.set(rows.isEmpty() || rows.get(0) == null ? 0 : rows.get(0));
+    }
+
+    private void run() {
+        try {
+            int deleted = purge();
+            refreshGauges();
+            log.debug("Purged {} expired requests", deleted);
+        } catch (RuntimeException e) {
+            // An exception would cancel the schedule, log it and try again on the next run.
+            log.warn("Failed to purge expired requests", e);
+        }
+    }
+}
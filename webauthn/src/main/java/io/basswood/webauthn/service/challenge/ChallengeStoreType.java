@@ -0,0 +1,22 @@
+package io.basswood.webauthn.service.challenge;
+
+/**
+ * The {@link ChallengeStore} implementations that can be selected with {@code basswood.webauthn.challenge-store.type}.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public enum ChallengeStoreType {
+    /**
+     * {@link InMemoryChallengeStore} - fastest, but only usable when start and finish hit the same node.
+     */
+    memory,
+    /**
+     * {@link JdbcChallengeStore} - every node sees every request.
+     */
+    jdbc,
+    /**
+     * {@link WriteThroughChallengeStore} - jdbc store fronted by a local memory store.
+     */
+    write_through
+}
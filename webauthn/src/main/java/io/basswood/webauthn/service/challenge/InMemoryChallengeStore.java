@@ -0,0 +1,114 @@
+package io.basswood.webauthn.service.challenge;
+
+import io.basswood.webauthn.exception.RootException;
+import io.basswood.webauthn.exception.ServerBusy;
+import io.basswood.webauthn.model.request.RequestType;
+import io.basswood.webauthn.model.request.WebAuthnRequestEntity;
+
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link ChallengeStore} backed by a fixed number of {@link ConcurrentHashMap} shards. Each shard is bounded: when it
+ * is full its expired requests are swept, and if it is still full the new request is rejected. Requests only live on
+ * the node that stored them.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+public class InMemoryChallengeStore implements ChallengeStore {
+    public static final int DEFAULT_SHARDS = 16;
+    public static final int DEFAULT_MAX_ENTRIES_PER_SHARD = 10_000;
+    private final ConcurrentHashMap<String, WebAuthnRequestEntity>[] shards;
+    private final int maxEntriesPerShard;
+
+    public InMemoryChallengeStore() {
+        this(DEFAULT_SHARDS, DEFAULT_MAX_ENTRIES_PER_SHARD);
+    }
+
+    @SuppressWarnings("unchecked")
+    public InMemoryChallengeStore(int shardCount, int maxEntriesPerShard) {
+        if (shardCount < 1 || maxEntriesPerShard < 1) {
+            throw new RootException("Shard count and maximum entries per shard must be positive");
+        }
+        this.shards = new ConcurrentHashMap[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+        }
+        this.maxEntriesPerShard = maxEntriesPerShard;
+    }
+
+    @Override
+    public boolean putIfAbsent(WebAuthnRequestEntity request) {
+        ConcurrentHashMap<String, WebAuthnRequestEntity> shard = shard(request.getRequestId());
+        if (shard.size() >= maxEntriesPerShard) {
+            purgeExpired(shard, new Date());
+            if (shard.size() >= maxEntriesPerShard) {
+                throw new ServerBusy("Challenge store capacity exceeded");
+            }
+        }
+        WebAuthnRequestEntity existing = shard.putIfAbsent(request.getRequestId(), request);
+        if (existing == null) {
+            return true;
+        }
+        // An expired request does not block its id.
+        return isExpired(existing, new Date()) && shard.replace(request.getRequestId(), existing, request);
+    }
+
+    @Override
+    public Optional<WebAuthnRequestEntity> consume(String requestId, RequestType requestType) {
+        ConcurrentHashMap<String, WebAuthnRequestEntity> shard = shard(requestId);
+        WebAuthnRequestEntity request = shard.get(requestId);
+        if (request == null || request.getRequestType() != requestType || !shard.remove(requestId, request)) {
+            return Optional.empty();
+        }
+        if (isExpired(request, new Date())) {
+            return Optional.empty();
+        }
+        return Optional.of(request);
+    }
+
+    @Override
+    public boolean remove(String requestId) {
+        return shard(requestId).remove(requestId) != null;
+    }
+
+    /**
+     * Removes all the expired requests.
+     *
+     * @return number of requests removed
+     */
+    public int purgeExpired() {
+        Date now = new Date();
+        int removed = 0;
+        for (ConcurrentHashMap<String, WebAuthnRequestEntity> shard : shards) {
+            removed += purgeExpired(shard, now);
+        }
+        return removed;
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<String, WebAuthnRequestEntity> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private int purgeExpired(ConcurrentHashMap<String, WebAuthnRequestEntity> shard, Date now) {
+        int before = shard.size();
+        shard.values().removeIf(request -> isExpired(request, now));
+        return Math.max(0, before - shard.size());
+    }
+
+    private ConcurrentHashMap<String, WebAuthnRequestEntity> shard(String requestId) {
+        int hash = requestId.hashCode();
+        hash ^= (hash >>> 16);
+        return shards[Math.floorMod(hash, shards.length)];
+    }
+
+    private boolean isExpired(WebAuthnRequestEntity request, Date now) {
+        return request.getExpiryTime() != null && !request.getExpiryTime().after(now);
+    }
+}
@@ -0,0 +1,109 @@
+package io.basswood.webauthn.service.challenge;
+
+import io.basswood.webauthn.model.request.RequestType;
+import io.basswood.webauthn.model.request.WebAuthnRequestEntity;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * {@link ChallengeStore} backed by the {@code webauthn_request_cache} table. A plain insert relies on the primary key
+ * for the duplicate check; only the duplicate key error is handled, and an expired row that the reaper has not removed
+ * yet is replaced rather than blocking its id. Databases that support {@code DELETE ... RETURNING}
+ * (MariaDB, PostgreSQL) consume a request with a single statement. MySQL has no such clause, so there the row is read
+ * and then deleted, and the affected row count of the delete decides which of the concurrent callers owns the request.
+ * Requests are persisted in the binary form produced by {@link ChallengeRequestCodec} and are returned deserialized.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class JdbcChallengeStore implements ChallengeStore {
+    private static final String COLUMNS = "requestId, requestType, createdTime, expiryTime, request";
+    private static final String INSERT = "INSERT INTO webauthn_request_cache (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?)";
+    private static final String SELECT = "SELECT " + COLUMNS + " FROM webauthn_request_cache WHERE requestId = ? AND requestType = ? AND expiryTime > ?";
+    private static final String DELETE = "DELETE FROM webauthn_request_cache WHERE requestId = ?";
+    private static final String DELETE_TYPED = "DELETE FROM webauthn_request_cache WHERE requestId = ? AND requestType = ?";
+    private static final String DELETE_EXPIRED = "DELETE FROM webauthn_request_cache WHERE requestId = ? AND expiryTime <= ?";
+    private static final String DELETE_RETURNING = "DELETE FROM webauthn_request_cache WHERE requestId = ? AND requestType = ? RETURNING " + COLUMNS;
+    private static final RowMapper<WebAuthnRequestEntity> ROW_MAPPER = (rs, rowNum) -> WebAuthnRequestEntity.builder()
+            .requestId(rs.getString("requestId"))
+            .requestType(RequestType.valueOf(rs.getString("requestType")))
+            .createdTime(rs.getTimestamp("createdTime"))
+            .expiryTime(rs.getTimestamp("expiryTime"))
+            .request(rs.getBytes("request"))
+            .build();
+
+    private JdbcTemplate jdbcTemplate;
+    private ChallengeRequestCodec codec;
+    private boolean deleteReturningSupported;
+
+    public JdbcChallengeStore(JdbcTemplate jdbcTemplate, ChallengeRequestCodec codec) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.codec = codec;
+        this.deleteReturningSupported = Boolean.TRUE.equals(jdbcTemplate.execute((ConnectionCallback<Boolean>) connection -> {
+            String product = connection.getMetaData().getDatabaseProductName();
+            return "MariaDB".equalsIgnoreCase(product) || "PostgreSQL".equalsIgnoreCase(product);
+        }));
+        log.info("JdbcChallengeStore using {}", deleteReturningSupported ? "DELETE ... RETURNING" : "SELECT then DELETE");
+    }
+
+    @Override
+    public boolean putIfAbsent(WebAuthnRequestEntity request) {
+        byte[] encoded = request.getPayload() != null ? codec.encode(request.getPayload()) : request.getRequest();
+        try {
+            return insert(request, encoded);
+        } catch (DuplicateKeyException e) {
+            // The id is only free if the row holding it has expired.
+            if (jdbcTemplate.update(DELETE_EXPIRED, request.getRequestId(), new Timestamp(System.currentTimeMillis())) == 0) {
+                return false;
+            }
+        }
+        try {
+            return insert(request, encoded);
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Optional<WebAuthnRequestEntity> consume(String requestId, RequestType requestType) {
+        Date now = new Date();
+        if (deleteReturningSupported) {
+            List<WebAuthnRequestEntity> deleted = jdbcTemplate.query(DELETE_RETURNING, ROW_MAPPER, requestId, requestType.name());
+            return deleted.stream().filter(request -> request.getExpiryTime().after(now)).findFirst().map(this::decode);
+        }
+        List<WebAuthnRequestEntity> found = jdbcTemplate.query(SELECT, ROW_MAPPER, requestId, requestType.name(), new Timestamp(now.getTime()));
+        if (found.isEmpty()) {
+            return Optional.empty();
+        }
+        boolean removed = jdbcTemplate.update(DELETE_TYPED, requestId, requestType.name()) == 1;
+        return removed ? Optional.of(decode(found.get(0))) : Optional.empty();
+    }
+
+    @Override
+    public boolean remove(String requestId) {
+        return jdbcTemplate.update(DELETE, requestId) == 1;
+    }
+
+    private boolean insert(WebAuthnRequestEntity request, byte[] encoded) {
+        return jdbcTemplate.update(INSERT,
+                request.getRequestId(),
+                request.getRequestType().name(),
+                new Timestamp(request.getCreatedTime().getTime()),
+                new Timestamp(request.getExpiryTime().getTime()),
+                encoded) == 1;
+    }
+
+    private WebAuthnRequestEntity decode(WebAuthnRequestEntity request) {
+        request.setPayload(codec.decode(request.getRequest(), request.getRequestType()));
+        return request;
+    }
+}
@@ -0,0 +1,58 @@
+package io.basswood.webauthn.service.challenge;
+
+import io.basswood.webauthn.exception.RootException;
+import io.basswood.webauthn.model.request.RequestType;
+import io.basswood.webauthn.model.request.WebAuthnRequestEntity;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Optional;
+
+/**
+ * {@link ChallengeStore} that writes every request to a shared {@link JdbcChallengeStore} and keeps a copy in a local
+ * {@link InMemoryChallengeStore}. When the finish call lands on the node that started the ceremony the request is
+ * served from memory and the database only sees a single delete, whose row count still guarantees single use across
+ * nodes. Otherwise the request is consumed from the database.
+ *
+ * @author shamualr
+ * @since 1.0
+ */
+@Slf4j
+public class WriteThroughChallengeStore implements ChallengeStore {
+    private InMemoryChallengeStore memoryStore;
+    private JdbcChallengeStore jdbcStore;
+
+    public WriteThroughChallengeStore(InMemoryChallengeStore memoryStore, JdbcChallengeStore jdbcStore) {
+        this.memoryStore = memoryStore;
+        this.jdbcStore = jdbcStore;
+    }
+
+    @Override
+    public boolean putIfAbsent(WebAuthnRequestEntity request) {
+        if (!jdbcStore.putIfAbsent(request)) {
+            return false;
+        }
+        try {
+            memoryStore.remove(request.getRequestId());
+            memoryStore.putIfAbsent(request);
+        } catch (RootException e) {
+            // The request is already in the database, consume(String, RequestType) falls back to it.
+            log.debug("Request {} not kept in memory", request.getRequestId(), e);
+        }
+        return true;
+    }
+
+    @Override
+    public Optional<WebAuthnRequestEntity> consume(String requestId, RequestType requestType) {
+        Optional<WebAuthnRequestEntity> local = memoryStore.consume(requestId, requestType);
+        if (local.isPresent()) {
+            return jdbcStore.remove(requestId) ? local : Optional.empty();
+        }
+        return jdbcStore.consume(requestId, requestType);
+    }
+
+    @Override
+    public boolean remove(String requestId) {
+        memoryStore.remove(requestId);
+        return jdbcStore.remove(requestId);
+    }
+}
@@ -0,0 +1,120 @@
+package io.basswood.webauthn.model.credential;
+
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import io.basswood.webauthn.model.user.User;
+import io.basswood.webauthn.model.user.Username;
+import io.basswood.webauthn.repository.BaseRepositoryIT;
+import io.basswood.webauthn.repository.RegisteredCredentialEntityRepository;
+import io.basswood.webauthn.repository.SqlStatementCounter;
+import io.basswood.webauthn.repository.UserRepository;
+import io.basswood.webauthn.repository.UsernameRepository;
+import io.basswood.webauthn.service.UserService;
+import jakarta.persistence.EntityManagerFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+
+public class CredentialRepositoryImplIT extends BaseRepositoryIT {
+    private static final String USERNAME = "homer.simpson@gmail.com";
+    @Autowired
+    private UserRepository userRepository;
+    @Autowired
+    private UsernameRepository usernameRepository;
+    @Autowired
+    private RegisteredCredentialEntityRepository registeredCredentialEntityRepository;
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private CredentialRepositoryImpl credentialRepository;
+    private SqlStatementCounter counter;
+    private ByteArray credentialId;
+    private ByteArray userHandle;
+
+    @BeforeEach
+    void setup() {
+        UserService userService = new UserService(userRepository, usernameRepository, new SecureRandom());
+        credentialRepository = new CredentialRepositoryImpl(userService, registeredCredentialEntityRepository);
+        User user = userService.createUser(User.builder()
+                .displayName("Homer Simpson")
+                .usernames(Set.of(Username.builder().username(USERNAME).build()))
+                .build());
+        RegisteredCredentialEntity credential = registeredCredentialEntityRepository.save(RegisteredCredentialEntity.builder()
+                .credentialId(Base64.getUrlEncoder().withoutPadding().encodeToString("credential-id".getBytes()))
+                .publicKeyCose(Base64.getUrlEncoder().withoutPadding().encodeToString("public-key".getBytes()))
+                .clientDataJSON("e30")
+                .attestationObject("e30")
+                .signatureCount(1L)
+                .discoverable(false)
+                .user(user)
+                .build());
+        entityManager.flush();
+        credentialId = new ByteArray(Base64.getUrlDecoder().decode(credential.getCredentialId()));
+        userHandle = new ByteArray(Base64.getUrlDecoder().decode(user.getUserHandle()));
+        counter = new SqlStatementCounter(entityManagerFactory);
+    }
+
+    @AfterEach
+    void cleanup() {
+        registeredCredentialEntityRepository.deleteAll();
+        userRepository.deleteAll();
+    }
+
+    @Test
+    void testStatementsPerCeremony() {
+        entityManager.clear();
+        counter.reset();
+        runCeremonyLookups();
+        long withoutContext = counter.statements();
+
+        entityManager.clear();
+        counter.reset();
+        try (CeremonyLookupContext.Scope ignored = CeremonyLookupContext.open()) {
+            runCeremonyLookups();
+        }
+        long withContext = counter.statements();
+
+        // The username and credentials queries run once instead of once per Yubico callback.
+        Assertions.assertTrue(withContext < withoutContext,
+                "statements with context: " + withContext + ", without: " + withoutContext);
+    }
+
+    @Test
+    void testCredentialDescriptorsInOneQuery() {
+        RegisteredCredentialEntity credential = registeredCredentialEntityRepository.findById(credentialId.getBase64Url()).get();
+        for (String transport : new String[]{"usb", "nfc"}) {
+            entityManager.persist(AuthenticatorTransportEntity.builder()
+                    .transport(transport)
+                    .registeredCredentialEntity(credential)
+                    .build());
+        }
+        entityManager.flush();
+        entityManager.clear();
+        counter.reset();
+
+        Set<PublicKeyCredentialDescriptor> descriptors = credentialRepository.getCredentialIdsForUsername(USERNAME);
+        Assertions.assertEquals(1, counter.statements());
+        Assertions.assertEquals(0, counter.entityLoads());
+        Assertions.assertEquals(1, descriptors.size());
+        Assertions.assertEquals(Set.of(AuthenticatorTransport.USB, AuthenticatorTransport.NFC),
+                descriptors.iterator().next().getTransports().get());
+    }
+
+    private void runCeremonyLookups() {
+        credentialRepository.getCredentialIdsForUsername(USERNAME);
+        credentialRepository.getUserHandleForUsername(USERNAME);
+        credentialRepository.getUsernameForUserHandle(userHandle);
+        credentialRepository.lookup(credentialId, userHandle);
+        credentialRepository.lookupAll(credentialId);
+    }
+}
@@ -0,0 +1,121 @@
+package io.basswood.webauthn.model.credential;
+
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import io.basswood.webauthn.exception.EntityNotFound;
+import io.basswood.webauthn.model.user.User;
+import io.basswood.webauthn.model.user.Username;
+import io.basswood.webauthn.repository.RegisteredCredentialEntityRepository;
+import io.basswood.webauthn.service.UserService;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CredentialRepositoryImplTest {
+    private static final String USERNAME = "homer.simpson@gmail.com";
+    private UserService userService;
+    private RegisteredCredentialEntityRepository credentialEntityRepository;
+    private CredentialRepositoryImpl credentialRepository;
+    private User user;
+    private RegisteredCredentialEntity credential;
+
+    @BeforeEach
+    void setup() {
+        userService = mock(UserService.class);
+        credentialEntityRepository = mock(RegisteredCredentialEntityRepository.class);
+        credentialRepository = new CredentialRepositoryImpl(userService, credentialEntityRepository);
+        user = User.builder()
+                .userHandle(base64Url("user-handle"))
+                .usernames(Set.of(Username.builder().username(USERNAME).build()))
+                .build();
+        credential = RegisteredCredentialEntity.builder()
+                .credentialId(base64Url("credential-id"))
+                .publicKeyCose(base64Url("public-key"))
+                .signatureCount(1L)
+                .user(user)
+                .build();
+        when(userService.findUserByUsername(USERNAME)).thenReturn(Optional.of(user));
+        when(userService.findUserById(user.getUserHandle())).thenReturn(Optional.of(user));
+        when(credentialEntityRepository.findDescriptorRowsByUsername(USERNAME)).thenReturn(List.of(
+                new CredentialDescriptorRow(credential.getCredentialId(), "usb"),
+                new CredentialDescriptorRow(credential.getCredentialId(), "nfc")));
+        when(credentialEntityRepository.findById(credential.getCredentialId())).thenReturn(Optional.of(credential));
+    }
+
+    @Test
+    void testWithoutContext() {
+        runCeremonyLookups();
+        verify(userService, times(1)).findUserByUsername(USERNAME);
+        verify(credentialEntityRepository, times(2)).findById(credential.getCredentialId());
+    }
+
+    @Test
+    void testWithContext() {
+        try (CeremonyLookupContext.Scope ignored = CeremonyLookupContext.open()) {
+            runCeremonyLookups();
+        }
+        verify(userService, times(1)).findUserByUsername(USERNAME);
+        verify(userService, times(0)).findUserById(user.getUserHandle());
+        verify(credentialEntityRepository, times(1)).findDescriptorRowsByUsername(USERNAME);
+        verify(credentialEntityRepository, times(1)).findById(credential.getCredentialId());
+        Assertions.assertNull(CeremonyLookupContext.current());
+    }
+
+    @Test
+    void testCredentialDescriptors() {
+        PublicKeyCredentialDescriptor descriptor = credentialRepository.getCredentialIdsForUsername(USERNAME).iterator().next();
+        Assertions.assertEquals(credential.getCredentialId(), descriptor.getId().getBase64Url());
+        Assertions.assertEquals(Set.of(AuthenticatorTransport.USB, AuthenticatorTransport.NFC), descriptor.getTransports().get());
+        verify(userService, times(0)).findUserByUsername(USERNAME);
+
+        when(userService.findUserByUsername("unknown")).thenReturn(Optional.empty());
+        Assertions.assertThrows(EntityNotFound.class, () -> credentialRepository.getCredentialIdsForUsername("unknown"));
+    }
+
+    @Test
+    void testNestedScope() {
+        try (CeremonyLookupContext.Scope outer = CeremonyLookupContext.open()) {
+            CeremonyLookupContext context = CeremonyLookupContext.current();
+            try (CeremonyLookupContext.Scope inner = CeremonyLookupContext.open()) {
+                Assertions.assertSame(context, CeremonyLookupContext.current());
+            }
+            Assertions.assertSame(context, CeremonyLookupContext.current());
+        }
+        Assertions.assertNull(CeremonyLookupContext.current());
+    }
+
+    @Test
+    void testMissNotMemoized() {
+        when(userService.findUserByUsername("unknown")).thenReturn(Optional.empty());
+        try (CeremonyLookupContext.Scope ignored = CeremonyLookupContext.open()) {
+            Assertions.assertTrue(credentialRepository.findUserByUsername("unknown").isEmpty());
+            Assertions.assertTrue(credentialRepository.findUserByUsername("unknown").isEmpty());
+        }
+        verify(userService, times(2)).findUserByUsername("unknown");
+    }
+
+    private void runCeremonyLookups() {
+        ByteArray credentialId = new ByteArray(Base64.getUrlDecoder().decode(credential.getCredentialId()));
+        ByteArray userHandle = new ByteArray(Base64.getUrlDecoder().decode(user.getUserHandle()));
+        Assertions.assertEquals(1, credentialRepository.getCredentialIdsForUsername(USERNAME).size());
+        Assertions.assertEquals(userHandle, credentialRepository.getUserHandleForUsername(USERNAME).get());
+        Assertions.assertEquals(USERNAME, credentialRepository.getUsernameForUserHandle(userHandle).get());
+        Assertions.assertTrue(credentialRepository.lookup(credentialId, userHandle).isPresent());
+        Assertions.assertEquals(1, credentialRepository.lookupAll(credentialId).size());
+    }
+
+    private static String base64Url(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes());
+    }
+}
@@ -0,0 +1,70 @@
+package io.basswood.webauthn.repository;
+
+import io.basswood.webauthn.exception.ServerBusy;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BulkheadDataSourceTest {
+    private DataSource target;
+    private Connection connection;
+    private SimpleMeterRegistry meterRegistry;
+    private BulkheadDataSource bulkhead;
+
+    @BeforeEach
+    void setup() throws SQLException {
+        target = mock(DataSource.class);
+        connection = mock(Connection.class);
+        when(target.getConnection()).thenReturn(connection);
+        meterRegistry = new SimpleMeterRegistry();
+        bulkhead = new BulkheadDataSource(target, 2, 10, meterRegistry);
+    }
+
+    @Test
+    void testPermitReleasedOnClose() throws SQLException {
+        Connection first = bulkhead.getConnection();
+        Connection second = bulkhead.getConnection();
+        Assertions.assertEquals(0, bulkhead.availablePermits());
+        first.close();
+        first.close(); // a second close must not hand out an extra permit
+        Assertions.assertEquals(1, bulkhead.availablePermits());
+        second.close();
+        Assertions.assertEquals(2, bulkhead.availablePermits());
+        verify(connection, times(3)).close();
+    }
+
+    @Test
+    void testRejectedWhenExhausted() throws SQLException {
+        bulkhead.getConnection();
+        bulkhead.getConnection();
+        Assertions.assertThrows(ServerBusy.class, () -> bulkhead.getConnection());
+        Assertions.assertEquals(1.0, meterRegistry.get(BulkheadDataSource.METRIC_REJECTED).counter().count());
+    }
+
+    @Test
+    void testPermitReleasedWhenTargetFails() throws SQLException {
+        when(target.getConnection()).thenThrow(new SQLException("pool timeout"));
+        Assertions.assertThrows(SQLException.class, () -> bulkhead.getConnection());
+        Assertions.assertEquals(2, bulkhead.availablePermits());
+    }
+
+    @Test
+    void testDelegatesAndUnwraps() throws SQLException {
+        Connection guarded = bulkhead.getConnection();
+        guarded.setAutoCommit(false);
+        verify(connection).setAutoCommit(false);
+        Assertions.assertSame(guarded, guarded.unwrap(Connection.class));
+        Assertions.assertEquals(guarded, guarded);
+        Assertions.assertNotEquals(guarded, connection);
+    }
+}
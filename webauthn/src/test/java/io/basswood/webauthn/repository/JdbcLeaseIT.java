@@ -0,0 +1,38 @@
+package io.basswood.webauthn.repository;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.UUID;
+
+public class JdbcLeaseIT extends BaseRepositoryIT {
+    @Autowired
+    private DataSource dataSource;
+
+    @Test
+    void testOnlyOneOwner() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        String name = UUID.randomUUID().toString();
+        JdbcLease first = new JdbcLease(jdbcTemplate, name, "node-1", Duration.ofMinutes(1));
+        JdbcLease second = new JdbcLease(jdbcTemplate, name, "node-2", Duration.ofMinutes(1));
+        Assertions.assertTrue(first.tryAcquire());
+        Assertions.assertFalse(second.tryAcquire());
+        Assertions.assertTrue(first.tryAcquire()); // renew
+        first.release();
+        Assertions.assertTrue(second.tryAcquire());
+        Assertions.assertFalse(first.tryAcquire());
+    }
+
+    @Test
+    void testExpiredLeaseIsTakenOver() throws InterruptedException {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        String name = UUID.randomUUID().toString();
+        Assertions.assertTrue(new JdbcLease(jdbcTemplate, name, "node-1", Duration.ofMillis(100)).tryAcquire());
+        Thread.sleep(200);
+        Assertions.assertTrue(new JdbcLease(jdbcTemplate, name, "node-2", Duration.ofMinutes(1)).tryAcquire());
+    }
+}
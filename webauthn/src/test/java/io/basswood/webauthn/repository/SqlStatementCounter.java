@@ -0,0 +1,35 @@
+package io.basswood.webauthn.repository;
+
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+
+/**
+ * Counts the SQL statements and entity loads Hibernate performs, for tests that put an upper bound on the queries a
+ * code path may run.
+ */
+public class SqlStatementCounter {
+    private Statistics statistics;
+
+    public SqlStatementCounter(EntityManagerFactory entityManagerFactory) {
+        this.statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        this.statistics.setStatisticsEnabled(true);
+        reset();
+    }
+
+    public void reset() {
+        statistics.clear();
+    }
+
+    public long statements() {
+        return statistics.getPrepareStatementCount();
+    }
+
+    public long entityLoads() {
+        return statistics.getEntityLoadCount();
+    }
+
+    public long entityFetches() {
+        return statistics.getEntityFetchCount();
+    }
+}
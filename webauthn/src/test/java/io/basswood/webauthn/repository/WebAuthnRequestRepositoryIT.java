@@ -5,6 +5,7 @@ import com.yubico.webauthn.AssertionRequest;
 import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
 import io.basswood.webauthn.model.request.RequestType;
 import io.basswood.webauthn.model.request.WebAuthnRequestEntity;
+import io.basswood.webauthn.service.challenge.ChallengeRequestCodec;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -17,6 +18,7 @@ import java.util.UUID;
 public class WebAuthnRequestRepositoryIT extends BaseRepositoryIT {
     @Autowired
     private WebAuthnRequestRepository repository;
+    private ChallengeRequestCodec codec = new ChallengeRequestCodec(true, 512);
     private String createRequestJSON;
     private String assertionRequestJSON;
     PublicKeyCredentialCreationOptions originalCreateRequest;
@@ -121,12 +123,12 @@ public class WebAuthnRequestRepositoryIT extends BaseRepositoryIT {
         registrationRequestEntity = repository.save(WebAuthnRequestEntity.builder()
                 .requestId(requestId)
                 .requestType(RequestType.REGISTRATION)
-                .request(createRequestJSON)
+                .request(codec.encode(originalCreateRequest))
                 .build());
         assertionRequestEntity = repository.save(WebAuthnRequestEntity.builder()
                 .requestId(loginHandle)
                 .requestType(RequestType.ASSERTION)
-                .request(assertionRequestJSON)
+                .request(codec.encode(originalAssertionRequest))
                 .build());
         registrationRequestEntity = repository.save(registrationRequestEntity);
         assertionRequestEntity = repository.save(assertionRequestEntity);
@@ -146,11 +148,7 @@ public class WebAuthnRequestRepositoryIT extends BaseRepositoryIT {
         Assertions.assertEquals(registrationRequestEntity.getExpiryTime(), webAuthnRequestEntity.getExpiryTime());
         Assertions.assertEquals(registrationRequestEntity.getCreatedTime(), webAuthnRequestEntity.getCreatedTime());
         Assertions.assertEquals(registrationRequestEntity.getRequestId(), webAuthnRequestEntity.getRequestId());
-        try {
-            PublicKeyCredentialCreationOptions actual = PublicKeyCredentialCreationOptions.fromJson(webAuthnRequestEntity.getRequest());
-            Assertions.assertEquals(originalCreateRequest.getChallenge(), actual.getChallenge());
-        } catch (JsonProcessingException e) {
-            Assertions.fail("Failed to parse JSON payload in entity");
-        }
+        PublicKeyCredentialCreationOptions actual = codec.decode(webAuthnRequestEntity.getRequest(), PublicKeyCredentialCreationOptions.class);
+        Assertions.assertEquals(originalCreateRequest, actual);
     }
 }
\ No newline at end of file
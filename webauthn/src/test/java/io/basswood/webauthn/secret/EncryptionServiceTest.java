@@ -1,5 +1,6 @@
 package io.basswood.webauthn.secret;
 
+import io.basswood.webauthn.exception.CryptoException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -15,6 +16,8 @@ import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
+import java.util.Base64;
+import java.util.Map;
 
 class EncryptionServiceTest {
     private KeyStore keyStore;
@@ -79,4 +82,62 @@ class EncryptionServiceTest {
         Assertions.assertTrue(key instanceof SecretKey);
         Assertions.assertTrue(SecretKey.class.isAssignableFrom(key.getClass()));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testDecryptedValueCache() {
+        EncryptionService cachingService = new EncryptionService(aesKey, 10, null);
+        String cipherBase64 = cachingService.encrypt(originalPlainData);
+        Assertions.assertEquals(originalPlainData, cachingService.decrypt(cipherBase64));
+        Assertions.assertEquals(originalPlainData, cachingService.decrypt(new String(cipherBase64)));
+        Assertions.assertEquals(1, cachingService.decryptedCacheStats().missCount());
+        Assertions.assertEquals(1, cachingService.decryptedCacheStats().hitCount());
+    }
+
+    @Test
+    void testDecryptAfterTamperedCipherText() {
+        String cipherBase64 = encryptionService.encrypt(originalPlainData);
+        byte[] tampered = Base64.getDecoder().decode(cipherBase64.substring("v1:".length()));
+        tampered[tampered.length - 1] ^= 1;
+        Assertions.assertThrows(CryptoException.class,
+                () -> encryptionService.decrypt("v1:" + Base64.getEncoder().encodeToString(tampered)));
+        for (int i = 0; i < 3; i++) { // pooled ciphers are re-initialized for every call
+            Assertions.assertEquals(originalPlainData, encryptionService.decrypt(cipherBase64));
+        }
+    }
+
+    @Test
+    void testKeyVersions() throws NoSuchAlgorithmException {
+        SecretKey newKey = KeyGenerator.getInstance("AES").generateKey();
+        String legacy = Base64.getEncoder().encodeToString(new GCMEncryptor(aesKey, null)
+                .encrypt(originalPlainData.getBytes(StandardCharsets.UTF_8)));
+        String version1 = encryptionService.encrypt(originalPlainData);
+        Assertions.assertTrue(version1.startsWith("v1:"));
+
+        EncryptionService rotated = new EncryptionService(new AesKeyring(2, Map.of(1, aesKey, 2, newKey)), 0, null);
+        Assertions.assertEquals(originalPlainData, rotated.decrypt(legacy));
+        Assertions.assertEquals(originalPlainData, rotated.decrypt(version1));
+        Assertions.assertFalse(rotated.isCurrent(version1));
+        String version2 = rotated.reEncrypt(version1);
+        Assertions.assertTrue(version2.startsWith("v2:"));
+        Assertions.assertTrue(rotated.isCurrent(version2));
+        Assertions.assertSame(version2, rotated.reEncrypt(version2));
+        Assertions.assertEquals(originalPlainData, rotated.decrypt(version2));
+        Assertions.assertThrows(CryptoException.class, () -> encryptionService.decrypt(version2));
+    }
+
+    @Test
+    void testSetKeyring() throws NoSuchAlgorithmException {
+        SecretKey newKey = KeyGenerator.getInstance("AES").generateKey();
+        EncryptionService service = new EncryptionService(aesKey, 10, null);
+        String version1 = service.encrypt(originalPlainData);
+        Assertions.assertEquals(originalPlainData, service.decrypt(version1));
+
+        service.setKeyring(new AesKeyring(2, Map.of(1, aesKey, 2, newKey)));
+        Assertions.assertEquals(2, service.getCurrentVersion());
+        Assertions.assertTrue(service.encrypt(originalPlainData).startsWith("v2:"));
+        Assertions.assertEquals(originalPlainData, service.decrypt(version1));
+
+        service.setKeyring(AesKeyring.of(newKey)); // version 1 is now another key
+        Assertions.assertThrows(CryptoException.class, () -> service.decrypt(version1));
+    }
+}
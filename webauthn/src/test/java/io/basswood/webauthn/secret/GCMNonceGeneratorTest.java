@@ -0,0 +1,56 @@
+package io.basswood.webauthn.secret;
+
+import io.basswood.webauthn.exception.CryptoException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+class GCMNonceGeneratorTest {
+
+    @Test
+    void testPrefixAndCounter() {
+        GCMNonceGenerator nonceGenerator = new GCMNonceGenerator(new SecureRandom());
+        byte[] first = new byte[GCMEncryptor.GCM_IV_LENGTH];
+        byte[] second = new byte[GCMEncryptor.GCM_IV_LENGTH];
+        nonceGenerator.next(first, 0);
+        nonceGenerator.next(second, 0);
+        Assertions.assertArrayEquals(Arrays.copyOf(first, GCMNonceGenerator.PREFIX_LENGTH),
+                Arrays.copyOf(second, GCMNonceGenerator.PREFIX_LENGTH));
+        Assertions.assertEquals(0, ByteBuffer.wrap(first, GCMNonceGenerator.PREFIX_LENGTH, 4).getInt());
+        Assertions.assertEquals(1, ByteBuffer.wrap(second, GCMNonceGenerator.PREFIX_LENGTH, 4).getInt());
+        Assertions.assertEquals(2, nonceGenerator.invocations());
+    }
+
+    @Test
+    void testRotationDueAndLimit() {
+        GCMNonceGenerator nonceGenerator = new GCMNonceGenerator(new SecureRandom(), 2, 3);
+        byte[] nonce = new byte[GCMEncryptor.GCM_IV_LENGTH];
+        nonceGenerator.next(nonce, 0);
+        nonceGenerator.next(nonce, 0);
+        Assertions.assertTrue(nonceGenerator.isRotationDue());
+        nonceGenerator.next(nonce, 0);
+        Assertions.assertThrows(CryptoException.class, () -> nonceGenerator.next(nonce, 0));
+        Assertions.assertEquals(3, nonceGenerator.invocations());
+    }
+
+    @Test
+    void testEncryptUsesANewIVEveryTime() throws Exception {
+        SecretKey key = KeyGenerator.getInstance("AES").generateKey();
+        GCMEncryptor gcmEncryptor = new GCMEncryptor(key, null);
+        byte[] plain = "one ring to rule them all".getBytes(StandardCharsets.UTF_8);
+        Set<ByteBuffer> ivs = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] cipherData = gcmEncryptor.encrypt(plain);
+            Assertions.assertTrue(ivs.add(ByteBuffer.wrap(cipherData, 0, GCMEncryptor.GCM_IV_LENGTH).slice()));
+            Assertions.assertArrayEquals(plain, gcmEncryptor.decrypt(cipherData));
+        }
+    }
+}
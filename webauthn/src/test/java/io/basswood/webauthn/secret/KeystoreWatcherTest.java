@@ -0,0 +1,64 @@
+package io.basswood.webauthn.secret;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.KeyStore;
+import java.time.Duration;
+
+class KeystoreWatcherTest {
+    private static final String keyStoreResource = "/secrets/basswood-not-for-production-keystore.p12";
+    private static final String keyStoreConfigResource = "/secrets/keystore-config.json";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReloadIfChanged() throws Exception {
+        Path keyStoreFile = directory.resolve("keystore.p12");
+        Path keyStoreConfigFile = directory.resolve("keystore-config.json");
+        try (InputStream keyStore = getClass().getResourceAsStream(keyStoreResource);
+             InputStream keyStoreConfig = getClass().getResourceAsStream(keyStoreConfigResource)) {
+            Files.copy(keyStore, keyStoreFile);
+            Files.copy(keyStoreConfig, keyStoreConfigFile);
+        }
+        KeystoreConfig keystoreConfig = new ObjectMapper().readValue(keyStoreConfigFile.toFile(), KeystoreConfig.class);
+        SecretManager secretManager = SecretManager.build(Files.newInputStream(keyStoreFile), keystoreConfig);
+        KeystoreWatcher watcher = new KeystoreWatcher(secretManager, keyStoreFile, keyStoreConfigFile, true, Duration.ofMillis(100));
+        watcher.start();
+        try {
+            Assertions.assertFalse(watcher.reloadIfChanged());
+
+            char[] storepass = keystoreConfig.storepass().toCharArray();
+            KeyStore keyStore = KeyStore.getInstance(keystoreConfig.storeType());
+            try (InputStream in = Files.newInputStream(keyStoreFile)) {
+                keyStore.load(in, storepass);
+            }
+            keyStore.setKeyEntry(keystoreConfig.dbKeyAlias(), new SecretKeySpec("rotated".getBytes(StandardCharsets.UTF_8), "AES"),
+                    keystoreConfig.dbKeyPassword().toCharArray(), null);
+            Path written = directory.resolve("keystore.p12.new");
+            try (OutputStream out = Files.newOutputStream(written)) {
+                keyStore.store(out, storepass);
+            }
+            Files.move(written, keyStoreFile, StandardCopyOption.REPLACE_EXISTING);
+
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (!"rotated".equals(secretManager.getDatabasePassword()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Assertions.assertEquals("rotated", secretManager.getDatabasePassword());
+            Assertions.assertFalse(watcher.reloadIfChanged());
+        } finally {
+            watcher.stop();
+        }
+    }
+}
@@ -1,18 +1,28 @@
 package io.basswood.webauthn.secret;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.basswood.webauthn.exception.KeystoreException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class SecretManagerTest {
     private static final String keyStoreResource = "/secrets/basswood-not-for-production-keystore.p12";
     private static final String keyStoreConfigResource = "/secrets/keystore-config.json";
 
     private SecretManager keystoreService;
+    private KeystoreConfig keystoreConfig;
     private String expectedDBPassword;
 
     @BeforeEach
@@ -20,7 +30,7 @@ class SecretManagerTest {
         InputStream keyStoreInput = SecretManagerTest.class.getResourceAsStream(keyStoreResource);
         InputStream keyStoreConfigInput = SecretManagerTest.class.getResourceAsStream(keyStoreConfigResource);
         ObjectMapper objectMapper = new ObjectMapper();
-        KeystoreConfig keystoreConfig = objectMapper.readValue(keyStoreConfigInput, KeystoreConfig.class);
+        keystoreConfig = objectMapper.readValue(keyStoreConfigInput, KeystoreConfig.class);
         keystoreService = SecretManager.build(keyStoreInput, keystoreConfig);
         expectedDBPassword = "basswood";
     }
@@ -30,4 +40,42 @@ class SecretManagerTest {
         Assertions.assertEquals(expectedDBPassword, keystoreService.getDatabasePassword());
         Assertions.assertNotNull(keystoreService.getAesKey());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testKeysUnwrappedOnce() {
+        Assertions.assertSame(keystoreService.getAesKey(), keystoreService.getAesKey());
+        Assertions.assertSame(keystoreService.getAesKey(), keystoreService.getAesKeyring().currentKey());
+    }
+
+    @Test
+    void testReload() throws Exception {
+        SecretKey previousKey = keystoreService.getAesKey();
+        AtomicInteger reloads = new AtomicInteger();
+        keystoreService.addReloadListener(reloaded -> reloads.incrementAndGet());
+        SecretKey newKey = KeyGenerator.getInstance("AES").generateKey();
+
+        keystoreService.reload(keyStore(newKey, "rotated"), keystoreConfig);
+        Assertions.assertEquals(1, reloads.get());
+        Assertions.assertEquals("rotated", keystoreService.getDatabasePassword());
+        Assertions.assertEquals(newKey, keystoreService.getAesKey());
+
+        KeystoreConfig wrongAlias = new KeystoreConfig(keystoreConfig.storeType(), keystoreConfig.storepass(),
+                keystoreConfig.aesKeyPassword(), "missing", keystoreConfig.dbKeyPassword(), keystoreConfig.dbKeyAlias());
+        Assertions.assertThrows(KeystoreException.class, () -> keystoreService.reload(keyStore(previousKey, "lost"), wrongAlias));
+        Assertions.assertEquals(1, reloads.get());
+        Assertions.assertEquals("rotated", keystoreService.getDatabasePassword());
+        Assertions.assertEquals(newKey, keystoreService.getAesKey());
+    }
+
+    private InputStream keyStore(SecretKey aesKey, String dbPassword) throws Exception {
+        char[] storepass = keystoreConfig.storepass().toCharArray();
+        KeyStore keyStore = KeyStore.getInstance(keystoreConfig.storeType());
+        keyStore.load(null, storepass);
+        keyStore.setKeyEntry(keystoreConfig.aesKeyAlias(), aesKey, keystoreConfig.aesKeyPassword().toCharArray(), null);
+        keyStore.setKeyEntry(keystoreConfig.dbKeyAlias(), new SecretKeySpec(dbPassword.getBytes(StandardCharsets.UTF_8), "AES"),
+                keystoreConfig.dbKeyPassword().toCharArray(), null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        keyStore.store(out, storepass);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+}
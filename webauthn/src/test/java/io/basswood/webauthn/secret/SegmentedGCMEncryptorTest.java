@@ -0,0 +1,88 @@
+package io.basswood.webauthn.secret;
+
+import io.basswood.webauthn.exception.CryptoException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+class SegmentedGCMEncryptorTest {
+    private static final int SEGMENT_SIZE = 64;
+    private static final int SEGMENT = SEGMENT_SIZE + SegmentedGCMEncryptor.TAG_LENGTH;
+    private SegmentedGCMEncryptor encryptor;
+
+    @BeforeEach
+    void setup() throws Exception {
+        SecretKey key = KeyGenerator.getInstance("AES").generateKey();
+        encryptor = new SegmentedGCMEncryptor(key, new SecureRandom(), "jwk-export".getBytes(), SEGMENT_SIZE);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 3 * SEGMENT_SIZE + 7})
+    void testRoundTrip(int size) {
+        byte[] plain = new byte[size];
+        new SecureRandom().nextBytes(plain);
+        byte[] cipherText = encrypt(plain);
+        int segments = Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        Assertions.assertEquals(SegmentedGCMEncryptor.HEADER_LENGTH + size + segments * SegmentedGCMEncryptor.TAG_LENGTH,
+                cipherText.length);
+        Assertions.assertArrayEquals(plain, decrypt(cipherText));
+    }
+
+    @Test
+    void testTruncatedAtSegmentBoundary() {
+        byte[] cipherText = encrypt(new byte[3 * SEGMENT_SIZE + 7]);
+        byte[] truncated = Arrays.copyOf(cipherText, SegmentedGCMEncryptor.HEADER_LENGTH + 2 * SEGMENT);
+        Assertions.assertThrows(CryptoException.class, () -> decrypt(truncated));
+        Assertions.assertThrows(CryptoException.class, () -> decrypt(Arrays.copyOf(cipherText, cipherText.length - 1)));
+    }
+
+    @Test
+    void testReorderedSegments() {
+        byte[] cipherText = encrypt(new byte[3 * SEGMENT_SIZE + 7]);
+        int first = SegmentedGCMEncryptor.HEADER_LENGTH;
+        byte[] swapped = cipherText.clone();
+        System.arraycopy(cipherText, first, swapped, first + SEGMENT, SEGMENT);
+        System.arraycopy(cipherText, first + SEGMENT, swapped, first, SEGMENT);
+        Assertions.assertThrows(CryptoException.class, () -> decrypt(swapped));
+    }
+
+    @Test
+    void testTampered() {
+        byte[] cipherText = encrypt(new byte[SEGMENT_SIZE]);
+        cipherText[SegmentedGCMEncryptor.HEADER_LENGTH + 3] ^= 1;
+        Assertions.assertThrows(CryptoException.class, () -> decrypt(cipherText));
+    }
+
+    @Test
+    void testGCMEncryptorStreams() throws Exception {
+        GCMEncryptor gcmEncryptor = new GCMEncryptor(KeyGenerator.getInstance("AES").generateKey(), null);
+        byte[] plain = new byte[3 * SegmentedGCMEncryptor.DEFAULT_SEGMENT_SIZE + 1];
+        new SecureRandom().nextBytes(plain);
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        gcmEncryptor.encrypt(new ByteArrayInputStream(plain), cipherText);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        gcmEncryptor.decrypt(new ByteArrayInputStream(cipherText.toByteArray()), decrypted);
+        Assertions.assertArrayEquals(plain, decrypted.toByteArray());
+    }
+
+    private byte[] encrypt(byte[] plain) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encryptor.encrypt(new ByteArrayInputStream(plain), out);
+        return out.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] cipherText) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encryptor.decrypt(new ByteArrayInputStream(cipherText), out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,72 @@
+package io.basswood.webauthn.secret;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Set;
+
+class StripedDrbgRandomProviderTest {
+
+    @Test
+    void testNextBytes() {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        StripedDrbgRandomProvider provider = new StripedDrbgRandomProvider(4, Duration.ZERO, meterRegistry);
+        Assertions.assertEquals(4, provider.getStripes());
+        Set<String> values = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            values.add(HexFormat.of().formatHex(provider.nextBytes(16)));
+        }
+        Assertions.assertEquals(100, values.size());
+        Assertions.assertEquals(100, meterRegistry.get(StripedDrbgRandomProvider.METRIC_GENERATE).timer().count());
+    }
+
+    @Test
+    void testReseed() throws InterruptedException {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        StripedDrbgRandomProvider provider = new StripedDrbgRandomProvider(2, Duration.ofMillis(10), meterRegistry,
+                new SecureRandom());
+        provider.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (meterRegistry.get(StripedDrbgRandomProvider.METRIC_RESEED).counter().count() < 4
+                    && System.currentTimeMillis() < deadline) {
+                provider.nextBytes(32);
+                Thread.sleep(5);
+            }
+        } finally {
+            provider.stop();
+        }
+        Assertions.assertTrue(meterRegistry.get(StripedDrbgRandomProvider.METRIC_RESEED).counter().count() >= 4);
+        Assertions.assertEquals(0, meterRegistry.get(StripedDrbgRandomProvider.METRIC_RESEED_FAILED).counter().count());
+    }
+
+    @Test
+    void testReseedFailureKeepsStripes() throws InterruptedException {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        SecureRandom failing = new SecureRandom() {
+            @Override
+            public void nextBytes(byte[] bytes) {
+                throw new IllegalStateException("entropy source unavailable");
+            }
+        };
+        StripedDrbgRandomProvider provider = new StripedDrbgRandomProvider(2, Duration.ofMillis(10), meterRegistry, failing);
+        provider.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (meterRegistry.get(StripedDrbgRandomProvider.METRIC_RESEED_FAILED).counter().count() < 1
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            Assertions.assertTrue(meterRegistry.get(StripedDrbgRandomProvider.METRIC_RESEED_FAILED).counter().count() >= 1);
+            Assertions.assertEquals(16, provider.nextBytes(16).length);
+        } finally {
+            provider.stop();
+        }
+    }
+}
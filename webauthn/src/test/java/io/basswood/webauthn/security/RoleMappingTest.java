@@ -1,16 +1,67 @@
 package io.basswood.webauthn.security;
 
+import io.basswood.webauthn.exception.BadRequest;
+import io.basswood.webauthn.exception.RootException;
 import io.basswood.webauthn.model.token.Role;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.util.List;
+import java.util.Set;
+
 class RoleMappingTest {
     @Test
     void testMapping() {
         RoleMapping roleMapping = new RoleMapping();
-        Assertions.assertEquals(Role.user_manager, roleMapping.requireRole("/user/1234"));
-        Assertions.assertEquals(Role.rp_manager, roleMapping.requireRole("/relying-party/1234"));
-        Assertions.assertEquals(Role.jwk_manager, roleMapping.requireRole("/jwk/1234"));
-        Assertions.assertEquals(Role.none, roleMapping.requireRole("/webauthn/registration"));
+        Assertions.assertEquals(Set.of(Role.user_manager), roleMapping.requiredRoles("GET", "/user/1234"));
+        Assertions.assertEquals(Set.of(Role.rp_manager), roleMapping.requiredRoles("GET", "/relying-party/1234"));
+        Assertions.assertEquals(Set.of(Role.jwk_manager), roleMapping.requiredRoles("GET", "/jwk/1234"));
+        Assertions.assertEquals(Set.of(Role.jwk_manager), roleMapping.requiredRoles("POST", "/jwk"));
+        Assertions.assertEquals(Set.of(Role.token_manager), roleMapping.requiredRoles("POST", "/jwt/batch"));
+        Assertions.assertEquals(Set.of(), roleMapping.requiredRoles("POST", "/webauthn/registration"));
+        Assertions.assertEquals(Set.of(), roleMapping.requiredRoles("GET", "/.well-known/jwks.json"));
+        Assertions.assertEquals(Set.of(), roleMapping.requiredRoles("GET", "/"));
+    }
+
+    @Test
+    void testMethodsAndPrecedence() {
+        RoleMapping roleMapping = new RoleMapping(List.of(
+                "GET /jwk/* jwk_manager|token_manager",
+                "DELETE /jwk/* jwk_manager",
+                "* /jwk/** jwk_manager",
+                "GET /user/*/public none",
+                "* /user/** user_manager"));
+        Assertions.assertEquals(Set.of(Role.jwk_manager, Role.token_manager), roleMapping.requiredRoles("GET", "/jwk/1234"));
+        Assertions.assertEquals(Set.of(Role.jwk_manager), roleMapping.requiredRoles("DELETE", "/jwk/1234"));
+        Assertions.assertEquals(Set.of(Role.jwk_manager), roleMapping.requiredRoles("GET", "/jwk/1234/more"));
+        Assertions.assertEquals(Set.of(), roleMapping.requiredRoles("GET", "/user/1234/public"));
+        Assertions.assertEquals(Set.of(Role.user_manager), roleMapping.requiredRoles("POST", "/user/1234/public"));
+        Assertions.assertEquals(Set.of(Role.user_manager), roleMapping.requiredRoles("GET", "/user/1234/private"));
+        Assertions.assertEquals(Set.of(), roleMapping.requiredRoles("GET", "/users"));
+    }
+
+    @Test
+    void testPathParametersAndUnsafePaths() {
+        RoleMapping roleMapping = new RoleMapping();
+        Assertions.assertEquals(Set.of(Role.user_manager), roleMapping.requiredRoles("GET", "/user;x=1/abc"));
+        Assertions.assertEquals(Set.of(Role.jwk_manager), roleMapping.requiredRoles("DELETE", "/jwk;a/k1"));
+        Assertions.assertEquals(Set.of(Role.jwk_manager), roleMapping.requiredRoles("DELETE", "/jwk/k1;a"));
+        Assertions.assertEquals(Set.of(Role.user_manager), roleMapping.requiredRoles("GET", "/user/"));
+        Assertions.assertThrows(BadRequest.class, () -> roleMapping.requiredRoles("GET", "//user/abc"));
+        Assertions.assertThrows(BadRequest.class, () -> roleMapping.requiredRoles("GET", "/webauthn//user/abc"));
+        Assertions.assertThrows(BadRequest.class, () -> roleMapping.requiredRoles("GET", "/;x/user/abc"));
+        Assertions.assertThrows(BadRequest.class, () -> roleMapping.requiredRoles("GET", "/%75ser/abc"));
+        Assertions.assertThrows(BadRequest.class, () -> roleMapping.requiredRoles("GET", "/user/a%2Fb"));
+        Assertions.assertThrows(BadRequest.class, () -> roleMapping.requiredRoles("GET", "/webauthn/../user/abc"));
+        Assertions.assertThrows(BadRequest.class, () -> roleMapping.requiredRoles("GET", "/webauthn/..;x/user/abc"));
+        Assertions.assertThrows(BadRequest.class, () -> roleMapping.requiredRoles("GET", "/./user/abc"));
+        Assertions.assertEquals(Set.of(), roleMapping.requiredRoles("GET", "/.well-known/jwks.json"));
+    }
+
+    @Test
+    void testInvalidRoutes() {
+        Assertions.assertThrows(RootException.class, () -> new RoleMapping(List.of("/jwk/** jwk_manager")));
+        Assertions.assertThrows(RootException.class, () -> new RoleMapping(List.of("* /jwk/** unknown")));
+        Assertions.assertThrows(RootException.class, () -> new RoleMapping(List.of("* /jwk/**/x jwk_manager")));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,108 @@
+package io.basswood.webauthn.security;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import io.basswood.webauthn.exception.TokenValidationError;
+import io.basswood.webauthn.model.token.AuthenticatedPrincipal;
+import io.basswood.webauthn.model.token.Role;
+import io.basswood.webauthn.service.JWKService;
+import io.basswood.webauthn.service.TokenGenerator;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class VerifiedTokenCacheTest {
+    private JWKService jwkService;
+    private TokenGenerator tokenGenerator;
+    private JWK jwk;
+    private SimpleMeterRegistry meterRegistry;
+    private VerifiedTokenCache verifiedTokenCache;
+    private AtomicInteger verifications;
+    private Function<String, AuthenticatedPrincipal> verification;
+
+    @BeforeEach
+    void setup() throws JOSEException {
+        jwkService = mock(JWKService.class);
+        tokenGenerator = new TokenGenerator();
+        jwk = new ECKeyGenerator(Curve.P_256)
+                .keyID(UUID.randomUUID().toString())
+                .issueTime(new Date())
+                .generate();
+        meterRegistry = new SimpleMeterRegistry();
+        verifiedTokenCache = new VerifiedTokenCache(jwkService, 100, Duration.ofMinutes(5), meterRegistry);
+        verifications = new AtomicInteger();
+        verification = token -> {
+            verifications.incrementAndGet();
+            try {
+                return AuthenticatedPrincipal.of(tokenGenerator.parseSignedJWT(token).getJWTClaimsSet());
+            } catch (ParseException e) {
+                throw new TokenValidationError("Failed to parse claim set", e);
+            }
+        };
+    }
+
+    @Test
+    void testRepeatedTokenIsVerifiedOnce() {
+        String token = token(Duration.ofMinutes(5));
+        VerifiedTokenCache.VerifiedToken first = verifiedTokenCache.getOrVerify(token, verification);
+        VerifiedTokenCache.VerifiedToken second = verifiedTokenCache.getOrVerify(token, verification);
+        Assertions.assertSame(first, second);
+        Assertions.assertEquals(Set.of(Role.jwk_manager, Role.user_manager), first.principal().roles());
+        Assertions.assertEquals(1, verifications.get());
+        Assertions.assertEquals(1, verifiedTokenCache.stats().hitCount());
+        Assertions.assertEquals(1.0, meterRegistry.get("cache.gets")
+                .tag("cache", VerifiedTokenCache.CACHE_NAME).tag("result", "hit").functionCounter().count());
+    }
+
+    @Test
+    void testExpiredTokenIsVerifiedAgain() {
+        String token = token(Duration.ofSeconds(-1));
+        verifiedTokenCache.getOrVerify(token, verification);
+        verifiedTokenCache.getOrVerify(token, verification);
+        Assertions.assertEquals(2, verifications.get());
+    }
+
+    @Test
+    void testKeyRemovalInvalidatesEntries() {
+        String token = token(Duration.ofMinutes(5));
+        when(jwkService.keyGeneration()).thenReturn(0L);
+        verifiedTokenCache.getOrVerify(token, verification);
+        when(jwkService.keyGeneration()).thenReturn(1L);
+        verifiedTokenCache.getOrVerify(token, verification);
+        verifiedTokenCache.getOrVerify(token, verification);
+        Assertions.assertEquals(2, verifications.get());
+    }
+
+    @Test
+    void testFailedVerificationIsNotCached() {
+        String token = token(Duration.ofMinutes(5));
+        Function<String, AuthenticatedPrincipal> failing = t -> {
+            verifications.incrementAndGet();
+            throw new TokenValidationError("Invalid token");
+        };
+        Assertions.assertThrows(TokenValidationError.class, () -> verifiedTokenCache.getOrVerify(token, failing));
+        Assertions.assertThrows(TokenValidationError.class, () -> verifiedTokenCache.getOrVerify(token, failing));
+        Assertions.assertEquals(2, verifications.get());
+        Assertions.assertEquals(0, verifiedTokenCache.stats().hitCount());
+    }
+
+    private String token(Duration lifetime) {
+        return tokenGenerator.createSignedJWT(jwk, tokenGenerator.createToken("webauthn_admin", "webauthn.basswood.io",
+                "webauthn.basswood.io", lifetime, List.of("jwk_manager", "user_manager"))).serialize();
+    }
+}
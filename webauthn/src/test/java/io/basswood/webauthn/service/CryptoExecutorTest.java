@@ -0,0 +1,77 @@
+package io.basswood.webauthn.service;
+
+import io.basswood.webauthn.exception.BadRequest;
+import io.basswood.webauthn.exception.ServerBusy;
+import io.basswood.webauthn.model.credential.CeremonyLookupContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+class CryptoExecutorTest {
+    private SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private CryptoExecutor cryptoExecutor = new CryptoExecutor(1, 1, meterRegistry);
+
+    @AfterEach
+    void cleanup() {
+        cryptoExecutor.shutdown();
+    }
+
+    @Test
+    void testExecute() {
+        String thread = cryptoExecutor.execute(() -> Thread.currentThread().getName());
+        Assertions.assertTrue(thread.startsWith("webauthn-crypto-"));
+    }
+
+    @Test
+    void testExecute_ContextPropagated() {
+        try (CeremonyLookupContext.Scope ignored = CeremonyLookupContext.open()) {
+            CeremonyLookupContext context = CeremonyLookupContext.current();
+            Assertions.assertSame(context, cryptoExecutor.execute(CeremonyLookupContext::current));
+        }
+        Assertions.assertNull(cryptoExecutor.execute(CeremonyLookupContext::current));
+    }
+
+    @Test
+    void testExecute_ExceptionRethrown() {
+        Assertions.assertThrows(BadRequest.class, () -> cryptoExecutor.execute(() -> {
+            throw new BadRequest("bad signature");
+        }));
+    }
+
+    @Test
+    void testExecute_RejectedWhenFull() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> running = CompletableFuture.supplyAsync(() -> cryptoExecutor.execute(() -> {
+            started.countDown();
+            await(release);
+            return null;
+        }));
+        Assertions.assertTrue(started.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Object> queued = CompletableFuture.supplyAsync(() -> cryptoExecutor.execute(() -> null));
+        // Wait until the second task occupies the single queue slot.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (meterRegistry.get(CryptoExecutor.METRIC_QUEUE_SIZE).gauge().value() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        ServerBusy serverBusy = Assertions.assertThrows(ServerBusy.class, () -> cryptoExecutor.execute(() -> null));
+        Assertions.assertEquals(503, serverBusy.getHttpStatus());
+        Assertions.assertEquals(1.0, meterRegistry.get(CryptoExecutor.METRIC_REJECTED).counter().count());
+        release.countDown();
+        running.get(5, TimeUnit.SECONDS);
+        queued.get(5, TimeUnit.SECONDS);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package io.basswood.webauthn.service;
+
+import io.basswood.webauthn.repository.JdbcLease;
+import io.basswood.webauthn.secret.AesKeyring;
+import io.basswood.webauthn.secret.EncryptionService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class JWKReEncryptionJobTest {
+    private JdbcTemplate jdbcTemplate;
+    private JdbcLease lease;
+    private SimpleMeterRegistry meterRegistry;
+    private EncryptionService previous;
+    private EncryptionService current;
+    private JWKReEncryptionJob job;
+
+    @BeforeEach
+    void setup() throws Exception {
+        SecretKey oldKey = KeyGenerator.getInstance("AES").generateKey();
+        SecretKey newKey = KeyGenerator.getInstance("AES").generateKey();
+        previous = new EncryptionService(oldKey);
+        current = new EncryptionService(new AesKeyring(2, Map.of(1, oldKey, 2, newKey)), 0, null);
+        jdbcTemplate = mock(JdbcTemplate.class);
+        lease = mock(JdbcLease.class);
+        meterRegistry = new SimpleMeterRegistry();
+        job = new JWKReEncryptionJob(jdbcTemplate, current, lease, meterRegistry, true, 60, 2, Duration.ZERO);
+    }
+
+    @Test
+    void testReEncryptAll() throws InterruptedException {
+        String old1 = previous.encrypt("jwk1");
+        String old3 = previous.encrypt("jwk3");
+        when(lease.tryAcquire()).thenReturn(true);
+        when(jdbcTemplate.queryForObject(JWKReEncryptionJob.COUNT, Long.class)).thenReturn(3L);
+        when(jdbcTemplate.queryForList(JWKReEncryptionJob.SELECT_CHUNK, "", 2)).thenReturn(List.of(
+                Map.of("kid", "kid1", "jwkData", old1),
+                Map.of("kid", "kid2", "jwkData", current.encrypt("jwk2"))));
+        when(jdbcTemplate.queryForList(JWKReEncryptionJob.SELECT_CHUNK, "kid2", 2)).thenReturn(List.of(
+                Map.of("kid", "kid3", "jwkData", old3)));
+        when(jdbcTemplate.update(eq(JWKReEncryptionJob.UPDATE), anyString(), anyString(), anyString())).thenReturn(1);
+
+        Assertions.assertEquals(2, job.reEncryptAll());
+        verify(jdbcTemplate, times(1)).update(eq(JWKReEncryptionJob.UPDATE), anyString(), eq("kid1"), eq(old1));
+        verify(jdbcTemplate, times(1)).update(eq(JWKReEncryptionJob.UPDATE), anyString(), eq("kid3"), eq(old3));
+        verify(jdbcTemplate, never()).update(eq(JWKReEncryptionJob.UPDATE), anyString(), eq("kid2"), anyString());
+        verify(lease, times(1)).release();
+        Assertions.assertEquals(new JWKReEncryptionJob.Progress(3, 3, true), job.progress());
+        Assertions.assertEquals(2.0, meterRegistry.get(JWKReEncryptionJob.METRIC_REENCRYPTED).counter().count());
+    }
+
+    @Test
+    void testLeaseHeldElsewhere() throws InterruptedException {
+        Assertions.assertEquals(-1, job.reEncryptAll());
+        verify(jdbcTemplate, never()).queryForList(anyString(), any(Object[].class));
+        Assertions.assertFalse(job.progress().complete());
+    }
+
+    @Test
+    void testLeaseLost_NotComplete() throws InterruptedException {
+        when(lease.tryAcquire()).thenReturn(true, false);
+        when(jdbcTemplate.queryForObject(JWKReEncryptionJob.COUNT, Long.class)).thenReturn(3L);
+        when(jdbcTemplate.queryForList(JWKReEncryptionJob.SELECT_CHUNK, "", 2)).thenReturn(List.of(
+                Map.of("kid", "kid1", "jwkData", current.encrypt("jwk1")),
+                Map.of("kid", "kid2", "jwkData", current.encrypt("jwk2"))));
+        job.reEncryptAll();
+        Assertions.assertFalse(job.progress().complete());
+    }
+
+    @Test
+    void testCompleted_ScannedAgain() throws InterruptedException {
+        String written = previous.encrypt("jwk1"); // by a node still on the previous key version
+        when(lease.tryAcquire()).thenReturn(true);
+        when(jdbcTemplate.queryForObject(JWKReEncryptionJob.COUNT, Long.class)).thenReturn(1L);
+        when(jdbcTemplate.queryForList(JWKReEncryptionJob.SELECT_CHUNK, "", 2)).thenReturn(
+                List.of(Map.of("kid", "kid1", "jwkData", current.encrypt("jwk1"))),
+                List.of(Map.of("kid", "kid1", "jwkData", written)));
+        when(jdbcTemplate.update(eq(JWKReEncryptionJob.UPDATE), anyString(), anyString(), anyString())).thenReturn(1);
+
+        Assertions.assertEquals(0, job.reEncryptAll());
+        Assertions.assertTrue(job.progress().complete());
+        Assertions.assertEquals(1, job.reEncryptAll());
+        verify(jdbcTemplate, times(1)).update(eq(JWKReEncryptionJob.UPDATE), anyString(), eq("kid1"), eq(written));
+    }
+
+    @Test
+    void testUndecryptable_NotComplete() throws Exception {
+        String unknownKey = new EncryptionService(KeyGenerator.getInstance("AES").generateKey()).encrypt("jwk1");
+        when(lease.tryAcquire()).thenReturn(true);
+        when(jdbcTemplate.queryForObject(JWKReEncryptionJob.COUNT, Long.class)).thenReturn(1L);
+        when(jdbcTemplate.queryForList(JWKReEncryptionJob.SELECT_CHUNK, "", 2)).thenReturn(
+                List.of(Map.of("kid", "kid1", "jwkData", unknownKey)));
+
+        Assertions.assertEquals(0, job.reEncryptAll());
+        Assertions.assertFalse(job.progress().complete());
+        Assertions.assertEquals(1.0, meterRegistry.get(JWKReEncryptionJob.METRIC_FAILED).counter().count());
+    }
+}
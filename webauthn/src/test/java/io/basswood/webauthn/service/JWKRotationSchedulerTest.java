@@ -0,0 +1,79 @@
+package io.basswood.webauthn.service;
+
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.KeyUse;
+import io.basswood.webauthn.model.jwk.KeyUseEnum;
+import io.basswood.webauthn.repository.JdbcLease;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class JWKRotationSchedulerTest {
+    private static final Duration AHEAD_OF_TIME = Duration.ofDays(7);
+    private JWKService jwkService;
+    private JdbcLease lease;
+    private SimpleMeterRegistry meterRegistry;
+    private JWKRotationScheduler scheduler;
+
+    @BeforeEach
+    void setup() {
+        jwkService = mock(JWKService.class);
+        lease = mock(JdbcLease.class);
+        meterRegistry = new SimpleMeterRegistry();
+        scheduler = new JWKRotationScheduler(jwkService, lease, meterRegistry, true, 60, AHEAD_OF_TIME,
+                Duration.ofDays(1));
+    }
+
+    @Test
+    void testNothingDue_NoLease() {
+        Assertions.assertFalse(scheduler.rotate());
+        verify(jwkService, times(1)).refreshLatestKeys();
+        verify(lease, never()).tryAcquire();
+    }
+
+    @Test
+    void testRotateDueKey() {
+        JWK jwk = new NimbusJOSEHelper().createECKey(KeyUse.SIGNATURE, Curve.P_256, Duration.ofDays(30));
+        when(jwkService.isRotationDue(KeyUseEnum.SIGNATURE, AHEAD_OF_TIME)).thenReturn(true);
+        when(jwkService.rotate(KeyUseEnum.SIGNATURE)).thenReturn(jwk);
+        when(jwkService.retireKeys(any(Date.class))).thenReturn(List.of("expired"));
+        when(lease.tryAcquire()).thenReturn(true);
+        Assertions.assertTrue(scheduler.rotate());
+        verify(jwkService, times(1)).rotate(KeyUseEnum.SIGNATURE);
+        verify(jwkService, never()).rotate(KeyUseEnum.ENCRYPTION);
+        verify(lease, times(1)).release();
+        Assertions.assertEquals(1.0, meterRegistry.get(JWKRotationScheduler.METRIC_ROTATED).counter().count());
+        Assertions.assertEquals(1.0, meterRegistry.get(JWKRotationScheduler.METRIC_RETIRED).counter().count());
+    }
+
+    @Test
+    void testLeaseHeldElsewhere() {
+        when(jwkService.isRotationDue(KeyUseEnum.ENCRYPTION, AHEAD_OF_TIME)).thenReturn(true);
+        when(lease.tryAcquire()).thenReturn(false);
+        Assertions.assertFalse(scheduler.rotate());
+        verify(jwkService, never()).rotate(any());
+        verify(jwkService, never()).retireKeys(any());
+    }
+
+    @Test
+    void testRotatedMeanwhile_NotCreatedTwice() {
+        when(jwkService.isRotationDue(KeyUseEnum.SIGNATURE, AHEAD_OF_TIME)).thenReturn(true, false);
+        when(lease.tryAcquire()).thenReturn(true);
+        when(jwkService.retireKeys(any(Date.class))).thenReturn(List.of());
+        Assertions.assertTrue(scheduler.rotate());
+        verify(jwkService, never()).rotate(any());
+    }
+}
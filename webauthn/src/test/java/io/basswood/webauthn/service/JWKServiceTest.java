@@ -1,14 +1,19 @@
 package io.basswood.webauthn.service;
 
 
+import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jose.jwk.KeyType;
 import com.nimbusds.jose.jwk.KeyUse;
 import io.basswood.webauthn.dto.JWKCreateDTO;
+import io.basswood.webauthn.exception.ServerBusy;
 import io.basswood.webauthn.model.jwk.JWKEntity;
+import io.basswood.webauthn.model.jwk.JWKEntityConverter;
+import io.basswood.webauthn.model.jwk.JWKValidityRow;
 import io.basswood.webauthn.model.jwk.KeyTypeEnum;
 import io.basswood.webauthn.model.jwk.KeyUseEnum;
 import io.basswood.webauthn.repository.JWKRepository;
+import io.basswood.webauthn.repository.JdbcLease;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -16,7 +21,17 @@ import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -59,4 +74,166 @@ class JWKServiceTest {
         Assertions.assertEquals(KeyType.RSA ,jwk.getKeyType());
         Assertions.assertEquals(KeyUse.ENCRYPTION ,jwk.getKeyUse());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testVerificationKey_BuiltOncePerKid() {
+        JWK jwk = jwkService.createKey(JWKCreateDTO.builder().build());
+        when(repository.findDistinctByKid(jwk.getKeyID())).thenReturn(Optional.of(new JWKEntityConverter().toEntity(jwk)));
+        jwkService = new JWKService(repository); // start with empty caches
+        VerificationKey first = jwkService.verificationKey(jwk.getKeyID()).get();
+        VerificationKey second = jwkService.verificationKey(jwk.getKeyID()).get();
+        Assertions.assertSame(first, second);
+        Assertions.assertEquals(JWSAlgorithm.ES256, first.algorithm());
+        Assertions.assertFalse(first.jwk().isPrivate());
+        verify(repository, times(1)).findDistinctByKid(jwk.getKeyID());
+    }
+
+    @Test
+    void testVerificationKey_InvalidatedOnRemove() {
+        JWK jwk = jwkService.createKey(JWKCreateDTO.builder().build());
+        JWKEntity entity = new JWKEntityConverter().toEntity(jwk);
+        when(repository.findDistinctByKid(jwk.getKeyID())).thenReturn(Optional.of(entity));
+        Assertions.assertTrue(jwkService.verificationKey(jwk.getKeyID()).isPresent());
+        jwkService.removeKey(jwk.getKeyID());
+        when(repository.findDistinctByKid(jwk.getKeyID())).thenReturn(Optional.empty());
+        Assertions.assertTrue(jwkService.verificationKey(jwk.getKeyID()).isEmpty());
+    }
+
+    @Test
+    void testVerificationKey_UnknownKid() {
+        when(repository.findDistinctByKid("unknown")).thenReturn(Optional.empty());
+        Assertions.assertTrue(jwkService.verificationKey("unknown").isEmpty());
+    }
+
+    @Test
+    void testJwksSnapshot_RebuiltOnlyOnChange() {
+        JWK jwk = jwkService.createKey(JWKCreateDTO.builder().build());
+        when(repository.findKids()).thenReturn(List.of(jwk.getKeyID()));
+        JWKSetSnapshot first = jwkService.jwksSnapshot();
+        Assertions.assertSame(first, jwkService.jwksSnapshot());
+        Assertions.assertFalse(new String(first.json(), StandardCharsets.UTF_8).contains("\"d\""));
+        Assertions.assertTrue(jwkService.publicKeyJSON(jwk.getKeyID()).isPresent());
+        verify(repository, times(1)).findKids();
+        verify(repository, never()).findDistinctByKid(jwk.getKeyID());
+
+        JWK second = jwkService.createKey(JWKCreateDTO.builder().build());
+        when(repository.findKids()).thenReturn(List.of(jwk.getKeyID(), second.getKeyID()));
+        JWKSetSnapshot rebuilt = jwkService.jwksSnapshot();
+        Assertions.assertNotEquals(first.etag(), rebuilt.etag());
+        Assertions.assertEquals(2, rebuilt.jwkSet().size());
+        verify(repository, times(2)).findKids();
+        verify(repository, never()).findAllById(ArgumentMatchers.anyIterable()); // both created here, nothing read
+    }
+
+    @Test
+    void testJwksSnapshot_SameKeysSameETag() {
+        JWK jwk = jwkService.createKey(JWKCreateDTO.builder().build());
+        when(repository.findKids()).thenReturn(List.of(jwk.getKeyID()));
+        when(repository.findAllById(List.of(jwk.getKeyID()))).thenReturn(List.of(new JWKEntityConverter().toEntity(jwk)));
+        Assertions.assertEquals(jwkService.jwksSnapshot().etag(), new JWKService(repository).jwksSnapshot().etag());
+    }
+
+    @Test
+    void testPublicKeyJSON_UnknownKidNotLookedUpAgain() {
+        when(repository.findKids()).thenReturn(List.of());
+        when(repository.findDistinctByKid("unknown")).thenReturn(Optional.empty());
+        Assertions.assertTrue(jwkService.publicKeyJSON("unknown").isEmpty());
+        Assertions.assertTrue(jwkService.publicKeyJSON("unknown").isEmpty());
+        verify(repository, times(1)).findDistinctByKid("unknown");
+        verify(repository, times(1)).findKids();
+    }
+
+    @Test
+    void testPublicKeyJSON_KeyOfOtherInstance_OnlyThatKeyRead() {
+        JWK other = new JWKService(mock(JWKRepository.class)).createKey(JWKCreateDTO.builder().build());
+        when(repository.findKids()).thenReturn(List.of(), List.of(other.getKeyID()));
+        when(repository.findDistinctByKid(other.getKeyID())).thenReturn(Optional.of(new JWKEntityConverter().toEntity(other)));
+        Assertions.assertTrue(jwkService.publicKeyJSON(other.getKeyID()).isPresent());
+        Assertions.assertTrue(jwkService.jwksSnapshot().publicKey(other.getKeyID()).isPresent());
+        verify(repository, times(1)).findDistinctByKid(other.getKeyID());
+        verify(repository, never()).findAllById(ArgumentMatchers.anyIterable());
+        verify(repository, never()).findAll();
+    }
+
+    @Test
+    void testLatestSignatureKey_SwitchesWhenPublishedAndDue() {
+        jwkService = new JWKService(repository, Duration.ofMinutes(5), Duration.ofMinutes(10), Duration.ofDays(1), null);
+        JWK current = jwkService.latestSignatureKey(); // none in the database, created inline
+        JWK next = jwkService.createKey(JWKCreateDTO.builder().build());
+        Instant now = Instant.now();
+
+        // the next key is in the key set, but not yet long enough
+        stubValidityRows(row(current, now.minus(Duration.ofDays(29)), now.plus(Duration.ofHours(12))),
+                row(next, now, now.plus(Duration.ofDays(30))));
+        jwkService.refreshLatestKeys();
+        Assertions.assertEquals(current.getKeyID(), jwkService.latestSignatureKey().getKeyID());
+
+        // published long enough, but the current key does not expire soon
+        stubValidityRows(row(current, now.minus(Duration.ofDays(20)), now.plus(Duration.ofDays(10))),
+                row(next, now.minus(Duration.ofHours(1)), now.plus(Duration.ofDays(30))));
+        jwkService.refreshLatestKeys();
+        Assertions.assertEquals(current.getKeyID(), jwkService.latestSignatureKey().getKeyID());
+
+        // both
+        stubValidityRows(row(current, now.minus(Duration.ofDays(29)), now.plus(Duration.ofHours(12))),
+                row(next, now.minus(Duration.ofHours(1)), now.plus(Duration.ofDays(30))));
+        jwkService.refreshLatestKeys();
+        Assertions.assertEquals(next.getKeyID(), jwkService.latestSignatureKey().getKeyID());
+    }
+
+    private void stubValidityRows(JWKValidityRow... rows) {
+        when(repository.findValidityRowsByKeyUseAndExpiryTimeAfter(eq(KeyUseEnum.SIGNATURE), any(Date.class)))
+                .thenReturn(List.of(rows));
+    }
+
+    private static JWKValidityRow row(JWK jwk, Instant createdTime, Instant expiryTime) {
+        return new JWKValidityRow(jwk.getKeyID(), Date.from(createdTime), Date.from(expiryTime));
+    }
+
+    @Test
+    void testLatestSignatureKey_CreatedUnderLease() {
+        JdbcLease lease = mock(JdbcLease.class);
+        when(lease.tryAcquire()).thenReturn(true);
+        jwkService = new JWKService(repository, Duration.ofMinutes(5), Duration.ZERO, Duration.ZERO, lease);
+        JWK jwk = jwkService.latestSignatureKey();
+        Assertions.assertSame(jwk, jwkService.latestSignatureKey());
+        verify(repository, times(1)).save(any(JWKEntity.class));
+        verify(lease, times(1)).release();
+    }
+
+    @Test
+    void testLatestSignatureKey_WaitsForLeaseHolder() {
+        JWK created = new JWKService(mock(JWKRepository.class)).createKey(JWKCreateDTO.builder().build());
+        JdbcLease lease = mock(JdbcLease.class);
+        when(lease.tryAcquire()).thenReturn(false);
+        when(lease.getDuration()).thenReturn(Duration.ofSeconds(60));
+        when(repository.findValidityRowsByKeyUseAndExpiryTimeAfter(eq(KeyUseEnum.SIGNATURE), any(Date.class)))
+                .thenReturn(List.of(), List.of(row(created, Instant.now(), Instant.now().plus(Duration.ofDays(30)))));
+        when(repository.findDistinctByKid(created.getKeyID())).thenReturn(Optional.of(new JWKEntityConverter().toEntity(created)));
+        jwkService = new JWKService(repository, Duration.ofMinutes(5), Duration.ZERO, Duration.ZERO, lease);
+        Assertions.assertEquals(created.getKeyID(), jwkService.latestSignatureKey().getKeyID());
+        verify(repository, never()).save(any(JWKEntity.class));
+    }
+
+    @Test
+    void testLatestSignatureKey_WaitForLeaseHolderBounded() {
+        JdbcLease lease = mock(JdbcLease.class);
+        when(lease.tryAcquire()).thenReturn(false);
+        when(lease.getDuration()).thenReturn(Duration.ofMillis(250));
+        jwkService = new JWKService(repository, Duration.ofMinutes(5), Duration.ZERO, Duration.ZERO, lease);
+        Assertions.assertThrows(ServerBusy.class, () -> jwkService.latestSignatureKey());
+        verify(repository, never()).save(any(JWKEntity.class));
+    }
+
+    @Test
+    void testRetireKeys() {
+        JWK jwk = jwkService.createKey(JWKCreateDTO.builder().build());
+        when(repository.findKidByExpiryTimeBefore(any(Date.class))).thenReturn(List.of(jwk.getKeyID(), "gone"));
+        when(repository.findDistinctByKid(jwk.getKeyID())).thenReturn(Optional.of(new JWKEntityConverter().toEntity(jwk)));
+        when(repository.findDistinctByKid("gone")).thenReturn(Optional.empty());
+        long keyGeneration = jwkService.keyGeneration();
+        Assertions.assertEquals(List.of(jwk.getKeyID(), "gone"), jwkService.retireKeys(new Date()));
+        verify(repository, times(1)).delete(ArgumentMatchers.any(JWKEntity.class));
+        Assertions.assertEquals(keyGeneration + 1, jwkService.keyGeneration());
+    }
+}
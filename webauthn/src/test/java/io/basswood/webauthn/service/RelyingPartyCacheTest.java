@@ -0,0 +1,79 @@
+package io.basswood.webauthn.service;
+
+import io.basswood.webauthn.model.credential.CredentialRepositoryImpl;
+import io.basswood.webauthn.model.rp.AuthenticatorPreference;
+import io.basswood.webauthn.model.rp.RelyingPartyEntity;
+import io.basswood.webauthn.model.rp.RelyingPartyOrigin;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.Set;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RelyingPartyCacheTest {
+    private RelyingPartyService relyingPartyService;
+    private RelyingPartyCache relyingPartyCache;
+    private SimpleMeterRegistry meterRegistry;
+    private RelyingPartyEntity relyingParty;
+
+    @BeforeEach
+    void setup() {
+        relyingPartyService = mock(RelyingPartyService.class);
+        meterRegistry = new SimpleMeterRegistry();
+        relyingPartyCache = new RelyingPartyCache(relyingPartyService, mock(CredentialRepositoryImpl.class), meterRegistry);
+        relyingParty = RelyingPartyEntity.builder()
+                .id("example.com")
+                .name("Example")
+                .allowOriginPort(true)
+                .allowOriginSubdomain(true)
+                .userVerification(AuthenticatorPreference.UserVerification.PREFERRED)
+                .timeout(300L)
+                .origins(Set.of(
+                        RelyingPartyOrigin.builder().origin("example.com").build(),
+                        RelyingPartyOrigin.builder().origin("a.example.com").build()))
+                .build();
+        relyingParty.getOrigins().forEach(origin -> origin.setRelyingPartyEntity(relyingParty));
+        when(relyingPartyService.findByOrigin("example.com")).thenReturn(Optional.of(relyingParty));
+        when(relyingPartyService.findByOrigin("unknown.com")).thenReturn(Optional.empty());
+    }
+
+    @Test
+    void testFindByOrigin_compiledOncePerOrigin() {
+        // One start and one finish for both registration and assertion.
+        for (int i = 0; i < 4; i++) {
+            Optional<CompiledRelyingParty> compiled = relyingPartyCache.findByOrigin("example.com");
+            Assertions.assertTrue(compiled.isPresent());
+            Assertions.assertEquals("example.com", compiled.get().relyingParty().getIdentity().getId());
+            Assertions.assertEquals(300L, compiled.get().timeout());
+            Assertions.assertNotNull(compiled.get().authenticatorSelectionCriteria());
+        }
+        verify(relyingPartyService, times(1)).findByOrigin("example.com");
+        Assertions.assertEquals(3, relyingPartyCache.stats().hitCount());
+        Assertions.assertEquals(1, relyingPartyCache.stats().missCount());
+        Assertions.assertEquals(3.0, meterRegistry.get("cache.gets").tag("cache", RelyingPartyCache.CACHE_NAME)
+                .tag("result", "hit").functionCounter().count());
+    }
+
+    @Test
+    void testFindByOrigin_unknownOriginNotCached() {
+        Assertions.assertTrue(relyingPartyCache.findByOrigin("unknown.com").isEmpty());
+        Assertions.assertTrue(relyingPartyCache.findByOrigin("unknown.com").isEmpty());
+        verify(relyingPartyService, times(2)).findByOrigin("unknown.com");
+    }
+
+    @Test
+    void testInvalidate() {
+        relyingPartyCache.findByOrigin("example.com");
+        relyingPartyCache.findByOrigin("a.example.com");
+        relyingPartyCache.invalidate(relyingParty);
+        relyingPartyCache.findByOrigin("example.com");
+        verify(relyingPartyService, times(2)).findByOrigin("example.com");
+    }
+}
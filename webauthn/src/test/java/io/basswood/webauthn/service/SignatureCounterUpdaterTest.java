@@ -0,0 +1,95 @@
+package io.basswood.webauthn.service;
+
+import io.basswood.webauthn.exception.RootException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class SignatureCounterUpdaterTest {
+    private JdbcTemplate jdbcTemplate;
+    private SimpleMeterRegistry meterRegistry;
+
+    @BeforeEach
+    void setup() {
+        jdbcTemplate = mock(JdbcTemplate.class);
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
+    @Test
+    void testSync() {
+        SignatureCounterUpdater updater = updater(SignatureCounterUpdater.Mode.sync);
+        when(jdbcTemplate.update(SignatureCounterUpdater.UPDATE, 5L, "cred-1")).thenReturn(1);
+        updater.update("cred-1", 5);
+        verify(jdbcTemplate).update(SignatureCounterUpdater.UPDATE, 5L, "cred-1");
+        Assertions.assertEquals(1, meterRegistry.get(SignatureCounterUpdater.METRIC_FLUSH).timer().count());
+        Assertions.assertThrows(RootException.class, () -> updater.update("unknown", 5));
+    }
+
+    @Test
+    void testZeroCounterSkipped() {
+        SignatureCounterUpdater updater = updater(SignatureCounterUpdater.Mode.sync);
+        updater.update("cred-1", 0);
+        verify(jdbcTemplate, never()).update(eq(SignatureCounterUpdater.UPDATE), eq(0L), anyString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testDeferred_Coalesced() {
+        SignatureCounterUpdater updater = updater(SignatureCounterUpdater.Mode.deferred);
+        updater.update("cred-1", 5);
+        updater.update("cred-1", 7);
+        updater.update("cred-1", 6);
+        updater.update("cred-2", 1);
+        Assertions.assertEquals(2.0, meterRegistry.get(SignatureCounterUpdater.METRIC_QUEUE_DEPTH).gauge().value());
+        Assertions.assertEquals(2, updater.flush());
+
+        ArgumentCaptor<List<Object[]>> captor = ArgumentCaptor.forClass(List.class);
+        verify(jdbcTemplate, times(1)).batchUpdate(eq(SignatureCounterUpdater.UPDATE), captor.capture());
+        List<Object[]> batch = captor.getValue();
+        Assertions.assertEquals(2, batch.size());
+        Object[] first = batch.stream().filter(args -> "cred-1".equals(args[1])).findFirst().get();
+        Assertions.assertEquals(7L, first[0]);
+        Assertions.assertEquals(0, updater.pendingCount());
+        Assertions.assertEquals(0, updater.flush());
+    }
+
+    @Test
+    void testDeferred_FailedFlushRetried() {
+        SignatureCounterUpdater updater = updater(SignatureCounterUpdater.Mode.deferred);
+        when(jdbcTemplate.batchUpdate(eq(SignatureCounterUpdater.UPDATE), anyList()))
+                .thenThrow(new RuntimeException("database down"))
+                .thenReturn(new int[]{1});
+        updater.update("cred-1", 5);
+        Assertions.assertThrows(RuntimeException.class, updater::flush);
+        Assertions.assertEquals(1, updater.pendingCount());
+        Assertions.assertEquals(1, updater.flush());
+    }
+
+    @Test
+    void testDeferred_FlushedOnStop() {
+        SignatureCounterUpdater updater = updater(SignatureCounterUpdater.Mode.deferred);
+        updater.start();
+        updater.update("cred-1", 5);
+        updater.stop();
+        Assertions.assertEquals(0, updater.pendingCount());
+        verify(jdbcTemplate).batchUpdate(eq(SignatureCounterUpdater.UPDATE), anyList());
+    }
+
+    private SignatureCounterUpdater updater(SignatureCounterUpdater.Mode mode) {
+        return new SignatureCounterUpdater(jdbcTemplate, meterRegistry, mode, 60_000, 100);
+    }
+}
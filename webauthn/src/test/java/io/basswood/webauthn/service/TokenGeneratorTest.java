@@ -2,12 +2,17 @@ package io.basswood.webauthn.service;
 
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWEObject;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
 import com.nimbusds.jose.jwk.Curve;
 import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
 import com.nimbusds.jwt.JWTClaimNames;
 import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
+import io.basswood.webauthn.exception.TokenValidationError;
+import io.basswood.webauthn.model.token.AuthenticatedPrincipal;
+import io.basswood.webauthn.model.token.Role;
 import io.basswood.webauthn.model.token.Token;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -18,6 +23,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.UUID;
 
@@ -79,6 +85,18 @@ class TokenGeneratorTest {
         Assertions.assertEquals(true, tokenGenerator.validateSignedJWT(jwk, expected));
     }
 
+    @Test
+    void testValidateSignedJWT_VerificationKey() throws JOSEException {
+        SignedJWT signedJWT = tokenGenerator.createSignedJWT(jwk, token);
+        JWK publicJWK = jwk.toPublicJWK();
+        VerificationKey verificationKey = new VerificationKey(jwk.getKeyID(), publicJWK,
+                new ECDSAVerifier(publicJWK.toECKey()), JWSAlgorithm.ES256, null);
+        Assertions.assertTrue(tokenGenerator.validateSignedJWT(verificationKey, signedJWT));
+        VerificationKey wrongAlgorithm = new VerificationKey(jwk.getKeyID(), publicJWK,
+                new ECDSAVerifier(publicJWK.toECKey()), JWSAlgorithm.ES384, null);
+        Assertions.assertThrows(TokenValidationError.class, () -> tokenGenerator.validateSignedJWT(wrongAlgorithm, signedJWT));
+    }
+
     @Test
     void testHasClaim(){
         SignedJWT signedJWT = tokenGenerator.createSignedJWT(jwk, token);
@@ -101,4 +119,58 @@ class TokenGeneratorTest {
         SignedJWT signedJWT = tokenGenerator.createSignedJWT(jwk, token);
         Assertions.assertFalse(tokenGenerator.hasClaim(signedJWT, "randomclaim", sub));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testSign_SigningKey() throws ParseException, JOSEException {
+        SigningKey signingKey = tokenGenerator.signingKey(jwk);
+        SignedJWT signedJWT = SignedJWT.parse(tokenGenerator.sign(signingKey, token));
+        Assertions.assertEquals(jwk.getKeyID(), signedJWT.getHeader().getKeyID());
+        Assertions.assertEquals(JWSAlgorithm.ES256, signedJWT.getHeader().getAlgorithm());
+        Assertions.assertTrue(signedJWT.verify(new ECDSAVerifier(jwk.toECKey().toPublicJWK())));
+        Assertions.assertEquals(tokenGenerator.createSignedJWT(jwk, token).getJWTClaimsSet().toJSONObject(),
+                signedJWT.getJWTClaimsSet().toJSONObject());
+        Assertions.assertTrue(tokenGenerator.validateSignedJWT(jwk, signedJWT.serialize()));
+    }
+
+    @Test
+    void testEncrypt_EncryptionKey() throws ParseException {
+        String signed = tokenGenerator.sign(tokenGenerator.signingKey(jwk), token);
+        String encrypted = tokenGenerator.encrypt(tokenGenerator.encryptionKey(jwk.toPublicJWK()), signed);
+        SignedJWT decrypted = tokenGenerator.decryptJWT(jwk, JWEObject.parse(encrypted));
+        Assertions.assertEquals(signed, decrypted.serialize());
+    }
+
+    @Test
+    void testAuthenticate() {
+        Token withRoles = tokenGenerator.createToken(sub, issuer, audience, TOKEN_LIFE_TIME,
+                List.of(Role.jwk_manager.name(), "unknown_role"));
+        SignedJWT signedJWT = tokenGenerator.createSignedJWT(jwk, withRoles);
+        AuthenticatedPrincipal principal = tokenGenerator.authenticate(verificationKey(), signedJWT);
+        Assertions.assertEquals(sub, principal.subject());
+        Assertions.assertEquals(List.of(audience), principal.audience());
+        Assertions.assertEquals(withRoles.jti(), principal.jti());
+        Assertions.assertEquals(EnumSet.of(Role.jwk_manager), principal.roles());
+        Assertions.assertTrue(principal.hasRole(Role.jwk_manager));
+        Assertions.assertFalse(principal.hasRole(Role.user_manager));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> principal.roles().add(Role.rp_manager));
+    }
+
+    @Test
+    void testAuthenticate_Expired() {
+        Token expired = tokenGenerator.createToken(sub, issuer, audience, Duration.ofSeconds(-1), roles);
+        SignedJWT signedJWT = tokenGenerator.createSignedJWT(jwk, expired);
+        TokenValidationError error = Assertions.assertThrows(TokenValidationError.class,
+                () -> tokenGenerator.authenticate(verificationKey(), signedJWT));
+        Assertions.assertEquals("Token expired", error.getMessage());
+    }
+
+    private VerificationKey verificationKey() {
+        JWK publicJWK = jwk.toPublicJWK();
+        try {
+            return new VerificationKey(jwk.getKeyID(), publicJWK, new ECDSAVerifier(publicJWK.toECKey()),
+                    JWSAlgorithm.ES256, null);
+        } catch (JOSEException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
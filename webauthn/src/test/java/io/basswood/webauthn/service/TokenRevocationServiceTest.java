@@ -0,0 +1,67 @@
+package io.basswood.webauthn.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TokenRevocationServiceTest {
+    private JdbcTemplate jdbcTemplate;
+    private SimpleMeterRegistry meterRegistry;
+    private TokenRevocationService service;
+
+    @BeforeEach
+    void setup() {
+        jdbcTemplate = mock(JdbcTemplate.class);
+        meterRegistry = new SimpleMeterRegistry();
+        service = new TokenRevocationService(jdbcTemplate, meterRegistry, true, 5, 1000, 0.01);
+    }
+
+    @Test
+    void testRevoke() {
+        Instant expiry = Instant.now().plusSeconds(300);
+        service.revoke("revoked", expiry);
+        verify(jdbcTemplate, times(1)).update(TokenRevocationService.INSERT, "revoked", Timestamp.from(expiry));
+        Assertions.assertTrue(service.isRevoked("revoked"));
+        Assertions.assertFalse(service.isRevoked("not-revoked"));
+        Assertions.assertFalse(service.isRevoked(null));
+        Assertions.assertEquals(1.0, meterRegistry.get(TokenRevocationService.METRIC_SIZE).gauge().value());
+    }
+
+    @Test
+    void testRefresh_LoadsRevocationsOfOtherNodes() {
+        Timestamp revokedTime = new Timestamp(System.currentTimeMillis());
+        when(jdbcTemplate.queryForList(eq(TokenRevocationService.SELECT_SINCE), any(Timestamp.class), any(Timestamp.class))).thenReturn(List.of(
+                Map.of("jti", "other-node", "expiryTime", Timestamp.from(Instant.now().plusSeconds(300)),
+                        "revokedTime", revokedTime)));
+        Assertions.assertFalse(service.isRevoked("other-node"));
+        service.refresh();
+        Assertions.assertTrue(service.isRevoked("other-node"));
+    }
+
+    @Test
+    void testRefresh_ForgetsExpiredRevocations() {
+        service.revoke("expired", Instant.now().minusSeconds(1));
+        service.revoke("revoked", Instant.now().plusSeconds(300));
+        when(jdbcTemplate.update(eq(TokenRevocationService.DELETE_EXPIRED), any(Timestamp.class), anyInt())).thenReturn(1);
+        service.refresh();
+        Assertions.assertFalse(service.isRevoked("expired"));
+        Assertions.assertTrue(service.isRevoked("revoked"));
+        Assertions.assertEquals(1.0, meterRegistry.get(TokenRevocationService.METRIC_SIZE).gauge().value());
+        verify(jdbcTemplate, times(1)).update(eq(TokenRevocationService.DELETE_EXPIRED), any(Timestamp.class), anyInt());
+    }
+}
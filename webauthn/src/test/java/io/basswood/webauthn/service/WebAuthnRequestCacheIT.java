@@ -11,18 +11,25 @@ import io.basswood.webauthn.model.request.WebAuthnRequestEntity;
 import io.basswood.webauthn.model.user.User;
 import io.basswood.webauthn.repository.BaseRepositoryIT;
 import io.basswood.webauthn.repository.WebAuthnRequestRepository;
+import io.basswood.webauthn.service.challenge.ChallengeRequestCodec;
+import io.basswood.webauthn.service.challenge.JdbcChallengeStore;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
 
+import javax.sql.DataSource;
 import java.util.UUID;
 
 public class WebAuthnRequestCacheIT extends BaseRepositoryIT {
     @Autowired
     private WebAuthnRequestRepository repository;
+    @Autowired
+    private DataSource dataSource;
 
+    private ChallengeRequestCodec codec = new ChallengeRequestCodec(true, 512);
     private WebAuthnRequestCache webAuthnRequestCache;
     private String createRequestJSON;
     private String assertionRequestJSON;
@@ -35,7 +42,7 @@ public class WebAuthnRequestCacheIT extends BaseRepositoryIT {
 
     @BeforeEach
     void setup() throws JsonProcessingException {
-        webAuthnRequestCache = new WebAuthnRequestCache(repository);
+        webAuthnRequestCache = new WebAuthnRequestCache(new JdbcChallengeStore(new JdbcTemplate(dataSource), codec));
         createRequestJSON = """
                 {
                   "rp": {
@@ -129,15 +136,15 @@ public class WebAuthnRequestCacheIT extends BaseRepositoryIT {
         registrationRequestEntity = repository.save(WebAuthnRequestEntity.builder()
                 .requestId(requestId)
                 .requestType(RequestType.REGISTRATION)
-                .request(createRequestJSON)
+                .request(codec.encode(originalCreateRequest))
                 .build());
         assertionRequestEntity = repository.save(WebAuthnRequestEntity.builder()
                 .requestId(loginHandle)
                 .requestType(RequestType.ASSERTION)
-                .request(assertionRequestJSON)
+                .request(codec.encode(originalAssertionRequest))
                 .build());
-        registrationRequestEntity = repository.save(registrationRequestEntity);
-        assertionRequestEntity = repository.save(assertionRequestEntity);
+        registrationRequestEntity = repository.saveAndFlush(registrationRequestEntity);
+        assertionRequestEntity = repository.saveAndFlush(assertionRequestEntity);
     }
 
     @AfterEach
@@ -159,22 +166,6 @@ public class WebAuthnRequestCacheIT extends BaseRepositoryIT {
         Assertions.assertThrows(RootException.class, () -> webAuthnRequestCache.requestType(String.class));
     }
 
-    @Test
-    void testFromJson() {
-        Assertions.assertNotNull(webAuthnRequestCache.fromJson(createRequestJSON, PublicKeyCredentialCreationOptions.class));
-        Assertions.assertNotNull(webAuthnRequestCache.fromJson(assertionRequestJSON, AssertionRequest.class));
-        Assertions.assertThrows(RootException.class, () -> webAuthnRequestCache.fromJson(assertionRequestJSON, User.class));
-        RootException rootException = Assertions.assertThrows(RootException.class, () -> webAuthnRequestCache.fromJson("bad json data", PublicKeyCredentialCreationOptions.class));
-        Assertions.assertTrue(rootException.getCause() instanceof JsonProcessingException);
-    }
-
-    @Test
-    void testToJson() {
-        Assertions.assertNotNull(webAuthnRequestCache.toJson(originalCreateRequest));
-        Assertions.assertNotNull(webAuthnRequestCache.toJson(originalAssertionRequest));
-        Assertions.assertThrows(RootException.class, () -> webAuthnRequestCache.toJson(User.builder().build()));
-    }
-
     @Test
     void testExpiryTime() {
         Assertions.assertNotNull(webAuthnRequestCache.expiryTime(originalCreateRequest));
@@ -199,6 +190,18 @@ public class WebAuthnRequestCacheIT extends BaseRepositoryIT {
     void loadRequest_Simulate_Cache_Load() {
         Assertions.assertNotNull(webAuthnRequestCache.loadRequest(loginHandle, AssertionRequest.class));
     }
+    @Test
+    void loadRequest_SingleUse() {
+        Assertions.assertNotNull(webAuthnRequestCache.loadRequest(loginHandle, AssertionRequest.class));
+        Assertions.assertThrows(EntityNotFound.class, () -> webAuthnRequestCache.loadRequest(loginHandle, AssertionRequest.class));
+    }
+
+    @Test
+    void loadRequest_WrongType() {
+        Assertions.assertThrows(EntityNotFound.class, () -> webAuthnRequestCache.loadRequest(loginHandle, PublicKeyCredentialCreationOptions.class));
+        Assertions.assertNotNull(webAuthnRequestCache.loadRequest(loginHandle, AssertionRequest.class));
+    }
+
     @Test
     void loadRequest() {
         Assertions.assertThrows(EntityNotFound.class, () -> webAuthnRequestCache.loadRequest("random_id", AssertionRequest.class));
@@ -0,0 +1,148 @@
+package io.basswood.webauthn.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.yubico.webauthn.data.AuthenticatorAttachment;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.basswood.authenticator.model.VirtualAuthenticator;
+import io.basswood.webauthn.dto.RegistrationRequestDTO;
+import io.basswood.webauthn.model.credential.CredentialRepositoryImpl;
+import io.basswood.webauthn.model.rp.RelyingPartyEntity;
+import io.basswood.webauthn.model.rp.RelyingPartyOrigin;
+import io.basswood.webauthn.repository.BaseRepositoryIT;
+import io.basswood.webauthn.repository.RegisteredCredentialEntityRepository;
+import io.basswood.webauthn.repository.RelyingPartyOriginRepository;
+import io.basswood.webauthn.repository.RelyingPartyRepository;
+import io.basswood.webauthn.repository.UserRepository;
+import io.basswood.webauthn.repository.UsernameRepository;
+import io.basswood.webauthn.service.challenge.ChallengeRequestCodec;
+import io.basswood.webauthn.service.challenge.JdbcChallengeStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.sql.DataSource;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Supplier;
+
+/**
+ * Runs the ceremonies outside of any transaction, as a request does with {@code spring.jpa.open-in-view} off, and
+ * checks that no pooled connection is checked out while the signature is verified.
+ */
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class WebAuthnServiceConnectionIT extends BaseRepositoryIT {
+    private static final String ORIGIN = "example.com";
+    private static final String USERNAME = "marge.simpson@gmail.com";
+
+    @Autowired
+    private RegisteredCredentialEntityRepository registeredCredentialEntityRepository;
+    @Autowired
+    private RelyingPartyRepository relyingPartyRepository;
+    @Autowired
+    private RelyingPartyOriginRepository relyingPartyOriginRepository;
+    @Autowired
+    private UserRepository userRepository;
+    @Autowired
+    private UsernameRepository usernameRepository;
+    @Autowired
+    private DataSource dataSource;
+
+    private WebAuthnService webAuthnService;
+    private CryptoExecutor cryptoExecutor;
+    private VirtualAuthenticator authenticator;
+    private ObjectMapper objectMapper;
+    private List<Integer> activeConnectionsDuringVerification = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setup() throws SQLException {
+        HikariPoolMXBean pool = dataSource.unwrap(HikariDataSource.class).getHikariPoolMXBean();
+        RelyingPartyService relyingPartyService = new RelyingPartyService(relyingPartyRepository, relyingPartyOriginRepository);
+        UserService userService = new UserService(userRepository, usernameRepository, new SecureRandom());
+        CredentialRepositoryImpl credentialRepository = new CredentialRepositoryImpl(userService, registeredCredentialEntityRepository);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        WebAuthnRequestCache webAuthnRequestCache = new WebAuthnRequestCache(
+                new JdbcChallengeStore(jdbcTemplate, new ChallengeRequestCodec(true, 512)));
+        RelyingPartyCache relyingPartyCache = new RelyingPartyCache(relyingPartyService, credentialRepository, new SimpleMeterRegistry());
+        SignatureCounterUpdater signatureCounterUpdater = new SignatureCounterUpdater(jdbcTemplate,
+                new SimpleMeterRegistry(), SignatureCounterUpdater.Mode.sync, 0, 1);
+        cryptoExecutor = new CryptoExecutor(1, 1, new SimpleMeterRegistry()) {
+            @Override
+            public <T> T execute(Supplier<T> task) {
+                activeConnectionsDuringVerification.add(pool.getActiveConnections());
+                return super.execute(task);
+            }
+        };
+        webAuthnService = new WebAuthnService(relyingPartyCache, userService, credentialRepository,
+                registeredCredentialEntityRepository, webAuthnRequestCache, signatureCounterUpdater, cryptoExecutor);
+        objectMapper = new ObjectMapper().registerModule(new Jdk8Module());
+        authenticator = VirtualAuthenticator.builder()
+                .aaguid(UUID.randomUUID())
+                .attachment(AuthenticatorAttachment.PLATFORM)
+                .authenticatorTransport(AuthenticatorTransport.INTERNAL)
+                .key(new NimbusJOSEHelper().createECKey(KeyUse.SIGNATURE, Curve.P_256, Duration.ofDays(1)))
+                .build();
+
+        RelyingPartyEntity relyingParty = RelyingPartyEntity.builder()
+                .id("example.com")
+                .name("Example")
+                .allowOriginPort(true)
+                .allowOriginSubdomain(true)
+                .timeout(300L)
+                .origins(Set.of(RelyingPartyOrigin.builder().origin(ORIGIN).build()))
+                .build();
+        relyingParty.getOrigins().forEach(origin -> origin.setRelyingPartyEntity(relyingParty));
+        relyingPartyRepository.save(relyingParty);
+    }
+
+    @AfterEach
+    void cleanup() {
+        cryptoExecutor.shutdown();
+        registeredCredentialEntityRepository.deleteAll();
+        userRepository.deleteAll();
+        relyingPartyRepository.deleteAll();
+    }
+
+    @Test
+    void testNoConnectionHeldDuringVerification() {
+        String registrationId = UUID.randomUUID().toString();
+        PublicKeyCredentialCreationOptions creationOptions = webAuthnService.startRegistration(registrationId, ORIGIN,
+                RegistrationRequestDTO.builder()
+                        .username(USERNAME)
+                        .displayName("Marge Simpson")
+                        .build());
+        webAuthnService.finishRegistration(ORIGIN, registrationId, toJson(authenticator.create(creationOptions)));
+
+        String loginHandle = UUID.randomUUID().toString();
+        PublicKeyCredentialRequestOptions requestOptions = webAuthnService.startAssertion(ORIGIN, loginHandle, USERNAME);
+        Assertions.assertTrue(webAuthnService.finishAssertion(ORIGIN, loginHandle, toJson(authenticator.get(requestOptions))).isSuccess());
+
+        Assertions.assertEquals(List.of(0, 0), activeConnectionsDuringVerification);
+    }
+
+    private String toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -34,13 +34,20 @@ import io.basswood.webauthn.repository.RelyingPartyOriginRepository;
 import io.basswood.webauthn.repository.RelyingPartyRepository;
 import io.basswood.webauthn.repository.UserRepository;
 import io.basswood.webauthn.repository.UsernameRepository;
-import io.basswood.webauthn.repository.WebAuthnRequestRepository;
+import io.basswood.webauthn.service.challenge.ChallengeRequestCodec;
+import io.basswood.webauthn.service.challenge.InMemoryChallengeStore;
+import io.basswood.webauthn.service.challenge.JdbcChallengeStore;
+import io.basswood.webauthn.service.challenge.WriteThroughChallengeStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.jdbc.core.JdbcTemplate;
 
+import javax.sql.DataSource;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
@@ -64,7 +71,9 @@ public class WebAuthnServiceIT extends BaseRepositoryIT {
     @Autowired
     private UsernameRepository usernameRepository;
     @Autowired
-    private WebAuthnRequestRepository webAuthnRequestRepository;
+    private DataSource dataSource;
+    @Autowired
+    private TestEntityManager entityManager;
     private ObjectMapper objectMapper;
 
     @BeforeEach
@@ -73,10 +82,14 @@ public class WebAuthnServiceIT extends BaseRepositoryIT {
         RelyingPartyService relyingPartyService = new RelyingPartyService(relyingPartyRepository, relyingPartyOriginRepository);
         UserService userService = new UserService(userRepository, usernameRepository, secureRandom);
         CredentialRepositoryImpl credentialRepository = new CredentialRepositoryImpl(userService, registeredCredentialEntityRepository);
-        WebAuthnRequestCache webAuthnRequestCache = new WebAuthnRequestCache(webAuthnRequestRepository);
+        WebAuthnRequestCache webAuthnRequestCache = new WebAuthnRequestCache(new WriteThroughChallengeStore(
+                new InMemoryChallengeStore(), new JdbcChallengeStore(new JdbcTemplate(dataSource), new ChallengeRequestCodec(true, 512))));
         objectMapper = new ObjectMapper().registerModule(new Jdk8Module());
-        webAuthnService = new WebAuthnService(relyingPartyService, userService, credentialRepository,
-                registeredCredentialEntityRepository, webAuthnRequestCache);
+        RelyingPartyCache relyingPartyCache = new RelyingPartyCache(relyingPartyService, credentialRepository, new SimpleMeterRegistry());
+        SignatureCounterUpdater signatureCounterUpdater = new SignatureCounterUpdater(new JdbcTemplate(dataSource),
+                new SimpleMeterRegistry(), SignatureCounterUpdater.Mode.sync, 0, 1);
+        webAuthnService = new WebAuthnService(relyingPartyCache, userService, credentialRepository,
+                registeredCredentialEntityRepository, webAuthnRequestCache, signatureCounterUpdater, null);
         authenticator = VirtualAuthenticator.builder()
                 .aaguid(UUID.randomUUID())
                 .attachment(AuthenticatorAttachment.PLATFORM)
@@ -170,7 +183,8 @@ public class WebAuthnServiceIT extends BaseRepositoryIT {
         AssertionResult assertionResult = webAuthnService.finishAssertion(origin, loginHandle, assertionFinishResponse);
         Assertions.assertTrue(assertionResult.isSuccess());
 
-        // Assert credential in db
+        // Assert credential in db, the signature counter is written with plain JDBC.
+        entityManager.clear();
         Set<RegisteredCredentialEntity> credentialEntities = registeredCredentialEntityRepository.findByUser(user);
         Assertions.assertFalse(credentialEntities.isEmpty());
         Assertions.assertEquals(1, credentialEntities.size());
@@ -221,7 +235,8 @@ public class WebAuthnServiceIT extends BaseRepositoryIT {
         AssertionResult assertionResult = webAuthnService.finishAssertion(origin, loginHandle, assertionFinishResponse);
         Assertions.assertTrue(assertionResult.isSuccess());
 
-        // Assert credential in db
+        // Assert credential in db, the signature counter is written with plain JDBC.
+        entityManager.clear();
         Set<RegisteredCredentialEntity> credentialEntities = registeredCredentialEntityRepository.findByUser(User.builder()
                 .userHandle(userHandle)
                 .build());
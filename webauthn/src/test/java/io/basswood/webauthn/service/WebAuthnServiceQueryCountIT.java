@@ -0,0 +1,179 @@
+package io.basswood.webauthn.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.yubico.webauthn.data.AuthenticatorAttachment;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
+import io.basswood.authenticator.model.VirtualAuthenticator;
+import io.basswood.webauthn.dto.RegistrationRequestDTO;
+import io.basswood.webauthn.model.credential.CredentialRepositoryImpl;
+import io.basswood.webauthn.model.credential.RegisteredCredentialEntity;
+import io.basswood.webauthn.model.rp.RelyingPartyEntity;
+import io.basswood.webauthn.model.rp.RelyingPartyOrigin;
+import io.basswood.webauthn.model.user.User;
+import io.basswood.webauthn.model.user.Username;
+import io.basswood.webauthn.repository.BaseRepositoryIT;
+import io.basswood.webauthn.repository.RegisteredCredentialEntityRepository;
+import io.basswood.webauthn.repository.RelyingPartyOriginRepository;
+import io.basswood.webauthn.repository.RelyingPartyRepository;
+import io.basswood.webauthn.repository.SqlStatementCounter;
+import io.basswood.webauthn.repository.UserRepository;
+import io.basswood.webauthn.repository.UsernameRepository;
+import io.basswood.webauthn.service.challenge.ChallengeRequestCodec;
+import io.basswood.webauthn.service.challenge.JdbcChallengeStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.persistence.EntityManagerFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Puts an upper bound on the Hibernate statements and entity loads of each ceremony. The table holds
+ * {@link #OTHER_USERS} unrelated users with a credential each, so a query that reads the whole table trips the entity
+ * load bound. Statements issued through the JdbcTemplate (challenge store, signature counter) are not counted.
+ */
+public class WebAuthnServiceQueryCountIT extends BaseRepositoryIT {
+    private static final int OTHER_USERS = 50;
+    private static final long MAX_STATEMENTS = 12;
+    private static final long MAX_ENTITY_LOADS = 10;
+    private static final String ORIGIN = "example.com";
+    private static final String USERNAME = "homer.simpson@gmail.com";
+
+    @Autowired
+    private RegisteredCredentialEntityRepository registeredCredentialEntityRepository;
+    @Autowired
+    private RelyingPartyRepository relyingPartyRepository;
+    @Autowired
+    private RelyingPartyOriginRepository relyingPartyOriginRepository;
+    @Autowired
+    private UserRepository userRepository;
+    @Autowired
+    private UsernameRepository usernameRepository;
+    @Autowired
+    private DataSource dataSource;
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private WebAuthnService webAuthnService;
+    private VirtualAuthenticator authenticator;
+    private ObjectMapper objectMapper;
+    private SqlStatementCounter counter;
+
+    @BeforeEach
+    void setup() {
+        RelyingPartyService relyingPartyService = new RelyingPartyService(relyingPartyRepository, relyingPartyOriginRepository);
+        UserService userService = new UserService(userRepository, usernameRepository, new SecureRandom());
+        CredentialRepositoryImpl credentialRepository = new CredentialRepositoryImpl(userService, registeredCredentialEntityRepository);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        WebAuthnRequestCache webAuthnRequestCache = new WebAuthnRequestCache(
+                new JdbcChallengeStore(jdbcTemplate, new ChallengeRequestCodec(true, 512)));
+        RelyingPartyCache relyingPartyCache = new RelyingPartyCache(relyingPartyService, credentialRepository, new SimpleMeterRegistry());
+        SignatureCounterUpdater signatureCounterUpdater = new SignatureCounterUpdater(jdbcTemplate,
+                new SimpleMeterRegistry(), SignatureCounterUpdater.Mode.sync, 0, 1);
+        webAuthnService = new WebAuthnService(relyingPartyCache, userService, credentialRepository,
+                registeredCredentialEntityRepository, webAuthnRequestCache, signatureCounterUpdater, null);
+        objectMapper = new ObjectMapper().registerModule(new Jdk8Module());
+        authenticator = VirtualAuthenticator.builder()
+                .aaguid(UUID.randomUUID())
+                .attachment(AuthenticatorAttachment.PLATFORM)
+                .authenticatorTransport(AuthenticatorTransport.INTERNAL)
+                .key(new NimbusJOSEHelper().createECKey(KeyUse.SIGNATURE, Curve.P_256, Duration.ofDays(1)))
+                .build();
+
+        RelyingPartyEntity relyingParty = RelyingPartyEntity.builder()
+                .id("example.com")
+                .name("Example")
+                .allowOriginPort(true)
+                .allowOriginSubdomain(true)
+                .timeout(300L)
+                .origins(Set.of(RelyingPartyOrigin.builder().origin(ORIGIN).build()))
+                .build();
+        relyingParty.getOrigins().forEach(origin -> origin.setRelyingPartyEntity(relyingParty));
+        relyingPartyRepository.save(relyingParty);
+        for (int i = 0; i < OTHER_USERS; i++) {
+            User other = userService.createUser(User.builder()
+                    .displayName("User " + i)
+                    .usernames(Set.of(Username.builder().username("user" + i + "@example.com").build()))
+                    .build());
+            registeredCredentialEntityRepository.save(RegisteredCredentialEntity.builder()
+                    .credentialId(UUID.randomUUID().toString())
+                    .publicKeyCose("e30")
+                    .clientDataJSON("e30")
+                    .attestationObject("e30")
+                    .signatureCount(0L)
+                    .discoverable(false)
+                    .user(other)
+                    .build());
+        }
+        entityManager.flush();
+        counter = new SqlStatementCounter(entityManagerFactory);
+    }
+
+    @AfterEach
+    void cleanup() {
+        registeredCredentialEntityRepository.deleteAll();
+        userRepository.deleteAll();
+        relyingPartyRepository.deleteAll();
+    }
+
+    @Test
+    void testCeremonyQueryCounts() {
+        String registrationId = UUID.randomUUID().toString();
+        PublicKeyCredentialCreationOptions creationOptions = measure("startRegistration", () ->
+                webAuthnService.startRegistration(registrationId, ORIGIN, RegistrationRequestDTO.builder()
+                        .username(USERNAME)
+                        .displayName("Homer Simpson")
+                        .build()));
+        String registrationResponse = toJson(authenticator.create(creationOptions));
+        measure("finishRegistration", () -> {
+            webAuthnService.finishRegistration(ORIGIN, registrationId, registrationResponse);
+            return null;
+        });
+
+        String loginHandle = UUID.randomUUID().toString();
+        PublicKeyCredentialRequestOptions requestOptions = measure("startAssertion", () ->
+                webAuthnService.startAssertion(ORIGIN, loginHandle, USERNAME));
+        String assertionResponse = toJson(authenticator.get(requestOptions));
+        Assertions.assertTrue(measure("finishAssertion", () ->
+                webAuthnService.finishAssertion(ORIGIN, loginHandle, assertionResponse)).isSuccess());
+    }
+
+    private <T> T measure(String ceremony, Supplier<T> call) {
+        entityManager.flush();
+        entityManager.clear();
+        counter.reset();
+        T result = call.get();
+        entityManager.flush();
+        Assertions.assertTrue(counter.statements() <= MAX_STATEMENTS,
+                ceremony + " ran " + counter.statements() + " statements");
+        Assertions.assertTrue(counter.entityLoads() <= MAX_ENTITY_LOADS,
+                ceremony + " loaded " + counter.entityLoads() + " entities");
+        return result;
+    }
+
+    private String toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
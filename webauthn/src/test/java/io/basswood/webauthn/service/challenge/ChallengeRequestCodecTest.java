@@ -0,0 +1,101 @@
+package io.basswood.webauthn.service.challenge;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import io.basswood.webauthn.exception.RootException;
+import io.basswood.webauthn.model.request.RequestType;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+class ChallengeRequestCodecTest {
+    private PublicKeyCredentialCreationOptions createRequest;
+    private AssertionRequest assertionRequest;
+
+    @BeforeEach
+    void setup() throws JsonProcessingException {
+        createRequest = PublicKeyCredentialCreationOptions.fromJson("""
+                {
+                  "rp": {"name": "Example", "id": "example.com"},
+                  "user": {
+                    "name": "homer.simpson@gmail.com",
+                    "displayName": "Homer Simpson",
+                    "id": "a951d907-aa0b-461e-8cdf-96559b358a9b"
+                  },
+                  "challenge": "Tw5GFfndG3k2XPky9dx3iFytYJo0oSzA-Z-F2FEx5NQ",
+                  "pubKeyCredParams": [
+                    {"alg": -7, "type": "public-key"},
+                    {"alg": -8, "type": "public-key"},
+                    {"alg": -257, "type": "public-key"}
+                  ],
+                  "timeout": 300,
+                  "excludeCredentials": [],
+                  "authenticatorSelection": {"authenticatorAttachment": "cross-platform"},
+                  "attestation": "none",
+                  "extensions": {"credProps": true}
+                }
+                """);
+        assertionRequest = AssertionRequest.fromJson("""
+                {
+                  "publicKeyCredentialRequestOptions": {
+                    "challenge": "xzBTOExJL-JGQovaqpKn4e66bMYLhrJ1004-zM3qaxk",
+                    "timeout": 300,
+                    "rpId": "example.com",
+                    "allowCredentials": [
+                      {
+                        "type": "public-key",
+                        "id": "a951d907-aa0b-461e-8cdf-96559b358a9bZXhhbXBsZS5jb20",
+                        "transports": ["internal"]
+                      }
+                    ],
+                    "extensions": {}
+                  },
+                  "username": "homer.simpson@gmail.com"
+                }
+                """);
+    }
+
+    @Test
+    void testRoundTrip() {
+        ChallengeRequestCodec codec = new ChallengeRequestCodec(false, 0);
+        byte[] encoded = codec.encode(createRequest);
+        Assertions.assertEquals(ChallengeRequestCodec.FORMAT_CBOR, encoded[0]);
+        Assertions.assertEquals(createRequest, codec.decode(encoded, RequestType.REGISTRATION));
+        Assertions.assertEquals(assertionRequest, codec.decode(codec.encode(assertionRequest), AssertionRequest.class));
+    }
+
+    @Test
+    void testRoundTrip_Compressed() {
+        ChallengeRequestCodec codec = new ChallengeRequestCodec(true, 0);
+        byte[] encoded = codec.encode(createRequest);
+        Assertions.assertEquals(ChallengeRequestCodec.FORMAT_CBOR_DEFLATE, encoded[0]);
+        Assertions.assertEquals(createRequest, codec.decode(encoded, PublicKeyCredentialCreationOptions.class));
+        Assertions.assertEquals(assertionRequest, codec.decode(codec.encode(assertionRequest), RequestType.ASSERTION));
+    }
+
+    @Test
+    void testSmallerThanJson() throws JsonProcessingException {
+        ChallengeRequestCodec codec = new ChallengeRequestCodec(false, 0);
+        Assertions.assertTrue(codec.encode(createRequest).length < createRequest.toJson().getBytes(StandardCharsets.UTF_8).length);
+        Assertions.assertTrue(codec.encode(assertionRequest).length < assertionRequest.toJson().getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    void testCompressionMinSize() {
+        ChallengeRequestCodec codec = new ChallengeRequestCodec(true, Integer.MAX_VALUE);
+        Assertions.assertEquals(ChallengeRequestCodec.FORMAT_CBOR, codec.encode(createRequest)[0]);
+    }
+
+    @Test
+    void testDecode_BadData() {
+        ChallengeRequestCodec codec = new ChallengeRequestCodec(true, 0);
+        Assertions.assertThrows(RootException.class, () -> codec.decode(new byte[0], RequestType.ASSERTION));
+        Assertions.assertThrows(RootException.class, () -> codec.decode(new byte[]{9, 1, 2}, RequestType.ASSERTION));
+        Assertions.assertThrows(RootException.class, () -> codec.decode(new byte[]{ChallengeRequestCodec.FORMAT_CBOR, 1, 2}, RequestType.ASSERTION));
+        Assertions.assertThrows(RootException.class, () -> codec.decode(new byte[]{ChallengeRequestCodec.FORMAT_CBOR_DEFLATE, 1, 2}, RequestType.ASSERTION));
+        Assertions.assertThrows(RootException.class, () -> codec.decode(codec.encode(createRequest), AssertionRequest.class));
+    }
+}
@@ -0,0 +1,51 @@
+package io.basswood.webauthn.service.challenge;
+
+import io.basswood.webauthn.model.request.RequestType;
+import io.basswood.webauthn.model.request.WebAuthnRequestEntity;
+import io.basswood.webauthn.repository.BaseRepositoryIT;
+import io.basswood.webauthn.repository.WebAuthnRequestRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.time.Instant;
+import java.util.Date;
+import java.util.UUID;
+
+public class ChallengeStoreReaperIT extends BaseRepositoryIT {
+    @Autowired
+    private WebAuthnRequestRepository repository;
+    @Autowired
+    private DataSource dataSource;
+
+    @AfterEach
+    void cleanup() {
+        repository.deleteAll();
+    }
+
+    @Test
+    void testPurge() {
+        for (int i = 0; i < 5; i++) {
+            repository.save(request(Date.from(Instant.now().minusSeconds(60))));
+        }
+        WebAuthnRequestEntity live = repository.saveAndFlush(request(Date.from(Instant.now().plusSeconds(600))));
+        ChallengeStoreReaper reaper = new ChallengeStoreReaper(new JdbcTemplate(dataSource), new SimpleMeterRegistry(),
+                true, 60, 2, 10);
+        Assertions.assertEquals(5, reaper.purge());
+        Assertions.assertEquals(1, repository.count());
+        Assertions.assertTrue(repository.findById(live.getRequestId()).isPresent());
+    }
+
+    private WebAuthnRequestEntity request(Date expiryTime) {
+        return WebAuthnRequestEntity.builder()
+                .requestId(UUID.randomUUID().toString())
+                .requestType(RequestType.ASSERTION)
+                .expiryTime(expiryTime)
+                .request(new byte[]{0})
+                .build();
+    }
+}
@@ -0,0 +1,67 @@
+package io.basswood.webauthn.service.challenge;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ChallengeStoreReaperTest {
+    private JdbcTemplate jdbcTemplate;
+    private SimpleMeterRegistry meterRegistry;
+    private ChallengeStoreReaper reaper;
+
+    @BeforeEach
+    void setup() {
+        jdbcTemplate = mock(JdbcTemplate.class);
+        meterRegistry = new SimpleMeterRegistry();
+        reaper = new ChallengeStoreReaper(jdbcTemplate, meterRegistry, true, 60, 100, 5);
+    }
+
+    @Test
+    void testPurge_StopsOnShortBatch() {
+        when(jdbcTemplate.update(eq(ChallengeStoreReaper.DELETE_EXPIRED), any(Timestamp.class), eq(100)))
+                .thenReturn(100, 100, 42);
+        Assertions.assertEquals(242, reaper.purge());
+        verify(jdbcTemplate, times(3)).update(eq(ChallengeStoreReaper.DELETE_EXPIRED), any(Timestamp.class), eq(100));
+        Assertions.assertEquals(242.0, meterRegistry.get(ChallengeStoreReaper.METRIC_PURGED).counter().count());
+    }
+
+    @Test
+    void testPurge_MaxBatchesPerRun() {
+        when(jdbcTemplate.update(eq(ChallengeStoreReaper.DELETE_EXPIRED), any(Timestamp.class), eq(100)))
+                .thenReturn(100);
+        Assertions.assertEquals(500, reaper.purge());
+        verify(jdbcTemplate, times(5)).update(eq(ChallengeStoreReaper.DELETE_EXPIRED), any(Timestamp.class), eq(100));
+    }
+
+    @Test
+    void testRefreshGauges() {
+        when(jdbcTemplate.queryForObject(ChallengeStoreReaper.OLDEST_EXPIRY, Timestamp.class))
+                .thenReturn(new Timestamp(System.currentTimeMillis() - 120_000));
+        when(jdbcTemplate.queryForList(ChallengeStoreReaper.TABLE_ROWS, Long.class)).thenReturn(List.of(1234L));
+        reaper.refreshGauges();
+        Assertions.assertTrue(meterRegistry.get(ChallengeStoreReaper.METRIC_LAG).gauge().value() >= 119);
+        Assertions.assertEquals(1234.0, meterRegistry.get(ChallengeStoreReaper.METRIC_TABLE_ROWS).gauge().value());
+    }
+
+    @Test
+    void testRefreshGauges_NotExpired() {
+        when(jdbcTemplate.queryForObject(ChallengeStoreReaper.OLDEST_EXPIRY, Timestamp.class))
+                .thenReturn(new Timestamp(System.currentTimeMillis() + 120_000));
+        when(jdbcTemplate.queryForList(ChallengeStoreReaper.TABLE_ROWS, Long.class)).thenReturn(List.of());
+        reaper.refreshGauges();
+        Assertions.assertEquals(0.0, meterRegistry.get(ChallengeStoreReaper.METRIC_LAG).gauge().value());
+        Assertions.assertEquals(0.0, meterRegistry.get(ChallengeStoreReaper.METRIC_TABLE_ROWS).gauge().value());
+    }
+}
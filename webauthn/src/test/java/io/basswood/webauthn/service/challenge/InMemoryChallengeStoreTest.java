@@ -0,0 +1,123 @@
+package io.basswood.webauthn.service.challenge;
+
+import io.basswood.webauthn.exception.RootException;
+import io.basswood.webauthn.model.request.RequestType;
+import io.basswood.webauthn.model.request.WebAuthnRequestEntity;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class InMemoryChallengeStoreTest {
+    private InMemoryChallengeStore store;
+
+    @BeforeEach
+    void setup() {
+        store = new InMemoryChallengeStore(4, 2);
+    }
+
+    @Test
+    void testPutIfAbsent() {
+        WebAuthnRequestEntity request = request(UUID.randomUUID().toString(), 60);
+        Assertions.assertTrue(store.putIfAbsent(request));
+        Assertions.assertFalse(store.putIfAbsent(request(request.getRequestId(), 60)));
+    }
+
+    @Test
+    void testPutIfAbsent_ExpiredIdReused() {
+        String requestId = UUID.randomUUID().toString();
+        Assertions.assertTrue(store.putIfAbsent(request(requestId, -1)));
+        Assertions.assertTrue(store.putIfAbsent(request(requestId, 60)));
+        Assertions.assertTrue(store.consume(requestId, RequestType.ASSERTION).isPresent());
+    }
+
+    @Test
+    void testConsume_SingleUse() {
+        WebAuthnRequestEntity request = request(UUID.randomUUID().toString(), 60);
+        store.putIfAbsent(request);
+        Optional<WebAuthnRequestEntity> consumed = store.consume(request.getRequestId(), RequestType.ASSERTION);
+        Assertions.assertTrue(consumed.isPresent());
+        Assertions.assertSame(request, consumed.get());
+        Assertions.assertTrue(store.consume(request.getRequestId(), RequestType.ASSERTION).isEmpty());
+        Assertions.assertTrue(store.consume("random_id", RequestType.ASSERTION).isEmpty());
+    }
+
+    @Test
+    void testConsume_WrongType() {
+        WebAuthnRequestEntity request = request(UUID.randomUUID().toString(), 60);
+        store.putIfAbsent(request);
+        Assertions.assertTrue(store.consume(request.getRequestId(), RequestType.REGISTRATION).isEmpty());
+        Assertions.assertSame(request, store.consume(request.getRequestId(), RequestType.ASSERTION).get());
+    }
+
+    @Test
+    void testConsume_Expired() {
+        WebAuthnRequestEntity request = request(UUID.randomUUID().toString(), -1);
+        store.putIfAbsent(request);
+        Assertions.assertTrue(store.consume(request.getRequestId(), RequestType.ASSERTION).isEmpty());
+    }
+
+    @Test
+    void testConsume_Concurrent() throws Exception {
+        WebAuthnRequestEntity request = request(UUID.randomUUID().toString(), 60);
+        store.putIfAbsent(request);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger winners = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                store.consume(request.getRequestId(), RequestType.ASSERTION).ifPresent(ignored -> winners.incrementAndGet());
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        Assertions.assertEquals(1, winners.get());
+    }
+
+    @Test
+    void testCapacity() {
+        InMemoryChallengeStore singleShard = new InMemoryChallengeStore(1, 2);
+        singleShard.putIfAbsent(request(UUID.randomUUID().toString(), -1));
+        singleShard.putIfAbsent(request(UUID.randomUUID().toString(), 60));
+        // The expired request is swept to make room.
+        Assertions.assertTrue(singleShard.putIfAbsent(request(UUID.randomUUID().toString(), 60)));
+        Assertions.assertEquals(2, singleShard.size());
+        RootException rootException = Assertions.assertThrows(RootException.class,
+                () -> singleShard.putIfAbsent(request(UUID.randomUUID().toString(), 60)));
+        Assertions.assertEquals(503, rootException.getHttpStatus());
+    }
+
+    @Test
+    void testPurgeExpired() {
+        store.putIfAbsent(request(UUID.randomUUID().toString(), -1));
+        store.putIfAbsent(request(UUID.randomUUID().toString(), 60));
+        Assertions.assertEquals(1, store.purgeExpired());
+        Assertions.assertEquals(1, store.size());
+    }
+
+    static WebAuthnRequestEntity request(String requestId, long expiresInSeconds) {
+        return WebAuthnRequestEntity.builder()
+                .requestId(requestId)
+                .requestType(RequestType.ASSERTION)
+                .expiryTime(Date.from(Instant.now().plusSeconds(expiresInSeconds)))
+                .build();
+    }
+}
@@ -0,0 +1,62 @@
+package io.basswood.webauthn.service.challenge;
+
+import io.basswood.webauthn.model.request.RequestType;
+import io.basswood.webauthn.model.request.WebAuthnRequestEntity;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.UUID;
+
+import static io.basswood.webauthn.service.challenge.InMemoryChallengeStoreTest.request;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WriteThroughChallengeStoreTest {
+    private JdbcChallengeStore jdbcStore;
+    private InMemoryChallengeStore memoryStore;
+    private WriteThroughChallengeStore store;
+    private WebAuthnRequestEntity request;
+
+    @BeforeEach
+    void setup() {
+        jdbcStore = mock(JdbcChallengeStore.class);
+        memoryStore = new InMemoryChallengeStore();
+        store = new WriteThroughChallengeStore(memoryStore, jdbcStore);
+        request = request(UUID.randomUUID().toString(), 60);
+    }
+
+    @Test
+    void testPutIfAbsent_Duplicate() {
+        when(jdbcStore.putIfAbsent(request)).thenReturn(false);
+        Assertions.assertFalse(store.putIfAbsent(request));
+        Assertions.assertEquals(0, memoryStore.size());
+    }
+
+    @Test
+    void testConsume_LocalHit() {
+        when(jdbcStore.putIfAbsent(request)).thenReturn(true);
+        when(jdbcStore.remove(request.getRequestId())).thenReturn(true);
+        Assertions.assertTrue(store.putIfAbsent(request));
+        Assertions.assertSame(request, store.consume(request.getRequestId(), RequestType.ASSERTION).get());
+        verify(jdbcStore, never()).consume(request.getRequestId(), RequestType.ASSERTION);
+    }
+
+    @Test
+    void testConsume_LocalHitConsumedElsewhere() {
+        when(jdbcStore.putIfAbsent(request)).thenReturn(true);
+        when(jdbcStore.remove(request.getRequestId())).thenReturn(false);
+        store.putIfAbsent(request);
+        Assertions.assertTrue(store.consume(request.getRequestId(), RequestType.ASSERTION).isEmpty());
+    }
+
+    @Test
+    void testConsume_LocalMiss() {
+        when(jdbcStore.consume(request.getRequestId(), RequestType.ASSERTION)).thenReturn(Optional.of(request));
+        Assertions.assertSame(request, store.consume(request.getRequestId(), RequestType.ASSERTION).get());
+        verify(jdbcStore, never()).remove(request.getRequestId());
+    }
+}